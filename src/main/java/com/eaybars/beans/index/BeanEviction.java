@@ -0,0 +1,209 @@
+package com.eaybars.beans.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Capacity bound of a BeanIndexer, obtained from BeanIndexer.enableEviction.
+ * When adding a bean makes the indexer exceed its maximum size, a victim is
+ * chosen by the policy and removed from the indexer and all its indexes.
+ * <p>
+ * A bean is used when it is retrieved by Search.singleResult, or as one of
+ * at most 16 results of Search.results, so that large scans do not flush the
+ * beans which are looked up repeatedly. Uses are written to a small lossy
+ * buffer without locking, and replayed on the policy when a bean is added or
+ * a victim is chosen.
+ * Beans can also be marked as used by recordAccess.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class BeanEviction<K> {
+
+    /**
+     * Policy choosing the bean to evict when the indexer is full
+     */
+    public enum Policy {
+
+        /**
+         * Evicts the least recently used bean
+         */
+        LRU,
+        /**
+         * Keeps recently added beans in a small window and admits a bean
+         * leaving the window only if it is used more often than the victim
+         * of the main segment, estimated by a frequency sketch (W-TinyLFU).
+         * A bean may be evicted right after it is added.
+         */
+        LFU,
+        /**
+         * Evicts the bean with the lowest value of a sorted index
+         */
+        LOWEST_VALUE
+    }
+
+    private static final int BUFFER_SIZE = 64;
+
+    private final int maximumSize;
+    private final Policy policy;
+    private final Supplier<K> lowest;
+    private final AtomicReferenceArray<Object> accesses = new AtomicReferenceArray<Object>(BUFFER_SIZE);
+    private final AtomicLong evictions = new AtomicLong();
+    // LRU order for LRU, protected segment for LFU
+    private final LinkedHashMap<K, Boolean> main = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+    private final LinkedHashMap<K, Boolean> window = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+    private final LinkedHashMap<K, Boolean> probation = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final int windowSize;
+    private final int protectedSize;
+    private K candidate;
+
+    /**
+     * @param lowest retrieves the bean with the lowest value for LOWEST_VALUE
+     */
+    BeanEviction(int maximumSize, Policy policy, Supplier<K> lowest) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.policy = policy;
+        this.lowest = lowest;
+        this.sketch = policy == Policy.LFU ? new FrequencySketch(maximumSize) : null;
+        this.windowSize = Math.max(1, maximumSize / 100);
+        this.protectedSize = (maximumSize - windowSize) * 4 / 5;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the number of beans evicted so far
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Marks the given bean as used. The use may be dropped if many beans are
+     * used concurrently.
+     *
+     * @param bean
+     */
+    public void recordAccess(K bean) {
+        if (policy != Policy.LOWEST_VALUE) {
+            accesses.lazySet(ThreadLocalRandom.current().nextInt(BUFFER_SIZE), bean);
+        }
+    }
+
+    synchronized void added(K bean) {
+        drain();
+        if (policy == Policy.LRU) {
+            main.put(bean, Boolean.TRUE);
+        } else if (policy == Policy.LFU) {
+            sketch.increment(bean);
+            window.put(bean, Boolean.TRUE);
+            if (window.size() > windowSize) {// the eldest bean of the window is a candidate for admission
+                candidate = eldest(window);
+                window.remove(candidate);
+                probation.put(candidate, Boolean.TRUE);
+            }
+        }
+    }
+
+    synchronized void removed(Object bean) {
+        if (policy != Policy.LOWEST_VALUE) {
+            main.remove(bean);
+            window.remove(bean);
+            probation.remove(bean);
+            if (bean.equals(candidate)) {
+                candidate = null;
+            }
+        }
+    }
+
+    synchronized void cleared() {
+        main.clear();
+        window.clear();
+        probation.clear();
+        candidate = null;
+    }
+
+    void evicted() {
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Chooses the bean to evict
+     *
+     * @return null if there is no bean to evict
+     */
+    synchronized K victim() {
+        if (policy == Policy.LOWEST_VALUE) {
+            return lowest.get();
+        }
+        drain();
+        if (policy == Policy.LRU) {
+            return eldest(main);
+        }
+        K victim = eldest(probation);
+        if (victim == null) {
+            victim = eldest(main);
+        }
+        if (victim == null) {
+            return eldest(window);
+        }
+        if (candidate != null && !candidate.equals(victim)
+                && sketch.frequency(candidate) <= sketch.frequency(victim)) {
+            return candidate;
+        }
+        return victim;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            if (accesses.get(i) != null) {
+                Object bean = accesses.getAndSet(i, null);
+                if (bean != null) {
+                    accessed((K) bean);
+                }
+            }
+        }
+    }
+
+    private void accessed(K bean) {
+        if (policy == Policy.LRU) {
+            main.get(bean);
+            return;
+        }
+        if (window.containsKey(bean)) {
+            sketch.increment(bean);
+            window.get(bean);
+        } else if (probation.remove(bean) != null) {
+            sketch.increment(bean);
+            main.put(bean, Boolean.TRUE);
+            if (main.size() > protectedSize) {
+                K demoted = eldest(main);
+                main.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        } else if (main.containsKey(bean)) {
+            sketch.increment(bean);
+            main.get(bean);
+        }
+    }
+
+    private static <K> K eldest(LinkedHashMap<K, Boolean> map) {
+        Iterator<K> i = map.keySet().iterator();
+        return i.hasNext() ? i.next() : null;
+    }
+}
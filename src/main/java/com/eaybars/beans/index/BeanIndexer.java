@@ -5,23 +5,56 @@ import static com.eaybars.beans.properties.PropertyIntrospector.*;
 import com.eaybars.beans.events.BeanEvent;
 import com.eaybars.beans.events.NoSuchEventException;
 import com.eaybars.beans.properties.BeanProperty;
+import com.eaybars.beans.properties.NoSuchPropertyException;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoublePredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.management.JMException;
 
 /**
  * BeanIndexer is used to index bean properties and enable searching on those
@@ -33,18 +66,65 @@ import java.util.concurrent.ConcurrentMap;
  * and automatically add properties as sorted or unsorted indexes according to
  * the declared @Index annotations. BeanIndexer constructed via new operator
  * does not search for @Index annotations.
+ * <p>
+ * Optional features such as monitoring, caching, columns, eviction, expiry
+ * and change feeds are turned on by methods of the indexer, and described by
+ * the classes implementing them.
  *
  * @author Ertunc
  * @param <K>
  */
 public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
 
+    /**
+     * Minimum number of beans for building a lazy index in parallel
+     */
+    private static final int PARALLEL_BACKFILL_THRESHOLD = 4096;
+    /**
+     * Minimum number of beans for scanning a predicate in parallel
+     */
+    private static final int PARALLEL_SCAN_THRESHOLD = 4096;
+    /**
+     * Maximum number of collected beans removed from the indexes by add or
+     * filter
+     */
+    private static final int EXPUNGE_BATCH = 256;
+    /**
+     * Maximum number of search results whose retrieval counts as a use of
+     * the beans for eviction
+     */
+    private static final int ACCESS_RESULT_LIMIT = 16;
+
     private CollectionFactory factory;
     private Class<K> beanClass;
     private Set<K> elements;
     private Map<String, Map<Object, Set<K>>> index;
+    private Map<String, PropertyAccessor<K>> accessors;
+    private Map<String, IndexDefinition<K>> lazyIndexes;
+    private Set<String> builtLazyIndexes;
+    private Map<String, Long> lastSearched;
+    private Map<String, Map<K, Collection<?>>> derivedValues;
+    private Set<String> derivedIndexes;
+    private volatile long idleTimeout;
+    private volatile long lastIdleCheck;
+    private volatile IndexMonitor monitor;
+    private volatile QueryCache queryCache;
+    private volatile ChangeFeed<K> changeFeed;
+    private BeanOrdinals ordinals;
+    private final Map<String, IndexTotals> totals = new ConcurrentHashMap<String, IndexTotals>();
+    private final List<MutationListener<K>> mutationListeners = new CopyOnWriteArrayList<MutationListener<K>>();
     private PropertyListener listener;
     private BeanEvent<PropertyChangeListener> beanEvent;
+    private ReferenceQueue<K> collected;
+    private Map<K, BeanReference<K>> references;
+    private Set<BeanReference<K>> liveReferences;
+    private volatile TimerWheel<K> expiry;
+    private volatile long timeToLive;
+    private volatile PropertyAccessor<K> expiryAccessor;
+    private volatile String expiryProperty;
+    private volatile BeanEviction<K> eviction;
+    private volatile boolean frozen;
+    private volatile ColumnStore<K> columns;
 
     /**
      * Create a new thread unsafe BeanIndexer for the given class with no
@@ -68,6 +148,12 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
         this.factory = factory;
         elements = factory.createNewSet();
         index = factory.createNewMap();
+        accessors = factory.createNewMap();
+        lazyIndexes = factory.createNewMap();
+        builtLazyIndexes = factory.createNewSet();
+        lastSearched = factory.createNewMap();
+        derivedValues = factory.createNewMap();
+        derivedIndexes = factory.createNewSet();
         try {
             beanEvent = getBeanEvent(beanClass, PropertyChangeListener.class);
             listener = new PropertyListener();
@@ -75,6 +161,63 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
         }
     }
 
+    /**
+     * Creates a new thread unsafe BeanIndexer with the indexes of the given
+     * schema
+     *
+     * @param schema
+     */
+    public BeanIndexer(IndexSchema<K> schema) {
+        this(schema, CollectionFactory.Predefined.THREAD_UNSAFE.getFactory());
+    }
+
+    /**
+     * Creates a new BeanIndexer with the indexes of the given schema, using
+     * the given factory to generate its backing collections. The bean class is
+     * not introspected; indexed values are read through the accessors of the
+     * schema.
+     *
+     * @param schema
+     * @param factory
+     */
+    public BeanIndexer(IndexSchema<K> schema, CollectionFactory factory) {
+        this(schema, factory, false);
+    }
+
+    /**
+     * Creates a new BeanIndexer for the given schema, using the given factory
+     * to generate its backing collections. In lazy mode, the indexes of the
+     * schema are only registered and each one is built the first time it is
+     * searched.
+     *
+     * @param schema
+     * @param factory
+     * @param lazy
+     */
+    public BeanIndexer(IndexSchema<K> schema, CollectionFactory factory, boolean lazy) {
+        this.beanClass = schema.getBeanClass();
+        this.factory = factory;
+        elements = factory.createNewSet();
+        index = factory.createNewMap();
+        accessors = factory.createNewMap();
+        lazyIndexes = factory.createNewMap();
+        builtLazyIndexes = factory.createNewSet();
+        lastSearched = factory.createNewMap();
+        derivedValues = factory.createNewMap();
+        derivedIndexes = factory.createNewSet();
+        beanEvent = schema.getBeanEvent();
+        if (beanEvent != null) {
+            listener = new PropertyListener();
+        }
+        for (IndexDefinition<K> definition : schema.getIndexes()) {
+            if (lazy) {
+                registerIndex(definition);
+            } else {
+                addIndex(definition);
+            }
+        }
+    }
+
     /**
      * Creates a new tread unsafe BeanIndexer by searching the given class and
      * automatically adding properties as sorted or unsorted indexes according
@@ -87,8 +230,6 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
      * @return
      */
     public static <T> BeanIndexer<T> beanIndexFrom(Class<T> clazz) {
-        BeanIndexer<T> instance = new BeanIndexer<T>(clazz);
-        instance.scanAndAddIndexes(null, false);
         return beanIndexFrom(clazz, CollectionFactory.Predefined.THREAD_UNSAFE.getFactory());
     }
 
@@ -103,75 +244,954 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
      * @return
      */
     public static <T> BeanIndexer<T> beanIndexFrom(Class<T> clazz, CollectionFactory factory) {
-        BeanIndexer<T> instance = new BeanIndexer<T>(clazz, factory);
-        instance.scanAndAddIndexes(null, false);
-        return instance;
+        return new BeanIndexer<T>(IndexSchema.forClass(clazz), factory);
     }
 
+    /**
+     * Creates a new BeanIndexer with the given factory for the indexes
+     * declared on the given class. In lazy mode, each index is built the first
+     * time it is searched, so that adding beans does not maintain indexes
+     * which are never searched.
+     *
+     * @param <T>
+     * @param clazz
+     * @param factory
+     * @param lazy
+     * @return
+     */
+    public static <T> BeanIndexer<T> beanIndexFrom(Class<T> clazz, CollectionFactory factory,
+            boolean lazy) {
+        return new BeanIndexer<T>(IndexSchema.forClass(clazz), factory, lazy);
+    }
+
+    /**
+     * Adds the indexes declared by @Index annotations on the properties of
+     * the given parent property, or of the bean class if parent is null
+     *
+     * @param parent
+     * @param checkBeforeIndexing whether the properties are only indexed if
+     * the class of the parent declares @Index with contents
+     * @deprecated indexes are resolved by IndexSchema.forClass, use
+     * beanIndexFrom or the IndexSchema constructors instead
+     */
+    @Deprecated
     protected void scanAndAddIndexes(BeanProperty parent,
             boolean checkBeforeIndexing) {
-        Class<?> clazz = getPropertyClass(parent);
-        Index classIndex = clazz.getAnnotation(Index.class);
-
-        if (checkBeforeIndexing ? (classIndex != null && classIndex.contents())
-                : true) {
-            for (BeanProperty property : getAllProperties(clazz)) {
-                if (!property.isWriteOnly()) {
-                    Index index = property.getAnnotation(Index.class);
-                    if (index == null ? (classIndex != null && !classIndex
-                            .contents()) : !index.contents()) {
-                        addIndex(parent == null ? property : getProperty(beanClass,
-                                parent.toString() + "." + property));
-                    } else {
-                        scanAndAddIndexes(property, index == null);
+        for (IndexDefinition<K> definition : IndexSchema.scanIndexes(beanClass, parent,
+                checkBeforeIndexing)) {
+            addIndex(definition);
+        }
+    }
+
+    private void registerIndex(IndexDefinition<K> definition) {
+        if (definition.getAccessor() != null) {
+            accessors.put(definition.getProperty(), definition.getAccessor());
+        }
+        trackDerived(definition);
+        lazyIndexes.put(definition.getProperty(), definition);
+    }
+
+    /**
+     * Starts remembering the values of each bean for a derived index of an
+     * observable bean class, so that the bean can be moved to its new values
+     * when any of its properties change
+     */
+    private void trackDerived(IndexDefinition<K> definition) {
+        if (definition.isDerived()) {
+            derivedIndexes.add(definition.getProperty());
+        }
+        if (listener != null && definition.getAccessor() != null && definition.isDerived()) {
+            derivedValues.put(definition.getProperty(), references != null
+                    ? new WeakHashMap<K, Collection<?>>() : factory.createNewMap());
+        }
+    }
+
+    /**
+     * Switches this indexer to refer to its beans through weak references.
+     * The indexer no longer keeps its beans from being garbage collected, and
+     * a collected bean is removed from all indexes the next time a bean is
+     * added, a search is started or expungeCollected is called. Cleanup uses
+     * the index keys remembered for each bean, as the collected bean can no
+     * longer be read. Collected beans are recorded in the change feed without
+     * the bean itself and are not reported to MutationListeners.
+     * <p>
+     * Weak references are only supported by thread unsafe indexers, and
+     * unsorted indexes of a weak indexer do not use bitsets. Beans stay
+     * reachable while they are held by cached search results.
+     *
+     * @return
+     * @throws IllegalStateException if the indexer is not empty, is
+     * concurrent, has columns, expires or evicts its beans
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BeanIndexer<K> enableWeakReferences() throws IllegalStateException {
+        checkNotFrozen();
+        if (references != null) {
+            return this;
+        }
+        if (!elements.isEmpty() || index instanceof ConcurrentMap || columns != null) {
+            throw new IllegalStateException("Weak references require an empty, thread unsafe indexer");
+        } else if (expiry != null) {
+            throw new IllegalStateException("Weak references are not supported with expiry");
+        } else if (eviction != null) {
+            throw new IllegalStateException("Weak references are not supported with eviction");
+        }
+        collected = new ReferenceQueue<K>();
+        references = new WeakHashMap<K, BeanReference<K>>();
+        liveReferences = new HashSet<BeanReference<K>>();
+        elements = Collections.newSetFromMap(new WeakHashMap<K, Boolean>());
+        for (Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
+            if (e.getValue() instanceof BitSetIndexMap) {
+                e.setValue(factory.createNewMap());
+            }
+        }
+        for (Entry<String, Map<K, Collection<?>>> e : derivedValues.entrySet()) {
+            e.setValue(new WeakHashMap<K, Collection<?>>());
+        }
+        return this;
+    }
+
+    /**
+     * Removes the beans which have been garbage collected from the indexes of
+     * a weak indexer
+     *
+     * @return the number of removed beans
+     */
+    public int expungeCollected() {
+        return expungeCollected(Integer.MAX_VALUE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int expungeCollected(int max) {
+        if (collected == null) {
+            return 0;
+        }
+        int count = 0;
+        ChangeFeed<K> feed = changeFeed;
+        for (Reference<? extends K> ref; count < max && (ref = collected.poll()) != null;) {
+            BeanReference<K> reference = (BeanReference<K>) ref;
+            if (!liveReferences.remove(reference)) {
+                continue;
+            }
+            // eviction, expiry and columns are rejected on weak indexers, as
+            // they would hold the beans strongly, so only the indexes refer
+            // to the collected bean
+            for (Entry<String, Collection<?>> e : reference.keys.entrySet()) {
+                Map<Object, Set<K>> map = index.get(e.getKey());
+                if (map == null) {// index removed or dropped since
+                    continue;
+                }
+                IndexTotals t = totals.get(e.getKey());
+                for (Object value : e.getValue()) {
+                    Set<K> posting = map.get(value);
+                    if (posting != null && posting.isEmpty()) {// expunges the stale entries
+                        map.remove(value);
+                    }
+                    if (t != null) {
+                        t.removed(value, 1);
+                    }
+                    if (feed != null) {
+                        feed.publish(ChangeFeed.Operation.REMOVE, null, e.getKey(), value, null);
                     }
                 }
             }
+            count++;
+        }
+        if (count > 0) {
+            beansChanged();
         }
+        return count;
     }
 
-    private BeanIndexer<K> addIndex(BeanProperty property) {
-        Index index = property.getAnnotation(Index.class);
-        Class<?> clazz = getPropertyClass(property);
-        if (index != null) {
-            Comparator<?> comparator;
-            if (index.sorted() || !Comparator.class.equals(index.comparator())) {
-                if (!index.sorted()) {
-                    try {
-                        comparator = index.comparator().newInstance();
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                } else if (!isSortable(clazz)) {
-                    throw new IllegalArgumentException("Type of the property "
-                            + property.toString() + " ("
-                            + clazz.getSimpleName() + ") is not sortable");
-                } else {
-                    comparator = null;
+    /**
+     * Bounds the number of beans of this indexer, replacing any previous
+     * bound. Beans are evicted immediately if the indexer is larger.
+     *
+     * @param maximumSize
+     * @param policy LRU or LFU
+     * @return the eviction state of the indexer
+     * @throws IllegalArgumentException for LOWEST_VALUE, which requires a
+     * sorted index
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    public BeanEviction<K> enableEviction(int maximumSize, BeanEviction.Policy policy)
+            throws IllegalArgumentException, IllegalStateException {
+        if (policy == BeanEviction.Policy.LOWEST_VALUE) {
+            throw new IllegalArgumentException("Lowest value eviction requires a sorted index");
+        }
+        return enableEviction(new BeanEviction<K>(maximumSize, policy, null));
+    }
+
+    /**
+     * Bounds the number of beans of this indexer, evicting the beans with the
+     * lowest values of the given sorted index first, and replacing any
+     * previous bound
+     *
+     * @param maximumSize
+     * @param property
+     * @return the eviction state of the indexer
+     * @throws IllegalArgumentException if no such sorted index exists
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    public BeanEviction<K> enableEviction(int maximumSize, final String property)
+            throws IllegalArgumentException, IllegalStateException {
+        getSortedIndex(property);
+        return enableEviction(new BeanEviction<K>(maximumSize, BeanEviction.Policy.LOWEST_VALUE, () -> {
+            for (Set<K> posting : getSortedIndex(property).values()) {
+                for (K bean : posting) {
+                    return bean;
                 }
-                addSortedIndex(property.toString(), comparator);
+            }
+            return null;
+        }));
+    }
+
+    private BeanEviction<K> enableEviction(BeanEviction<K> bound) {
+        checkNotFrozen();
+        checkNotWeak("Eviction");
+        for (K bean : elements) {
+            bound.added(bean);
+        }
+        eviction = bound;
+        evict(bound);
+        return bound;
+    }
+
+    /**
+     * Removes the bound on the number of beans
+     */
+    public void disableEviction() {
+        eviction = null;
+    }
+
+    /**
+     * Retrieves the eviction state of this indexer
+     *
+     * @return null if eviction is not enabled
+     */
+    public BeanEviction<K> getEviction() {
+        return eviction;
+    }
+
+    private void evict(BeanEviction<K> bound) {
+        while (elements.size() > bound.getMaximumSize()) {
+            K victim = bound.victim();
+            if (victim == null) {
+                return;
+            } else if (remove(victim)) {
+                bound.evicted();
             } else {
-                addUnsortedIndex(property.toString());
+                bound.removed(victim);
             }
+        }
+    }
+
+    /**
+     * Keeps the values of the given numeric properties of the beans in
+     * primitive columns, replacing any previous columns. A property can be a
+     * bean property or the name of a derived index, whose values are read
+     * again whenever a property of an observable bean changes. Values of
+     * another type found later are held as NaN.
+     *
+     * @param properties
+     * @return the column store of the indexer
+     * @throws NoSuchPropertyException if the bean class has no such property
+     * @throws IllegalArgumentException if no property is given, or if a value
+     * of a property is neither a Number nor a Date
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized ColumnStore<K> enableColumns(String... properties)
+            throws NoSuchPropertyException, IllegalArgumentException, IllegalStateException {
+        if (properties.length == 0) {
+            throw new IllegalArgumentException("No property given for the columns");
+        }
+        checkNotWeak("Columns");
+        PropertyAccessor<K>[] columnAccessors = new PropertyAccessor[properties.length];
+        boolean[] derived = new boolean[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            columnAccessors[i] = accessorFor(properties[i]);
+            derived[i] = derivedIndexes.contains(properties[i]);
+        }
+        ColumnStore<K> store = new ColumnStore<K>(properties.clone(), columnAccessors, derived);
+        store.load(elements);
+        columns = store;
+        return store;
+    }
+
+    /**
+     * Drops the columns of this indexer
+     */
+    public void disableColumns() {
+        columns = null;
+    }
+
+    /**
+     * Retrieves the column store of this indexer
+     *
+     * @return null if columns are not enabled
+     */
+    public ColumnStore<K> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Expires each bean the given time after it is added to this indexer,
+     * replacing any previous expiry. The beans of the indexer expire the given
+     * time after this call.
+     *
+     * @param timeToLive
+     * @param unit
+     * @return
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    public BeanIndexer<K> expireAfter(long timeToLive, TimeUnit unit) throws IllegalStateException {
+        checkNotFrozen();
+        checkNotWeak("Expiry");
+        this.expiryAccessor = null;
+        this.expiryProperty = null;
+        this.timeToLive = unit.toMillis(timeToLive);
+        startExpiry();
+        return this;
+    }
+
+    /**
+     * Expires each bean at the time held by the given property, replacing any
+     * previous expiry. The property holds the expiry time either as a Date or
+     * as a Number of milliseconds since the epoch, a bean whose property is
+     * null does not expire. The expiry time is updated when the property of
+     * an observable bean changes.
+     *
+     * @param property
+     * @return
+     * @throws NoSuchPropertyException if the bean class has no such property
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    public BeanIndexer<K> expireAt(String property)
+            throws NoSuchPropertyException, IllegalStateException {
+        checkNotFrozen();
+        checkNotWeak("Expiry");
+        this.expiryAccessor = accessorFor(property);
+        this.expiryProperty = property;
+        this.timeToLive = 0;
+        startExpiry();
+        return this;
+    }
+
+    /**
+     * Rejects a feature which would keep the beans of a weak indexer
+     * reachable
+     */
+    private void checkNotWeak(String feature) {
+        if (references != null) {
+            throw new IllegalStateException(feature + " is not supported with weak references");
+        }
+    }
+
+    private void startExpiry() {
+        TimerWheel<K> wheel = new TimerWheel<K>(System.currentTimeMillis());
+        expiry = wheel;
+        for (K bean : elements) {
+            scheduleExpiry(wheel, bean);
+        }
+    }
+
+    private void scheduleExpiry(TimerWheel<K> wheel, K bean) {
+        PropertyAccessor<K> accessor = expiryAccessor;
+        if (accessor == null) {
+            wheel.schedule(bean, System.currentTimeMillis() + timeToLive);
+            return;
+        }
+        Object time = accessor.getValue(bean);
+        if (time == null) {
+            wheel.cancel(bean);
         } else {
-            index = clazz.getAnnotation(Index.class);
-            if (index == null || !index.sorted() || !isSortable(clazz)) {
-                addUnsortedIndex(property.toString());
-            } else {
-                addSortedIndex(property.toString(), null);
+            wheel.schedule(bean, time instanceof Date ? ((Date) time).getTime() : ((Number) time).longValue());
+        }
+    }
+
+    /**
+     * Removes the beans which have expired from this indexer. For concurrent
+     * indexers, this can be called periodically from a background thread.
+     *
+     * @return the number of removed beans
+     */
+    @SuppressWarnings("unchecked")
+    public int expire() {
+        TimerWheel<K> wheel = expiry;
+        if (wheel == null) {
+            return 0;
+        }
+        List<K> expired = new ArrayList<K>();
+        wheel.advance(System.currentTimeMillis(), expired);
+        if (expired.isEmpty()) {
+            return 0;
+        }
+        List<K> removed = new ArrayList<K>(expired.size());
+        for (K bean : expired) {
+            if (elements.remove(bean)) {
+                removed.add(bean);
+            }
+        }
+        removeImpl(removed);
+        for (K bean : removed) {
+            for (MutationListener<K> l : mutationListeners) {
+                l.beanRemoved(bean);
             }
         }
+        return removed.size();
+    }
+
+    /**
+     * Converts the indexes of this indexer into compact immutable arrays,
+     * after which the indexer can only be searched. Lazy indexes are built,
+     * sorted indexes keep their keys in sorted arrays searched by binary
+     * search, unsorted indexes keep them in open addressed hash tables, and
+     * the beans of each key are kept as a sorted array of bean ordinals.
+     * <p>
+     * The indexer stops listening to the property changes of its beans, and
+     * eviction and expiry are disabled. Changing a frozen indexer or its
+     * indexes throws an UnsupportedOperationException. Freezing must not run
+     * concurrently with changes to the indexer.
+     *
+     * @return
+     * @throws IllegalStateException if the indexer uses weak references
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized BeanIndexer<K> freeze() throws IllegalStateException {
+        if (frozen) {
+            return this;
+        }
+        if (references != null) {
+            throw new IllegalStateException("An indexer with weak references cannot be frozen");
+        }
+        synchronized (lazyIndexes) {
+            for (IndexDefinition<K> lazy : new ArrayList<IndexDefinition<K>>(lazyIndexes.values())) {
+                if (!builtLazyIndexes.contains(lazy.getProperty())) {
+                    buildLazyIndex(lazy);
+                }
+            }
+            lazyIndexes.clear();
+            builtLazyIndexes.clear();
+            lastSearched.clear();
+        }
+        if (listener != null) {
+            for (K element : elements) {
+                removeListener(element);
+            }
+            listener = null;
+        }
+        BeanOrdinals frozenOrdinals = new BeanOrdinals();
+        int[] all = new int[elements.size()];
+        int count = 0;
+        for (K element : elements) {
+            all[count++] = frozenOrdinals.acquire(element);
+        }
+        for (String property : new ArrayList<String>(index.keySet())) {
+            Map<Object, Set<K>> map = index.get(property);
+            index.put(property, map instanceof NavigableMap<?, ?>
+                    ? new FrozenSortedIndexMap<K>((NavigableMap<Object, Set<K>>) map, frozenOrdinals)
+                    : new FrozenHashIndexMap<K>(map, frozenOrdinals));
+            releaseIndex(map);
+        }
+        elements = new FrozenPostingSet<K>(frozenOrdinals, Arrays.copyOf(all, count));
+        ordinals = frozenOrdinals;
+        derivedValues.clear();
+        expiry = null;
+        eviction = null;
+        frozen = true;
+        beansChanged();
+        return this;
+    }
+
+    /**
+     * @return whether this indexer has been frozen
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Indexer is frozen");
+        }
+    }
+
+    /**
+     * Weak reference to a bean of a weak indexer remembering the keys of the
+     * bean in each index
+     */
+    private static final class BeanReference<K> extends WeakReference<K> {
+
+        final Map<String, Collection<?>> keys = new HashMap<String, Collection<?>>();
+
+        BeanReference(K bean, ReferenceQueue<? super K> queue) {
+            super(bean, queue);
+        }
+    }
+
+    /**
+     * Sets the time after which a lazy index that has not been searched is
+     * dropped. A dropped index is built again when it is searched. A timeout
+     * of zero, which is the default, keeps lazy indexes once they are built.
+     *
+     * @param timeout
+     * @param unit
+     * @return
+     */
+    public BeanIndexer<K> setIdleIndexTimeout(long timeout, TimeUnit unit) {
+        idleTimeout = unit.toMillis(timeout);
         return this;
     }
 
-    private Class<?> getPropertyClass(BeanProperty parent) {
-        return parent == null ? beanClass
-                : (parent.isCollectionOrArrayType() ? parent
-                        .getCollectionOrArrayType() : parent.getPropertyType());
+    /**
+     * Checks whether the index of the given property is currently built. An
+     * index added eagerly is always built, a lazy index is built once it is
+     * searched.
+     *
+     * @param property
+     * @return
+     */
+    public boolean isIndexBuilt(String property) {
+        return lazyIndexes.containsKey(property)
+                ? builtLazyIndexes.contains(property) : index.containsKey(property);
+    }
+
+    /**
+     * Retrieves the index of the given property for searching, building it
+     * first if it is a lazy index
+     */
+    Map<Object, Set<K>> getIndex(String property) {
+        IndexDefinition<K> lazy = lazyIndexes.get(property);
+        if (lazy == null) {
+            return index.get(property);
+        }
+        lastSearched.put(property, System.currentTimeMillis());
+        Map<Object, Set<K>> map = builtLazyIndexes.contains(property)
+                ? index.get(property) : buildLazyIndex(lazy);
+        dropIdleIndexes();
+        return map;
+    }
+
+    private Map<Object, Set<K>> buildLazyIndex(IndexDefinition<K> definition) {
+        synchronized (lazyIndexes) {
+            String property = definition.getProperty();
+            Map<Object, Set<K>> map = index.get(property);
+            if (map == null) {
+                map = definition.isSorted()
+                        ? factory.createNewNavigableMap(definition.getComparator())
+                        : definition.isEncoded() ? new EncodedIndexMap<K>()
+                        : createUnsortedMap(definition.getValueType());
+                if (definition.isSorted()) {
+                    totals.put(property, new IndexTotals());
+                }
+                index.put(property, map);
+                backfill(property, map);
+            }
+            builtLazyIndexes.add(property);
+            return map;
+        }
+    }
+
+    /**
+     * Indexes the current elements on the given index. Property values are
+     * retrieved in parallel for large indexers and added to the index map
+     * from the calling thread. The index is published before the elements
+     * are copied, so a bean added meanwhile is indexed by add, while a bean
+     * removed meanwhile is taken out again by backfillValues.
+     */
+    @SuppressWarnings("unchecked")
+    private void backfill(final String property, Map<Object, Set<K>> map) {
+        final Object[] beans = elements.toArray();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (beans.length < PARALLEL_BACKFILL_THRESHOLD || parallelism < 2) {
+            for (Object bean : beans) {
+                backfillValues(property, map, (K) bean,
+                        retrievePropertyValueAsCollection(property, bean));
+            }
+            return;
+        }
+        int chunk = (beans.length + parallelism - 1) / parallelism;
+        List<Future<Collection<?>[]>> futures = new LinkedList<Future<Collection<?>[]>>();
+        for (int i = 0; i < beans.length; i += chunk) {
+            final int from = i;
+            final int to = Math.min(beans.length, i + chunk);
+            futures.add(BackfillExecutor.INSTANCE.submit(new Callable<Collection<?>[]>() {
+
+                @Override
+                public Collection<?>[] call() {
+                    Collection<?>[] values = new Collection<?>[to - from];
+                    for (int j = from; j < to; j++) {
+                        values[j - from] = retrievePropertyValueAsCollection(property, beans[j]);
+                    }
+                    return values;
+                }
+            }));
+        }
+        int offset = 0;
+        for (Future<Collection<?>[]> future : futures) {
+            Collection<?>[] values;
+            try {
+                values = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException
+                        ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+            }
+            for (int j = 0; j < values.length; j++) {
+                backfillValues(property, map, (K) beans[offset + j], values[j]);
+            }
+            offset += values.length;
+        }
+    }
+
+    /**
+     * Indexes a bean of a backfill, undoing it if the bean has been removed
+     * from a concurrent indexer since the elements were copied, as the
+     * remove may have run before the bean was indexed
+     */
+    private void backfillValues(String property, Map<Object, Set<K>> map, K bean,
+            Collection<?> values) {
+        indexValues(property, map, bean, values);
+        if (!elements.contains(bean)) {
+            Map<K, Collection<?>> tracked = derivedValues.get(property);
+            if (tracked != null) {
+                tracked.remove(bean);
+            }
+            for (Object value : values) {
+                removeFromMap(property, map, value, bean);
+            }
+        }
+    }
+
+    private void dropIdleIndexes() {
+        long timeout = idleTimeout;
+        long now = System.currentTimeMillis();
+        if (timeout > 0 && now - lastIdleCheck >= timeout / 2) {
+            lastIdleCheck = now;
+            for (Iterator<Entry<String, Long>> i = lastSearched.entrySet().iterator(); i.hasNext();) {
+                Entry<String, Long> e = i.next();
+                if (now - e.getValue() > timeout) {
+                    Map<Object, Set<K>> dropped;
+                    synchronized (lazyIndexes) {
+                        builtLazyIndexes.remove(e.getKey());
+                        dropped = index.remove(e.getKey());
+                    }
+                    totals.remove(e.getKey());
+                    releaseIndex(dropped);
+                    Map<K, Collection<?>> tracked = derivedValues.get(e.getKey());
+                    if (tracked != null) {
+                        tracked.clear();
+                    }
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts collecting usage statistics of this indexer, if not already
+     * started
+     *
+     * @return the monitor collecting the statistics
+     */
+    public synchronized IndexMonitor enableMonitoring() {
+        if (monitor == null) {
+            monitor = new IndexMonitor(this);
+        }
+        return monitor;
+    }
+
+    /**
+     * Stops collecting usage statistics. The monitor is unregistered from
+     * the MBean server if it has been registered.
+     */
+    public synchronized void disableMonitoring() {
+        if (monitor != null) {
+            try {
+                monitor.unregisterMBean();
+            } catch (JMException e) {
+                throw new RuntimeException(e);
+            }
+            monitor = null;
+        }
+    }
+
+    /**
+     * Retrieves the monitor collecting usage statistics of this indexer
+     *
+     * @return null if monitoring is not enabled
+     */
+    public IndexMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Starts caching the results of the searches started with filter(). A
+     * search step whose result is cached, including all the steps before it,
+     * costs a lookup in the cache as long as no bean is added to or removed
+     * from this indexer, and no property used by the search changes.
+     * <p>
+     * Search results restored from or put into the cache are shared, so the
+     * sets returned by Search.results() are unmodifiable while the cache is
+     * enabled.
+     *
+     * @param maximumSize maximum number of cached search results
+     * @param eviction policy to evict results when the cache is full
+     * @return the cache, replacing the current one if any
+     */
+    public QueryCache enableQueryCache(int maximumSize, QueryCache.Eviction eviction) {
+        QueryCache cache = new QueryCache(maximumSize, eviction);
+        queryCache = cache;
+        return cache;
+    }
+
+    /**
+     * Stops caching search results and drops the cached results
+     */
+    public void disableQueryCache() {
+        queryCache = null;
+    }
+
+    /**
+     * Retrieves the cache of search results
+     *
+     * @return null if query cache is not enabled
+     */
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Starts recording the changes of the indexes in a ChangeFeed. Adding a
+     * bean records an event for each key it enters, removing a bean for each
+     * key it leaves, and a property change for the keys of the changed index
+     * and of the derived indexes. Building or removing an index records no
+     * event.
+     *
+     * @param capacity number of events kept for the subscribers
+     * @return the feed, replacing the current one if any
+     */
+    public ChangeFeed<K> enableChangeFeed(int capacity) {
+        ChangeFeed<K> feed = new ChangeFeed<K>(capacity);
+        changeFeed = feed;
+        return feed;
+    }
+
+    /**
+     * Stops recording the changes of the indexes
+     */
+    public void disableChangeFeed() {
+        changeFeed = null;
+    }
+
+    /**
+     * Retrieves the feed recording the changes of the indexes
+     *
+     * @return null if change feed is not enabled
+     */
+    public ChangeFeed<K> getChangeFeed() {
+        return changeFeed;
     }
 
-    private boolean isSortable(Class<?> clazz) {
-        return clazz.isPrimitive() || Comparable.class.isAssignableFrom(clazz);
+    /**
+     * Registers a listener to be notified of the beans added, removed or
+     * changed
+     *
+     * @param listener
+     */
+    public void addMutationListener(MutationListener<K> listener) {
+        mutationListeners.add(listener);
+    }
+
+    /**
+     * Unregisters the given listener
+     *
+     * @param listener
+     */
+    public void removeMutationListener(MutationListener<K> listener) {
+        mutationListeners.remove(listener);
+    }
+
+    private void indexChanged(String property) {
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            cache.indexChanged(property);
+        }
+    }
+
+    private void beansChanged() {
+        QueryCache cache = queryCache;
+        if (cache != null) {
+            cache.beansChanged();
+        }
+    }
+
+    /**
+     * Retrieves the index of the given property without building lazy
+     * indexes
+     */
+    Map<Object, Set<K>> getBuiltIndex(String property) {
+        return index.get(property);
+    }
+
+    /**
+     * Adds the given bean without indexing it, used when the indexes are
+     * restored from a snapshot. The bean is tracked like an added bean,
+     * while its events are fired once the restore completes.
+     */
+    boolean restoreBean(K bean) {
+        checkNotFrozen();
+        if (elements.add(bean)) {
+            registerBean(bean);
+            TimerWheel<K> wheel = expiry;
+            if (wheel != null) {
+                scheduleExpiry(wheel, bean);
+            }
+            ColumnStore<K> store = columns;
+            if (store != null) {
+                store.added(bean);
+            }
+            BeanEviction<K> bound = eviction;
+            if (bound != null) {
+                bound.added(bean);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the given property of a bean of this indexer to the given value.
+     * An observed bean is moved to its new values by the property listener,
+     * other beans are indexed again.
+     */
+    void setProperty(K bean, BeanProperty property, Object value)
+            throws InvocationTargetException {
+        checkNotFrozen();
+        if (listener != null) {
+            property.setValue(bean, value);
+        } else {
+            boolean indexed = remove(bean);
+            property.setValue(bean, value);
+            if (indexed) {
+                add(bean);
+            }
+        }
+    }
+
+    /**
+     * Puts the given restored beans to the given built index
+     */
+    void restorePosting(Map<Object, Set<K>> map, Object key, Collection<K> beans) {
+        if (!beans.isEmpty()) {
+            Set<K> set = createPostingSet();
+            set.addAll(beans);
+            map.put(key, set);
+        }
+    }
+
+    /**
+     * Completes a restore by indexing the beans for the built indexes which
+     * were not restored
+     */
+    @SuppressWarnings("unchecked")
+    void restored(Set<String> restoredIndexes) {
+        for (Map.Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
+            IndexTotals t = totals.get(e.getKey());
+            if (t != null && restoredIndexes.contains(e.getKey())) {// filled by restorePosting
+                t.recount(e.getValue());
+            }
+            if (!restoredIndexes.contains(e.getKey())) {
+                backfill(e.getKey(), e.getValue());
+                indexChanged(e.getKey());
+            } else if (derivedValues.containsKey(e.getKey())) {
+                Map<K, Collection<?>> tracked = derivedValues.get(e.getKey());
+                for (K bean : elements) {
+                    tracked.put(bean, intern(e.getValue(),
+                            retrievePropertyValueAsCollection(e.getKey(), bean)));
+                }
+            }
+        }
+        ChangeFeed<K> feed = changeFeed;
+        for (Map.Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
+            boolean restoredIndex = restoredIndexes.contains(e.getKey());
+            if (feed == null && (references == null || !restoredIndex)) {
+                continue;
+            }
+            for (Map.Entry<Object, Set<K>> posting : e.getValue().entrySet()) {
+                for (K bean : posting.getValue()) {
+                    if (feed != null) {
+                        feed.publish(ChangeFeed.Operation.ADD, bean, e.getKey(), null, posting.getKey());
+                    }
+                    BeanReference<K> reference = references == null || !restoredIndex
+                            ? null : references.get(bean);
+                    if (reference != null) {// backfilled indexes have remembered their keys
+                        Collection<Object> keys = (Collection<Object>) reference.keys.get(e.getKey());
+                        if (keys == null) {
+                            reference.keys.put(e.getKey(), keys = new ArrayList<Object>());
+                        }
+                        keys.add(posting.getKey());
+                    }
+                }
+            }
+        }
+        beansChanged();
+        for (K bean : elements) {
+            for (MutationListener<K> l : mutationListeners) {
+                l.beanAdded(bean);
+            }
+        }
+        BeanEviction<K> bound = eviction;
+        if (bound != null) {
+            evict(bound);
+        }
+    }
+
+    /**
+     * Adds an index on the values computed from the beans by the given
+     * extractor, which is called directly instead of reading a bean
+     * property. The index is searched with the given name like a property
+     * index. Values of the beans which fire property change events are
+     * recomputed when any of their properties change.
+     *
+     * @param name
+     * @param extractor
+     * @param sorted whether to index the values as sorted, which requires
+     * the values to be Comparable
+     * @return
+     * @throws IllegalStateException if an index with the given name already
+     * exists
+     */
+    public BeanIndexer<K> addIndex(String name, Function<? super K, ?> extractor,
+            boolean sorted) throws IllegalStateException {
+        checkNotFrozen();
+        if (index.containsKey(name) || lazyIndexes.containsKey(name)) {
+            throw new IllegalStateException("An index for the property already exists: "
+                    + name);
+        }
+        PropertyAccessor<K> accessor = extractor::apply;
+        addIndex((sorted ? IndexDefinition.sorted(name, null, accessor)
+                : IndexDefinition.unsorted(name, accessor)).asDerived());
+        return this;
+    }
+
+    private void addIndex(IndexDefinition<K> definition) {
+        if (definition.getAccessor() != null) {
+            accessors.put(definition.getProperty(), definition.getAccessor());
+        }
+        if (!derivedValues.containsKey(definition.getProperty())) {
+            trackDerived(definition);
+        }
+        if (definition.isSorted()) {
+            addSortedIndex(definition.getProperty(), definition.getComparator());
+        } else if (definition.isEncoded()) {
+            addEncodedIndex(definition.getProperty());
+        } else {
+            addUnsortedIndex(definition.getProperty(), createUnsortedMap(definition.getValueType()));
+        }
     }
 
     /**
@@ -186,8 +1206,10 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
     @SuppressWarnings({"unchecked", "rawtypes"})
     public BeanIndexer<K> addSortedIndex(String property,
             Comparator<?> comparator) {
+        checkNotFrozen();
         Map<Object, Set<K>> holder = index.get(property);
         if (holder == null) {
+            ((ConcurrentMap<String, IndexTotals>) totals).putIfAbsent(property, new IndexTotals());
             if (index instanceof ConcurrentMap) {
                 ((ConcurrentMap<String, Map<Object, Set<K>>>) index).putIfAbsent(property, factory.createNewNavigableMap(comparator));
             } else {
@@ -202,6 +1224,7 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
             }
         }
         indexBeans(property, elements);
+        indexChanged(property);
         return this;
 
     }
@@ -216,12 +1239,67 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
      * @return
      */
     public BeanIndexer<K> addUnsortedIndex(String property) {
+        return addUnsortedIndex(property, createUnsortedMap(singleValuedType(property)));
+    }
+
+    /**
+     * @param valueType the type of the values if a bean has a single value
+     * for the index, null otherwise
+     */
+    private Map<Object, Set<K>> createUnsortedMap(Class<?> valueType) {
+        Class<?> type = index instanceof ConcurrentMap || references != null
+                ? null : valueType;
+        if (type != null && BitSetIndexMap.isLowCardinality(type)) {
+            if (ordinals == null) {
+                ordinals = new BeanOrdinals();
+            }
+            return new BitSetIndexMap<K>(type, ordinals);
+        }
+        return factory.createNewMap();
+    }
+
+    /**
+     * @return null if the property may have multiple values for a bean
+     */
+    private Class<?> singleValuedType(String property) {
+        BeanProperty bProperty;
+        try {
+            bProperty = getProperty(beanClass, property);
+        } catch (NoSuchPropertyException e) {
+            return null;
+        }
+        for (BeanProperty p = bProperty; p != null; p = p.getParent()) {
+            if (p.isCollectionOrArrayType()) {
+                return null;
+            }
+        }
+        return bProperty.getPropertyType();
+    }
+
+    /**
+     * Adds a dictionary encoded unsorted index on the given property. Each
+     * distinct value of the property is stored once and assigned an int code
+     * which locates its beans, and the values remembered for each bean refer
+     * to that stored instance, which suits properties with many repeating
+     * values. An encoded index is not thread safe. If an unsorted index
+     * already exists, no action is taken. If a sorted index already exist, an
+     * IllegalStateException is thrown
+     *
+     * @param property
+     * @return
+     */
+    public BeanIndexer<K> addEncodedIndex(String property) {
+        return addUnsortedIndex(property, new EncodedIndexMap<K>());
+    }
+
+    private BeanIndexer<K> addUnsortedIndex(String property, Map<Object, Set<K>> map) {
+        checkNotFrozen();
         Map<Object, Set<K>> holder = index.get(property);
         if (holder == null) {
             if (index instanceof ConcurrentMap) {
-                ((ConcurrentMap<String, Map<Object, Set<K>>>) index).putIfAbsent(property, factory.createNewMap());
+                ((ConcurrentMap<String, Map<Object, Set<K>>>) index).putIfAbsent(property, map);
             } else {
-                index.put(property, factory.createNewMap());
+                index.put(property, map);
             }
         } else {
             if (!(holder instanceof NavigableMap<?, ?>)) {
@@ -232,6 +1310,7 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
             }
         }
         indexBeans(property, elements);
+        indexChanged(property);
         return this;
     }
 
@@ -243,7 +1322,18 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
      * @return
      */
     public BeanIndexer<K> removeIndex(String property) {
-        index.remove(property);
+        checkNotFrozen();
+        synchronized (lazyIndexes) {
+            lazyIndexes.remove(property);
+            builtLazyIndexes.remove(property);
+            lastSearched.remove(property);
+        }
+        releaseIndex(index.remove(property));
+        accessors.remove(property);
+        derivedValues.remove(property);
+        derivedIndexes.remove(property);
+        totals.remove(property);
+        indexChanged(property);
         return this;
     }
 
@@ -254,36 +1344,247 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
         }
     }
 
-    private void indexBean(String property, Map<Object, Set<K>> map, K element) {
-        for (Object o : retrievePropertyValueAsCollection(property, element)) {
-            addToMap(map, o, element);
+    private Collection<?> indexBean(String property, Map<Object, Set<K>> map, K element) {
+        Collection<?> values = retrievePropertyValueAsCollection(property, element);
+        indexValues(property, map, element, values);
+        return values;
+    }
+
+    private void indexValues(String property, Map<Object, Set<K>> map, K element,
+            Collection<?> values) {
+        for (Object o : values) {
+            addToMap(property, map, o, element);
+        }
+        Map<K, Collection<?>> tracked = derivedValues.get(property);
+        if (tracked != null) {
+            tracked.put(element, intern(map, values));
+        }
+        if (references != null) {
+            BeanReference<K> reference = references.get(element);
+            if (reference != null) {
+                reference.keys.put(property, intern(map, values));
+            }
+        }
+    }
+
+    /**
+     * Copies the given values of a bean to be remembered, replacing them
+     * with their instances stored in a dictionary encoded index
+     */
+    private List<Object> intern(Map<Object, Set<K>> map, Collection<?> values) {
+        List<Object> copy = new ArrayList<Object>(values.size());
+        for (Object value : values) {
+            copy.add(map instanceof EncodedIndexMap<?>
+                    ? ((EncodedIndexMap<?>) map).intern(value) : value);
+        }
+        return copy;
+    }
+
+    /**
+     * Moves the given bean to its current values on the given derived index
+     */
+    private void updateDerived(String property, Map<K, Collection<?>> tracked, K bean) {
+        Map<Object, Set<K>> map = index.get(property);
+        if (map == null) {// lazy index which is not built
+            return;
+        }
+        Collection<?> old = tracked.get(bean);
+        Collection<?> values = retrievePropertyValueAsCollection(property, bean);
+        if (old != null && old.equals(new ArrayList<Object>(values))) {
+            return;
+        }
+        if (old != null) {
+            for (Object value : old) {
+                removeFromMap(property, map, value, bean);
+            }
+        }
+        indexValues(property, map, bean, values);
+        indexChanged(property);
+        ChangeFeed<K> feed = changeFeed;
+        if (feed != null) {
+            publishUpdate(feed, bean, property, old == null ? Collections.emptyList() : old, values);
+        }
+        IndexMonitor m = monitor;
+        if (m != null) {
+            m.indexUpdated(property);
+        }
+    }
+
+    /**
+     * Records the move of a bean between the keys of an index, pairing the
+     * keys of single valued indexes
+     */
+    private void publishUpdate(ChangeFeed<K> feed, K bean, String property,
+            Collection<?> oldValues, Collection<?> newValues) {
+        if (oldValues.size() == 1 && newValues.size() == 1) {
+            feed.publish(ChangeFeed.Operation.UPDATE, bean, property,
+                    oldValues.iterator().next(), newValues.iterator().next());
+            return;
+        }
+        for (Object value : oldValues) {
+            feed.publish(ChangeFeed.Operation.UPDATE, bean, property, value, null);
+        }
+        for (Object value : newValues) {
+            feed.publish(ChangeFeed.Operation.UPDATE, bean, property, null, value);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void removeFromMap(String property, Map<Object, Set<K>> map, Object value,
+            Object element) {
+        if (map instanceof EncodedIndexMap<?>) {
+            EncodedIndexMap<K> encoded = (EncodedIndexMap<K>) map;
+            int code = encoded.codeOf(value);
+            if (code >= 0) {
+                Set<K> posting = encoded.postingOf(code);
+                posting.remove(element);
+                if (posting.isEmpty()) {
+                    encoded.release(code);
+                }
+            }
+            return;
+        }
+        Set<K> elementSet = map.get(value);
+        if (elementSet != null) {//if no more element exists for the given index value 
+            //or element has been modified after indexing is done
+            if (elementSet.remove(element) && map instanceof NavigableMap<?, ?>) {
+                IndexTotals t = totals.get(property);
+                if (t != null) {
+                    t.removed(value, 1);
+                }
+            }
+            if (elementSet.isEmpty()) {
+                if (map instanceof ConcurrentMap) {
+                    ((ConcurrentMap) map).remove(value, Collections.emptySet());
+                } else {
+                    map.remove(value);
+                }
+            }
+        }
+    }
+
+    private Set<K> createPostingSet() {
+        if (references != null) {
+            return Collections.newSetFromMap(new WeakHashMap<K, Boolean>());
+        }
+        return factory instanceof OffHeapCollectionFactory
+                ? ((OffHeapCollectionFactory) factory).<K>createPostingSet()
+                : factory.createNewSet();
+    }
+
+    /**
+     * Releases the off-heap posting lists of a removed index. Heap indexes
+     * are left intact for the searches which may still be using them.
+     */
+    private void releaseIndex(Map<Object, Set<K>> map) {
+        if (map != null && factory instanceof OffHeapCollectionFactory) {
+            releasePostings(map);
+            map.clear();
+        }
+    }
+
+    /**
+     * Releases the memory of the off-heap posting lists of the given index,
+     * before the index is cleared. A posting list emptied by removing its
+     * beans releases its memory itself.
+     */
+    private void releasePostings(Map<Object, Set<K>> map) {
+        if (factory instanceof OffHeapCollectionFactory) {
+            for (Set<K> posting : map.values()) {
+                OffHeapCollectionFactory.release(posting);
+            }
         }
     }
 
-    private void addToMap(Map<Object, Set<K>> map, Object key, K element) {
+    private void addToMap(String property, Map<Object, Set<K>> map, Object key, K element) {
+        if (map instanceof BitSetIndexMap<?>) {
+            ((BitSetIndexMap<K>) map).add(key, element);
+            return;
+        } else if (map instanceof EncodedIndexMap<?>) {
+            EncodedIndexMap<K> encoded = (EncodedIndexMap<K>) map;
+            int code = encoded.codeOf(key);
+            if (code < 0) {
+                code = encoded.encode(key, createPostingSet());
+            }
+            encoded.postingOf(code).add(element);
+            return;
+        }
         Set<K> collection = map.get(key);
         if (collection == null) {
             if (map instanceof ConcurrentMap) {
-                collection = ((ConcurrentMap<Object, Set<K>>) map).putIfAbsent(key, factory.createNewSet());
+                Set<K> created = createPostingSet();
+                collection = ((ConcurrentMap<Object, Set<K>>) map).putIfAbsent(key, created);
+                if (collection == null) {
+                    collection = created;
+                }
             } else {
-                map.put(key, collection = factory.createNewSet());
+                map.put(key, collection = createPostingSet());
+            }
+        }
+        if (collection.add(element) && map instanceof NavigableMap<?, ?>) {
+            IndexTotals t = totals.get(property);
+            if (t != null) {
+                t.added(key, 1);
             }
         }
-        collection.add(element);
     }
 
     @Override
     public boolean add(K bean) {
+        checkNotFrozen();
+        dropIdleIndexes();
+        expungeCollected(EXPUNGE_BATCH);
+        expire();
         if (elements.add(bean)) {
-            addListener(bean);
+            registerBean(bean);
+            IndexMonitor m = monitor;
+            ChangeFeed<K> feed = changeFeed;
             for (Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
-                indexBean(e.getKey(), e.getValue(), bean);
+                Collection<?> values = indexBean(e.getKey(), e.getValue(), bean);
+                if (m != null) {
+                    m.indexUpdated(e.getKey());
+                }
+                if (feed != null) {
+                    for (Object value : values) {
+                        feed.publish(ChangeFeed.Operation.ADD, bean, e.getKey(), null, value);
+                    }
+                }
+            }
+            TimerWheel<K> wheel = expiry;
+            if (wheel != null) {
+                scheduleExpiry(wheel, bean);
+            }
+            ColumnStore<K> store = columns;
+            if (store != null) {
+                store.added(bean);
+            }
+            beansChanged();
+            for (MutationListener<K> l : mutationListeners) {
+                l.beanAdded(bean);
+            }
+            BeanEviction<K> bound = eviction;
+            if (bound != null) {
+                bound.added(bean);
+                evict(bound);
             }
             return true;
         }
         return false;
     }
 
+    /**
+     * Listens to the property changes of an added bean and refers to it
+     * weakly in weak mode
+     */
+    private void registerBean(K bean) {
+        addListener(bean);
+        if (references != null) {
+            BeanReference<K> reference = new BeanReference<K>(bean, collected);
+            references.put(bean, reference);
+            liveReferences.add(reference);
+        }
+    }
+
     private void addListener(K bean) {
         if (listener != null) {
             try {
@@ -295,33 +1596,70 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public boolean remove(Object element) {
+        checkNotFrozen();
         if (elements.remove(element)) {
             removeImpl(element);
+            for (MutationListener<K> l : mutationListeners) {
+                l.beanRemoved((K) element);
+            }
             return true;
         }
         return false;
     }
 
     private void removeImpl(Object element) {
-        removeListener(element);
+        removeImpl(Collections.singletonList(element));
+        TimerWheel<K> wheel = expiry;
+        if (wheel != null) {
+            wheel.cancel(element);
+        }
+    }
+
+    /**
+     * Removes the given beans, which have been removed from the elements,
+     * from each index in turn
+     */
+    @SuppressWarnings("unchecked")
+    private void removeImpl(Collection<?> removed) {
+        BeanEviction<K> bound = eviction;
+        ColumnStore<K> store = columns;
+        for (Object element : removed) {
+            removeListener(element);
+            if (bound != null) {
+                bound.removed(element);
+            }
+            if (store != null) {
+                store.removed(element);
+            }
+            if (references != null) {
+                BeanReference<K> reference = references.remove(element);
+                if (reference != null) {
+                    liveReferences.remove(reference);
+                    reference.clear();
+                }
+            }
+        }
+        IndexMonitor m = monitor;
+        ChangeFeed<K> feed = changeFeed;
         for (Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
-            for (Object value : retrievePropertyValueAsCollection(
-                    e.getKey(), element)) {
-                Set<K> elementSet = e.getValue().get(value);
-                if (elementSet != null) {//if no more element exists for the given index value 
-                    //or element has been modified after indexing is done
-                    elementSet.remove(element);
-                    if (elementSet.isEmpty()) {
-                        if (e.getValue() instanceof ConcurrentMap) {
-                            ((ConcurrentMap) e.getValue()).remove(value, Collections.emptySet());
-                        } else {
-                            e.getValue().remove(value);
-                        }
+            if (m != null) {
+                m.indexUpdated(e.getKey());
+            }
+            Map<K, Collection<?>> tracked = derivedValues.get(e.getKey());
+            for (Object element : removed) {
+                Collection<?> values = tracked == null ? null : tracked.remove(element);
+                for (Object value : values != null ? values
+                        : retrievePropertyValueAsCollection(e.getKey(), element)) {
+                    removeFromMap(e.getKey(), e.getValue(), value, element);
+                    if (feed != null) {
+                        feed.publish(ChangeFeed.Operation.REMOVE, (K) element, e.getKey(), value, null);
                     }
                 }
             }
         }
+        beansChanged();
     }
 
     private void removeListener(Object bean) {
@@ -336,8 +1674,17 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
 
     @Override
     public void clear() {
-        for (Map<Object, Set<K>> map : index.values()) {
-            map.clear();
+        checkNotFrozen();
+        for (Entry<String, Map<Object, Set<K>>> e : index.entrySet()) {
+            releasePostings(e.getValue());
+            e.getValue().clear();
+            IndexTotals t = totals.get(e.getKey());
+            if (t != null) {
+                t.recount(e.getValue());
+            }
+        }
+        for (Map<K, Collection<?>> tracked : derivedValues.values()) {
+            tracked.clear();
         }
 
         if (listener != null) {
@@ -346,72 +1693,479 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
             }
         }
         elements.clear();
+        if (references != null) {
+            references.clear();
+            liveReferences.clear();
+            while (collected.poll() != null) {
+            }
+        }
+        TimerWheel<K> wheel = expiry;
+        if (wheel != null) {
+            wheel.clear();
+        }
+        BeanEviction<K> bound = eviction;
+        if (bound != null) {
+            bound.cleared();
+        }
+        ColumnStore<K> store = columns;
+        if (store != null) {
+            store.cleared();
+        }
+        beansChanged();
+        ChangeFeed<K> feed = changeFeed;
+        if (feed != null) {
+            feed.publish(ChangeFeed.Operation.CLEAR, null, null, null, null);
+        }
+        for (MutationListener<K> l : mutationListeners) {
+            l.beansCleared();
+        }
+    }
+
+    /**
+     * Returns a Filter which can be used for searching this indexer.
+     *
+     * @return
+     */
+    public Filter filter() {
+        expungeCollected(EXPUNGE_BATCH);
+        expire();
+        return new Search().or();
+    }
+
+    /**
+     * Registers a search whose results are kept up to date as beans are
+     * added, removed or changed. The search must be built from the given
+     * filter, and is executed once to find the initial results.
+     *
+     * @param query builds the search from a filter
+     * @return the standing query, which is updated until it is closed
+     * @throws IllegalArgumentException if the search is not built from the
+     * given filter
+     */
+    public StandingQuery<K> standingQuery(Function<Filter, Search> query)
+            throws IllegalArgumentException {
+        StandingQuery<K> standing = new StandingQuery<K>(this, factory.<K>createNewSet());
+        addMutationListener(standing);// changes made during the search are tested afterwards
+        Search search = new Search();
+        search.tracing = true;
+        if (query.apply(search.or()) != search || search.trace == null) {
+            removeMutationListener(standing);
+            throw new IllegalArgumentException("Standing query is not built from the given filter");
+        }
+        List<QueryStep> steps = new ArrayList<QueryStep>();
+        for (QueryStep step = search.trace; step != null; step = step.getPrevious()) {
+            steps.add(step);
+        }
+        Collections.reverse(steps);
+        Set<String> properties = new LinkedHashSet<String>();
+        Predicate<K> condition = null;
+        for (QueryStep step : steps) {
+            if ("inverse".equals(step.getOperation())) {
+                condition = condition == null ? bean -> true : condition.negate();
+                continue;
+            }
+            if (step.getProperty() == null || derivedValues.containsKey(step.getProperty())) {
+                properties = null;// depends on any property
+            } else if (properties != null) {
+                properties.add(step.getProperty());
+            }
+            Predicate<K> c = condition(step);
+            condition = condition == null ? c : step.isAnd() ? condition.and(c) : condition.or(c);
+        }
+        standing.initialize(condition, properties, search.result);
+        return standing;
+    }
+
+    /**
+     * Creates the condition of a search step tested against a single bean
+     */
+    @SuppressWarnings("unchecked")
+    private Predicate<K> condition(QueryStep step) {
+        final String property = step.getProperty();
+        final Object[] arguments = step.getArguments();
+        switch (step.getOperation()) {
+            case "having":
+                return bean -> retrievePropertyValueAsCollection(property, bean).contains(arguments[0]);
+            case "notHaving":
+                return bean -> !retrievePropertyValueAsCollection(property, bean).contains(arguments[0]);
+            case "in":
+                return bean -> !Collections.disjoint(retrievePropertyValueAsCollection(property, bean),
+                        (Set<?>) arguments[0]);
+            case "notIn":
+                return bean -> Collections.disjoint(retrievePropertyValueAsCollection(property, bean),
+                        (Set<?>) arguments[0]);
+            case "havingGreater":
+            case "havingLower":
+                Comparator<? super Object> sorting = getSortedIndex(property).comparator();
+                final Comparator<? super Object> comparator = sorting != null ? sorting
+                        : (Comparator<Object>) (Comparator<?>) Comparator.naturalOrder();
+                final int sign = "havingGreater".equals(step.getOperation()) ? 1 : -1;
+                final boolean inclusive = (Boolean) arguments[1];
+                return bean -> {
+                    for (Object value : retrievePropertyValueAsCollection(property, bean)) {
+                        int c = sign * comparator.compare(value, arguments[0]);
+                        if (c > 0 || (inclusive && c == 0)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                };
+            case "matching":
+                final PropertyAccessor<K> accessor = accessorFor(property);
+                return bean -> ((Predicate<Object>) arguments[0]).test(accessor.getValue(bean));
+            case "where":
+                return (Predicate<K>) arguments[0];
+            default:
+                throw new IllegalArgumentException("Unsupported search step: " + step);
+        }
+    }
+
+    private Collection<?> retrievePropertyValueAsCollection(String property,
+            Object element) {
+        Object value = retrievePropertyValue(property, element);
+        return value instanceof Collection<?> ? (Collection<?>) value : Arrays
+                .asList(value);
+    }
+
+    /**
+     * Provides a set of values gathered from the added elements for the given
+     * property
+     *
+     * @param property
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public Set<Object> getAllValuesForProperty(String property)
+            throws IllegalArgumentException {
+        Map<Object, Set<K>> values = getIndex(property);
+        if (values == null) {
+            throw new IllegalArgumentException("No such indexed field: "
+                    + property);
+        }
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    public Set<String> getAllIndexes() {
+        if (lazyIndexes.isEmpty()) {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+        Set<String> all = factory.createNewSet();
+        all.addAll(index.keySet());
+        all.addAll(lazyIndexes.keySet());
+        return Collections.unmodifiableSet(all);
+    }
+
+    /**
+     * Called by the indexer to retrieve the value of an indexed property. Sub
+     * classes of indexer may override this method to integrate indexer to
+     * different environments like Expression Language
+     *
+     * @param property
+     * @param element
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    protected Object retrievePropertyValue(String property, Object element) {
+        PropertyAccessor<K> accessor = accessors.get(property);
+        if (accessor != null) {
+            return accessor.getValue((K) element);
+        }
+        BeanProperty bProperty = getProperty(beanClass, property);
+        try {
+            return bProperty.getValue(element);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Resolves how the values of the given property are read, so that they
+     * can be read from several threads
+     */
+    PropertyAccessor<K> accessorFor(final String property) {
+        PropertyAccessor<K> accessor = accessors.get(property);
+        if (accessor != null) {
+            return accessor;
+        }
+        final BeanProperty bProperty = getProperty(beanClass, property);
+        return new PropertyAccessor<K>() {
+
+            @Override
+            public Object getValue(K bean) {
+                try {
+                    return bProperty.getValue(bean);
+                } catch (InvocationTargetException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return this.elements.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return this.elements.contains(o);
+    }
+
+    /**
+     * Splits over the backing set of elements rather than over the iterator
+     */
+    @Override
+    public Spliterator<K> spliterator() {
+        return elements.spliterator();
+    }
+
+    /**
+     * Creates a sequential stream of the beans whose values of the given
+     * sorted index are in the given range, in index order. A bean with
+     * several values in the range is streamed once for each value.
+     *
+     * @param property
+     * @param from lower bound of the range, or null for no lower bound
+     * @param fromInclusive
+     * @param to upper bound of the range, or null for no upper bound
+     * @param toInclusive
+     * @return
+     * @throws IllegalArgumentException if no such sorted index exists
+     */
+    public Stream<K> stream(String property, Object from, boolean fromInclusive,
+            Object to, boolean toInclusive) throws IllegalArgumentException {
+        return StreamSupport.stream(rangeSpliterator(property, from, fromInclusive,
+                to, toInclusive), false);
+    }
+
+    /**
+     * Parallel version of stream over a range of a sorted index
+     *
+     * @param property
+     * @param from lower bound of the range, or null for no lower bound
+     * @param fromInclusive
+     * @param to upper bound of the range, or null for no upper bound
+     * @param toInclusive
+     * @return
+     * @throws IllegalArgumentException if no such sorted index exists
+     */
+    public Stream<K> parallelStream(String property, Object from, boolean fromInclusive,
+            Object to, boolean toInclusive) throws IllegalArgumentException {
+        return StreamSupport.stream(rangeSpliterator(property, from, fromInclusive,
+                to, toInclusive), true);
+    }
+
+    private Spliterator<K> rangeSpliterator(String property, Object from,
+            boolean fromInclusive, Object to, boolean toInclusive) {
+        NavigableMap<Object, Set<K>> map = getSortedIndex(property);
+        NavigableMap<Object, Set<K>> range = map;
+        if (from != null) {
+            range = range.tailMap(from, fromInclusive);
+        }
+        if (to != null) {
+            range = range.headMap(to, toInclusive);
+        }
+        return new PostingSpliterator<K>(range.values(), !(map instanceof ConcurrentMap<?, ?>));
+    }
+
+    @SuppressWarnings("unchecked")
+    private NavigableMap<Object, Set<K>> getSortedIndex(String property) {
+        Map<Object, Set<K>> map = getIndex(property);
+        if (map == null) {
+            throw new IllegalArgumentException("No such indexed field: "
+                    + property);
+        } else if (!(map instanceof NavigableMap<?, ?>)) {
+            throw new IllegalArgumentException(
+                    "No such sorted-indexed field: " + property);
+        }
+        return (NavigableMap<Object, Set<K>>) map;
+    }
+
+    /**
+     * Retrieves the lowest value of the given sorted index, or of its column
+     * as a Double, see ColumnStore
+     *
+     * @param property
+     * @return null if the index is empty
+     * @throws IllegalArgumentException if no such sorted index or column
+     * exists
+     */
+    public Object min(String property) throws IllegalArgumentException {
+        ColumnStore<K> store = columnOf(property);
+        return store != null ? boxed(store.min(property))
+                : bound(getSortedIndex(property), null);
+    }
+
+    /**
+     * Retrieves the highest value of the given sorted index, or of its column
+     * as a Double, see ColumnStore
+     *
+     * @param property
+     * @return null if the index is empty
+     * @throws IllegalArgumentException if no such sorted index or column
+     * exists
+     */
+    public Object max(String property) throws IllegalArgumentException {
+        ColumnStore<K> store = columnOf(property);
+        return store != null ? boxed(store.max(property))
+                : bound(getSortedIndex(property).descendingMap(), null);
     }
 
     /**
-     * Returns a Filter which can be used for searching this indexer.
+     * Retrieves the beans with the given number of lowest values of the given
+     * sorted index, in index order
      *
+     * @param property
+     * @param count
      * @return
+     * @throws IllegalArgumentException if no such sorted index exists
      */
-    public Filter filter() {
-        return new Search().or();
+    public List<K> first(String property, int count) throws IllegalArgumentException {
+        return take(getSortedIndex(property), null, count);
     }
 
-    private Collection<?> retrievePropertyValueAsCollection(String property,
-            Object element) {
-        Object value = retrievePropertyValue(property, element);
-        return value instanceof Collection<?> ? (Collection<?>) value : Arrays
-                .asList(value);
+    /**
+     * Retrieves the beans with the given number of highest values of the
+     * given sorted index, in descending index order
+     *
+     * @param property
+     * @param count
+     * @return
+     * @throws IllegalArgumentException if no such sorted index exists
+     */
+    public List<K> last(String property, int count) throws IllegalArgumentException {
+        return take(getSortedIndex(property).descendingMap(), null, count);
     }
 
     /**
-     * Provides a set of values gathered from the added elements for the given
-     * property
+     * Retrieves the value at the given percentile of the values of the given
+     * sorted index by the nearest rank method. For example percentile 0.5 is
+     * the median.
      *
      * @param property
-     * @return
-     * @throws IllegalArgumentException
+     * @param percentile between 0 and 1
+     * @return null if the index is empty
+     * @throws IllegalArgumentException if no such sorted index exists or the
+     * percentile is out of range
      */
-    public Set<Object> getAllValuesForProperty(String property)
+    public Object percentile(String property, double percentile)
             throws IllegalArgumentException {
-        Map<Object, Set<K>> values = index.get(property);
-        if (values == null) {
-            throw new IllegalArgumentException("No such indexed field: "
-                    + property);
-        }
-        return Collections.unmodifiableSet(values.keySet());
+        NavigableMap<Object, Set<K>> map = getSortedIndex(property);
+        return percentile(totals(property, map).aggregate(map), percentile);
     }
 
-    public Set<String> getAllIndexes() {
-        return Collections.unmodifiableSet(index.keySet());
+    /**
+     * Sums the values of the given sorted index of numbers, or of its column,
+     * see ColumnStore
+     *
+     * @param property
+     * @return
+     * @throws IllegalArgumentException if no such sorted index or column
+     * exists, or the values of the index are not numbers
+     */
+    public double sum(String property) throws IllegalArgumentException {
+        ColumnStore<K> store = columnOf(property);
+        return store != null ? store.sum(property)
+                : sum(property, totals(property, getSortedIndex(property)).sum());
     }
 
     /**
-     * Called by the indexer to retrieve the value of an indexed property. Sub
-     * classes of indexer may override this method to integrate indexer to
-     * different environments like Expression Language
+     * Averages the values of the given sorted index of numbers, or of its
+     * column, see ColumnStore
      *
      * @param property
-     * @param element
-     * @return
+     * @return NaN if the index is empty
+     * @throws IllegalArgumentException if no such sorted index or column
+     * exists, or the values of the index are not numbers
      */
-    protected Object retrievePropertyValue(String property, Object element) {
-        BeanProperty bProperty = getProperty(beanClass, property);
-        try {
-            return bProperty.getValue(element);
-        } catch (InvocationTargetException e) {
-            throw new RuntimeException(e.getCause());
+    public double average(String property) throws IllegalArgumentException {
+        ColumnStore<K> store = columnOf(property);
+        if (store != null) {
+            return store.average(property);
         }
+        IndexTotals t = totals(property, getSortedIndex(property));
+        return sum(property, t.sum()) / t.count();
     }
 
-    @Override
-    public int size() {
-        return this.elements.size();
+    /**
+     * Retrieves the columns which aggregate the given property, null if it
+     * has no column or has a sorted index
+     */
+    private ColumnStore<K> columnOf(String property) {
+        ColumnStore<K> store = columns;
+        if (store == null || !store.hasColumn(property)) {
+            return null;
+        }
+        IndexDefinition<K> lazy = lazyIndexes.get(property);
+        return (lazy != null ? lazy.isSorted() : index.get(property) instanceof NavigableMap<?, ?>)
+                ? null : store;
     }
 
-    @Override
-    public boolean contains(Object o) {
-        return this.elements.contains(o);
+    private static Double boxed(double value) {
+        return value == value ? value : null;
+    }
+
+    /**
+     * Retrieves the running totals of the given sorted index, counting the
+     * index if it has none
+     */
+    @SuppressWarnings("unchecked")
+    private IndexTotals totals(String property, NavigableMap<Object, Set<K>> map) {
+        IndexTotals t = totals.get(property);
+        if (t == null) {
+            IndexTotals created = new IndexTotals();
+            created.recount(map);
+            t = ((ConcurrentMap<String, IndexTotals>) totals).putIfAbsent(property, created);
+            if (t == null) {
+                t = created;
+            }
+        }
+        return t;
+    }
+
+    private static Object percentile(IndexAggregate aggregate, double percentile) {
+        if (percentile < 0 || percentile > 1) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 1: "
+                    + percentile);
+        }
+        return aggregate.percentile(percentile);
+    }
+
+    private static double sum(String property, Double sum) {
+        if (sum == null) {
+            throw new IllegalArgumentException("Values of the index are not numbers: "
+                    + property);
+        }
+        return sum;
+    }
+
+    /**
+     * Retrieves the first key of the given index having a bean within the
+     * given beans, or any bean if within is null
+     */
+    private Object bound(NavigableMap<Object, Set<K>> map, Set<K> within) {
+        for (Entry<Object, Set<K>> e : map.entrySet()) {
+            for (K bean : e.getValue()) {
+                if (within == null || within.contains(bean)) {
+                    return e.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<K> take(NavigableMap<Object, Set<K>> map, Set<K> within, int count) {
+        Set<K> taken = new LinkedHashSet<K>();
+        for (Iterator<Set<K>> i = map.values().iterator(); i.hasNext() && taken.size() < count;) {
+            for (K bean : i.next()) {
+                if (taken.size() == count) {
+                    break;
+                } else if (within == null || within.contains(bean)) {
+                    taken.add(bean);
+                }
+            }
+        }
+        return new ArrayList<K>(taken);
     }
 
     @Override
@@ -473,10 +2227,17 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
         @SuppressWarnings("rawtypes")
         private SearchState[] states = {new AndSearchState(),
             new OrSearchState()};
+        private boolean cacheable;
+        private boolean shared;
+        private QueryStep step;
+        private long[] stamp;
+        private boolean tracing;
+        private QueryStep trace;
 
         public Search() {
             this(factory.createNewSet());
             filter = new Filter(this);
+            cacheable = true;
         }
 
         public Search(Set<K> resultSet) {
@@ -504,20 +2265,307 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          * @return
          */
         public Search inverse() {
-            Set<K> inverse = factory.createNewSet();
-            inverse.addAll(elements);
-            inverse.removeAll(result);
-            result = inverse;
+            if (!restore("inverse", null)) {
+                Set<K> inverse = factory.createNewSet();
+                inverse.addAll(elements);
+                inverse.removeAll(result);
+                result = inverse;
+                shared = false;
+                store();
+            }
             return this;
         }
 
         /**
-         * Retrieves the results of this search
+         * Retrieves the results of this search. The returned set is
+         * unmodifiable if it is shared with the query cache.
          *
          * @return
          */
         public Set<K> results() {
-            return result;
+            BeanEviction<K> bound = eviction;
+            if (bound != null && result.size() <= ACCESS_RESULT_LIMIT) {
+                for (K bean : result) {
+                    bound.recordAccess(bean);
+                }
+            }
+            return shared ? Collections.unmodifiableSet(result) : result;
+        }
+
+        /**
+         * Retrieves the lowest value of the given sorted index among the
+         * results of this search, or of its column as a Double, see
+         * ColumnStore
+         *
+         * @param property
+         * @return null if there are no results
+         * @throws IllegalArgumentException if no such sorted index or column
+         * exists
+         */
+        public Object min(String property) throws IllegalArgumentException {
+            ColumnStore<K> store = columnOf(property);
+            if (store != null) {
+                DoubleSummaryStatistics summary = store.summary(property, result);
+                return summary.getCount() == 0 ? null : summary.getMin();
+            }
+            return bound(getSortedIndex(property), result);
+        }
+
+        /**
+         * Retrieves the highest value of the given sorted index among the
+         * results of this search, or of its column as a Double, see
+         * ColumnStore
+         *
+         * @param property
+         * @return null if there are no results
+         * @throws IllegalArgumentException if no such sorted index or column
+         * exists
+         */
+        public Object max(String property) throws IllegalArgumentException {
+            ColumnStore<K> store = columnOf(property);
+            if (store != null) {
+                DoubleSummaryStatistics summary = store.summary(property, result);
+                return summary.getCount() == 0 ? null : summary.getMax();
+            }
+            return bound(getSortedIndex(property).descendingMap(), result);
+        }
+
+        /**
+         * Retrieves the given number of results with the lowest values of the
+         * given sorted index, in index order
+         *
+         * @param property
+         * @param count
+         * @return
+         * @throws IllegalArgumentException if no such sorted index exists
+         */
+        public List<K> first(String property, int count) throws IllegalArgumentException {
+            return take(getSortedIndex(property), result, count);
+        }
+
+        /**
+         * Retrieves the given number of results with the highest values of
+         * the given sorted index, in descending index order
+         *
+         * @param property
+         * @param count
+         * @return
+         * @throws IllegalArgumentException if no such sorted index exists
+         */
+        public List<K> last(String property, int count) throws IllegalArgumentException {
+            return take(getSortedIndex(property).descendingMap(), result, count);
+        }
+
+        /**
+         * Retrieves the value at the given percentile of the values of the
+         * results of this search on the given sorted index
+         *
+         * @param property
+         * @param percentile between 0 and 1
+         * @return null if there are no results
+         * @throws IllegalArgumentException if no such sorted index exists or
+         * the percentile is out of range
+         */
+        public Object percentile(String property, double percentile)
+                throws IllegalArgumentException {
+            return BeanIndexer.percentile(aggregate(property), percentile);
+        }
+
+        /**
+         * Sums the values of the results of this search on the given sorted
+         * index of numbers, or on its column, see ColumnStore
+         *
+         * @param property
+         * @return
+         * @throws IllegalArgumentException if no such sorted index or column
+         * exists, or the values of the index are not numbers
+         */
+        public double sum(String property) throws IllegalArgumentException {
+            ColumnStore<K> store = columnOf(property);
+            if (store != null) {
+                return store.summary(property, result).getSum();
+            }
+            return BeanIndexer.sum(property, aggregate(property).sum());
+        }
+
+        /**
+         * Averages the values of the results of this search on the given
+         * sorted index of numbers, or on its column, see ColumnStore
+         *
+         * @param property
+         * @return NaN if there are no results
+         * @throws IllegalArgumentException if no such sorted index or column
+         * exists, or the values of the index are not numbers
+         */
+        public double average(String property) throws IllegalArgumentException {
+            ColumnStore<K> store = columnOf(property);
+            if (store != null) {
+                DoubleSummaryStatistics summary = store.summary(property, result);
+                return summary.getCount() == 0 ? Double.NaN : summary.getAverage();
+            }
+            IndexAggregate aggregate = aggregate(property);
+            return BeanIndexer.sum(property, aggregate.sum()) / aggregate.count();
+        }
+
+        private IndexAggregate aggregate(String property) {
+            return new IndexAggregate(0, getSortedIndex(property), result);
+        }
+
+        /**
+         * Counts the results of this search for each value of each of the
+         * given indexed properties. Values without any results are omitted,
+         * and the values of sorted indexes are in index order. Facets of
+         * large results are computed in parallel.
+         *
+         * @param properties
+         * @return value counts by property, in the given property order
+         * @throws IllegalArgumentException if no such index exists
+         */
+        @SuppressWarnings("unchecked")
+        public Map<String, Map<Object, Integer>> facet(String... properties)
+                throws IllegalArgumentException {
+            final List<Map<Object, Set<K>>> maps = new ArrayList<Map<Object, Set<K>>>();
+            BitSet bits = null;
+            for (String property : properties) {
+                Map<Object, Set<K>> map = getIndex(property);
+                if (map == null) {
+                    throw new IllegalArgumentException("No such indexed field: "
+                            + property);
+                } else if (map instanceof BitSetIndexMap<?> && bits == null) {
+                    bits = new BitSet();
+                    for (K bean : result) {
+                        int ordinal = ordinals.ordinalOf(bean);
+                        if (ordinal >= 0) {
+                            bits.set(ordinal);
+                        }
+                    }
+                }
+                maps.add(map);
+            }
+            final BitSet resultBits = bits;
+            final boolean all = result.size() == elements.size();
+            IntStream indexes = IntStream.range(0, maps.size());
+            if (maps.size() > 1 && result.size() >= PARALLEL_SCAN_THRESHOLD) {
+                indexes = indexes.parallel();
+            }
+            List<Map<Object, Integer>> facets = indexes.mapToObj(i -> facet(maps.get(i), resultBits, all))
+                    .collect(Collectors.<Map<Object, Integer>>toList());
+            Map<String, Map<Object, Integer>> counts = new LinkedHashMap<String, Map<Object, Integer>>();
+            for (int i = 0; i < properties.length; i++) {
+                counts.put(properties[i], facets.get(i));
+            }
+            return counts;
+        }
+
+        private Map<Object, Integer> facet(Map<Object, Set<K>> map, BitSet resultBits,
+                boolean all) {
+            Map<Object, Integer> counts = new LinkedHashMap<Object, Integer>();
+            for (Entry<Object, Set<K>> e : map.entrySet()) {
+                Set<K> posting = e.getValue();
+                int count;
+                if (all) {
+                    count = posting.size();
+                } else if (posting instanceof BitSetPostingSet<?>) {
+                    count = ((BitSetPostingSet<K>) posting).intersectionSize(resultBits);
+                } else {
+                    count = 0;
+                    Set<K> small = posting.size() < result.size() ? posting : result;
+                    Set<K> large = small == posting ? result : posting;
+                    for (K bean : small) {
+                        if (large.contains(bean)) {
+                            count++;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    counts.put(e.getKey(), count);
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * @return the indexer searched by this search
+         */
+        BeanIndexer<K> getIndexer() {
+            return BeanIndexer.this;
+        }
+
+        /**
+         * Creates a sequential stream of the results of this search
+         *
+         * @return
+         */
+        public Stream<K> stream() {
+            return result.stream();
+        }
+
+        /**
+         * Creates a parallel stream of the results of this search, split over
+         * the result set itself
+         *
+         * @return
+         */
+        public Stream<K> parallelStream() {
+            return result.parallelStream();
+        }
+
+        /**
+         * Extends the description of this search with the given step and
+         * restores the result of the extended search from the query cache
+         *
+         * @return true if the result has been restored
+         */
+        @SuppressWarnings("unchecked")
+        private boolean restore(String operation, String property, Object... arguments) {
+            trace(operation, property, arguments);
+            QueryCache cache = queryCache;
+            if (cache == null || !cacheable) {
+                cacheable = false; // description of the steps so far is incomplete
+                return false;
+            }
+            step = new QueryStep(step, state == states[0], operation, property, arguments);
+            stamp = cache.stamp(step);
+            Set<K> cached = (Set<K>) cache.get(step, stamp);
+            if (cached != null) {
+                result = cached;
+                shared = true;
+                stamp = null;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Puts the current result to the query cache if it has been computed
+         * after an unsuccessful restore
+         */
+        private Search store() {
+            QueryCache cache = queryCache;
+            if (cache != null && stamp != null) {
+                cache.put(step, stamp, result);
+                shared = true;
+            }
+            stamp = null;
+            return this;
+        }
+
+        /**
+         * Records the given step for a standing query
+         */
+        private void trace(String operation, String property, Object... arguments) {
+            if (tracing) {
+                trace = new QueryStep(trace, state == states[0], operation, property, arguments);
+            }
+        }
+
+        private void ensureWritable() {
+            if (shared) {
+                Set<K> copy = factory.createNewSet();
+                copy.addAll(result);
+                result = copy;
+                shared = false;
+            }
         }
 
         /**
@@ -536,6 +2584,10 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
                 throw new IllegalStateException("There are " + result.size()
                         + " results in this search");
             } else {
+                BeanEviction<K> bound = eviction;
+                if (bound != null && !result.isEmpty()) {
+                    bound.recordAccess(result.iterator().next());
+                }
                 return result.iterator().next();// to cause
                 // NoSuchElementException
                 // if there are no
@@ -583,6 +2635,7 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
 
             @Override
             public void add(Set<K> elements) {
+                ensureWritable();
                 result.retainAll(elements);
             }
 
@@ -601,6 +2654,7 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
 
             @Override
             public void add(Set<K> elements) {
+                ensureWritable();
                 result.addAll(elements);
             }
 
@@ -631,7 +2685,11 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          */
         public Search having(String property, Object value)
                 throws IllegalArgumentException {
-            return search.add(havingResultSet(property, value));
+            long start = startQuery();
+            if (!search.restore("having", property, value)) {
+                search.add(havingResultSet(property, value)).store();
+            }
+            return endQuery("having", property, start, search);
         }
 
         /**
@@ -643,12 +2701,22 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          * @return
          * @throws IllegalArgumentException if no such index exists
          */
+        @SuppressWarnings("unchecked")
         public Search notHaving(String property, Object value)
                 throws IllegalArgumentException {
-            Set<K> notHaving = factory.createNewSet();
-            notHaving.addAll(BeanIndexer.this);
-            notHaving.removeAll(havingResultSet(property, value));
-            return search.add(notHaving);
+            long start = startQuery();
+            if (!search.restore("notHaving", property, value)) {
+                Map<Object, Set<K>> map = getIndex(property);
+                if (map instanceof BitSetIndexMap<?>) {
+                    search.add(((BitSetIndexMap<K>) map).notIn(Collections.singleton(value))).store();
+                    return endQuery("notHaving", property, start, search);
+                }
+                Set<K> notHaving = factory.createNewSet();
+                notHaving.addAll(BeanIndexer.this);
+                notHaving.removeAll(havingResultSet(property, value));
+                search.add(notHaving).store();
+            }
+            return endQuery("notHaving", property, start, search);
         }
 
         /**
@@ -659,9 +2727,17 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          * @return
          * @throws IllegalArgumentException
          */
+        @SuppressWarnings("unchecked")
         public Search in(String property, Set<? extends Object> values)
                 throws IllegalArgumentException {
-            return search.add(inResultSet(property, values));
+            long start = startQuery();
+            if (!search.restore("in", property, values)) {
+                Map<Object, Set<K>> map = getIndex(property);
+                search.add(map instanceof BitSetIndexMap<?>
+                        ? ((BitSetIndexMap<K>) map).in(values)
+                        : inResultSet(property, values)).store();
+            }
+            return endQuery("in", property, start, search);
         }
 
         /**
@@ -672,12 +2748,36 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          * @return
          * @throws IllegalArgumentException
          */
+        @SuppressWarnings("unchecked")
         public Search notIn(String property, Set<? extends Object> values)
                 throws IllegalArgumentException {
-            Set<K> notIn = factory.createNewSet();
-            notIn.addAll(BeanIndexer.this);
-            notIn.removeAll(inResultSet(property, values));
-            return search.add(notIn);
+            long start = startQuery();
+            if (!search.restore("notIn", property, values)) {
+                Map<Object, Set<K>> map = getIndex(property);
+                if (map instanceof BitSetIndexMap<?>) {
+                    search.add(((BitSetIndexMap<K>) map).notIn(values)).store();
+                    return endQuery("notIn", property, start, search);
+                }
+                Set<K> notIn = factory.createNewSet();
+                notIn.addAll(BeanIndexer.this);
+                notIn.removeAll(inResultSet(property, values));
+                search.add(notIn).store();
+            }
+            return endQuery("notIn", property, start, search);
+        }
+
+        private long startQuery() {
+            return monitor == null ? 0 : System.nanoTime();
+        }
+
+        private Search endQuery(String operation, String property, long start,
+                Search search) {
+            IndexMonitor m = monitor;
+            if (m != null && start != 0) {
+                m.queryExecuted(operation, property, System.nanoTime() - start,
+                        search.result.size());
+            }
+            return search;
         }
 
         private Set<K> inResultSet(String property, Set<? extends Object> values) {
@@ -689,7 +2789,7 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
         }
 
         private Set<K> havingResultSet(String property, Object value) {
-            Map<Object, Set<K>> map = index.get(property);
+            Map<Object, Set<K>> map = getIndex(property);
             if (map == null) {
                 throw new IllegalArgumentException("No such indexed field: "
                         + property);
@@ -709,8 +2809,11 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          */
         public Search havingGreater(String property, Object value,
                 boolean inclusive) throws IllegalArgumentException {
-            return search.add(findMap(property).tailMap(value, inclusive)
-                    .values());
+            long start = startQuery();
+            if (!search.restore("havingGreater", property, value, inclusive)) {
+                search.add(findMap(property).tailMap(value, inclusive).values()).store();
+            }
+            return endQuery("havingGreater", property, start, search);
         }
 
         /**
@@ -724,14 +2827,124 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
          */
         public Search havingLower(String property, Object value,
                 boolean inclusive) throws IllegalArgumentException {
-            return search.add(findMap(property).headMap(value, inclusive)
-                    .values());
+            long start = startQuery();
+            if (!search.restore("havingLower", property, value, inclusive)) {
+                search.add(findMap(property).headMap(value, inclusive).values()).store();
+            }
+            return endQuery("havingLower", property, start, search);
+        }
+
+        /**
+         * Searches for elements whose property value matches the given
+         * predicate. The property does not need to be indexed; its values are
+         * read through the accessors of the schema if it has any. A search
+         * joined with and only tests the current results, a search joined
+         * with or tests all elements. Searches by predicate are not cached, and
+         * large scans run in parallel on the common fork/join pool. The
+         * predicate of where(String, DoublePredicate) is tested on the
+         * column of a numeric property instead.
+         *
+         * @param property
+         * @param predicate
+         * @return
+         * @throws NoSuchPropertyException if the bean class has no such
+         * property
+         */
+        public Search matching(String property, final Predicate<Object> predicate)
+                throws NoSuchPropertyException {
+            long start = startQuery();
+            final PropertyAccessor<K> accessor = accessorFor(property);
+            search.trace("matching", property, predicate);
+            search.add(scan(new Predicate<K>() {
+
+                @Override
+                public boolean test(K bean) {
+                    return predicate.test(accessor.getValue(bean));
+                }
+            }));
+            return endQuery("matching", property, start, search);
+        }
+
+        /**
+         * Searches for elements matching the given predicate, evaluated the
+         * same way as matching
+         *
+         * @param predicate
+         * @return
+         */
+        public Search where(Predicate<? super K> predicate) {
+            long start = startQuery();
+            search.trace("where", null, predicate);
+            search.add(scan(predicate));
+            return endQuery("where", null, start, search);
+        }
+
+        /**
+         * Searches for elements whose numeric property value matches the
+         * given predicate, evaluated the same way as matching. The values are
+         * scanned in the column of the property if it has one, and read
+         * through the accessors otherwise. Values which are neither Numbers
+         * nor Dates are not tested, and Dates are tested as milliseconds since
+         * the epoch.
+         *
+         * @param property
+         * @param predicate
+         * @return
+         * @throws NoSuchPropertyException if the bean class has no such
+         * property
+         */
+        public Search where(String property, final DoublePredicate predicate)
+                throws NoSuchPropertyException {
+            long start = startQuery();
+            search.trace("where", property, predicate);
+            ColumnStore<K> store = columns;
+            if (store != null && store.hasColumn(property)) {
+                search.cacheable = false;
+                search.stamp = null;
+                Set<K> matches = factory.createNewSet();
+                store.matching(property, predicate,
+                        search.state == search.states[0] ? search.result : null, matches);
+                search.add(matches);
+            } else {
+                final PropertyAccessor<K> accessor = accessorFor(property);
+                search.add(scan(new Predicate<K>() {
+
+                    @Override
+                    public boolean test(K bean) {
+                        double v = ColumnStore.toDouble(accessor.getValue(bean));
+                        return v == v && predicate.test(v);
+                    }
+                }));
+            }
+            return endQuery("where", property, start, search);
+        }
+
+        /**
+         * Evaluates the predicate over the current results for an and search,
+         * or over all elements otherwise
+         */
+        private Set<K> scan(Predicate<? super K> predicate) {
+            search.cacheable = false;
+            search.stamp = null;
+            Set<K> source = search.state == search.states[0] ? search.result : elements;
+            Set<K> matches = factory.createNewSet();
+            if (source.size() < PARALLEL_SCAN_THRESHOLD) {
+                for (K bean : source) {
+                    if (predicate.test(bean)) {
+                        matches.add(bean);
+                    }
+                }
+            } else {
+                matches.addAll(source.parallelStream().filter(predicate)
+                        .collect(Collectors.<K>toList()));
+            }
+            return matches;
         }
 
         private NavigableMap<Object, Set<K>> findMap(String property) {
             NavigableMap<Object, Set<K>> map;
             try {
-                map = (NavigableMap<Object, Set<K>>) index.get(property);
+                map = (NavigableMap<Object, Set<K>>) getIndex(property);
             } catch (ClassCastException e) {
                 throw new IllegalArgumentException(
                         "No such sorted-indexed field: " + property);
@@ -745,15 +2958,61 @@ public class BeanIndexer<K> extends AbstractSet<K> implements Set<K> {
 
     }
 
+    private static class BackfillExecutor {
+
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BeanIndexer-backfill");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
     private class PropertyListener implements PropertyChangeListener {
 
         @SuppressWarnings("unchecked")
         @Override
         public void propertyChange(PropertyChangeEvent evt) {
             Map<Object, Set<K>> map = index.get(evt.getPropertyName());
-            if (map != null) {// ensure this is an index property
-                map.get(evt.getOldValue()).remove(evt.getSource());
-                addToMap(map, evt.getNewValue(), (K) evt.getSource());
+            if (map != null && !derivedValues.containsKey(evt.getPropertyName())) {// ensure this is an index property
+                removeFromMap(evt.getPropertyName(), map, evt.getOldValue(), evt.getSource());
+                addToMap(evt.getPropertyName(), map, evt.getNewValue(), (K) evt.getSource());
+                indexChanged(evt.getPropertyName());
+                if (references != null) {
+                    BeanReference<K> reference = references.get(evt.getSource());
+                    if (reference != null) {
+                        reference.keys.put(evt.getPropertyName(),
+                                intern(map, Collections.singletonList(evt.getNewValue())));
+                    }
+                }
+                ChangeFeed<K> feed = changeFeed;
+                if (feed != null) {
+                    feed.publish(ChangeFeed.Operation.UPDATE, (K) evt.getSource(),
+                            evt.getPropertyName(), evt.getOldValue(), evt.getNewValue());
+                }
+                IndexMonitor m = monitor;
+                if (m != null) {
+                    m.indexUpdated(evt.getPropertyName());
+                }
+            }
+            for (Entry<String, Map<K, Collection<?>>> d : derivedValues.entrySet()) {
+                updateDerived(d.getKey(), d.getValue(), (K) evt.getSource());
+            }
+            TimerWheel<K> wheel = expiry;
+            if (wheel != null && evt.getPropertyName().equals(expiryProperty)) {
+                scheduleExpiry(wheel, (K) evt.getSource());
+            }
+            ColumnStore<K> store = columns;
+            if (store != null) {
+                store.changed((K) evt.getSource(), evt.getPropertyName());
+            }
+            for (MutationListener<K> l : mutationListeners) {
+                l.propertyChanged((K) evt.getSource(), evt.getPropertyName(),
+                        evt.getOldValue(), evt.getNewValue());
             }
         }
     }
@@ -0,0 +1,271 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Equi-join of the beans of two indexers on a pair of properties, streaming
+ * the joined beans as pairs. The left side is either all the beans of an
+ * indexer or the results of a search.
+ * <p>
+ * The join probes an unsorted index of either side with the values of the
+ * other side (index nested loop), merges the keys of the two sorted indexes
+ * if both properties have sorted indexes of the same order, probes a sorted
+ * index if only one side has an index, and otherwise builds a transient hash
+ * table of the right beans by their values. Beans with null values are not
+ * joined, and a bean with several matching values of a multi valued property
+ * is paired once for each value.
+ * <p>
+ * The joined pairs are generated per key, so a parallel stream of the join
+ * distributes the keys across the fork/join pool.
+ *
+ * @author Ertunc
+ * @param <L> type of the left beans
+ * @param <R> type of the right beans
+ */
+public class BeanJoin<L, R> {
+
+    public enum Strategy {
+
+        /**
+         * Looks up the values of one side in an index of the other side
+         */
+        INDEX_NESTED_LOOP,
+        /**
+         * Walks the keys of two sorted indexes in order
+         */
+        MERGE,
+        /**
+         * Looks up the values of the left side in a hash table built from
+         * the right side
+         */
+        HASH
+    }
+
+    private final Side<L> left;
+    private final Side<R> right;
+    private final Strategy strategy;
+
+    /**
+     * Joins all the beans of the given indexers
+     *
+     * @param left
+     * @param leftProperty
+     * @param right
+     * @param rightProperty
+     * @throws com.eaybars.beans.properties.NoSuchPropertyException if a
+     * property is neither indexed nor a bean property
+     */
+    public BeanJoin(BeanIndexer<L> left, String leftProperty, BeanIndexer<R> right,
+            String rightProperty) {
+        this(new Side<L>(left, left, true, leftProperty),
+                new Side<R>(right, right, true, rightProperty));
+    }
+
+    /**
+     * Joins the results of the given search with all the beans of the given
+     * indexer
+     *
+     * @param left
+     * @param leftProperty
+     * @param right
+     * @param rightProperty
+     * @throws com.eaybars.beans.properties.NoSuchPropertyException if a
+     * property is neither indexed nor a bean property
+     */
+    public BeanJoin(BeanIndexer<L>.Search left, String leftProperty, BeanIndexer<R> right,
+            String rightProperty) {
+        this(new Side<L>(left.getIndexer(), left.results(), false, leftProperty),
+                new Side<R>(right, right, true, rightProperty));
+    }
+
+    private BeanJoin(Side<L> left, Side<R> right) {
+        this.left = left;
+        this.right = right;
+        if (isUnsorted(right.map) || isUnsorted(left.map)) {
+            strategy = Strategy.INDEX_NESTED_LOOP;
+        } else if (left.map != null && right.map != null && sameOrder(
+                (NavigableMap<?, ?>) left.map, (NavigableMap<?, ?>) right.map)) {
+            strategy = Strategy.MERGE;
+        } else if (left.map != null || right.map != null) {
+            strategy = Strategy.INDEX_NESTED_LOOP;
+        } else {
+            strategy = Strategy.HASH;
+        }
+    }
+
+    private static boolean isUnsorted(Map<?, ?> map) {
+        return map != null && !(map instanceof NavigableMap<?, ?>);
+    }
+
+    private static boolean sameOrder(NavigableMap<?, ?> left, NavigableMap<?, ?> right) {
+        return Objects.equals(left.comparator(), right.comparator());
+    }
+
+    /**
+     * @return the way this join is executed
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Creates a sequential stream of the joined pairs, the left bean being
+     * the key and the right bean the value of each pair
+     *
+     * @return
+     */
+    public Stream<Map.Entry<L, R>> stream() {
+        return stream(false);
+    }
+
+    /**
+     * Creates a parallel stream of the joined pairs
+     *
+     * @return
+     */
+    public Stream<Map.Entry<L, R>> parallelStream() {
+        return stream(true);
+    }
+
+    private Stream<Map.Entry<L, R>> stream(boolean parallel) {
+        switch (strategy) {
+            case MERGE:
+                return merge(parallel);
+            case HASH:
+                return hash(parallel);
+            default:
+                if (isUnsorted(right.map) || left.map == null) {
+                    return left.groups(parallel).flatMap(
+                            g -> pairs(g.getValue(), right.posting(g.getKey())));
+                }
+                return right.groups(parallel).flatMap(
+                        g -> pairs(left.posting(g.getKey()), g.getValue()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stream<Map.Entry<L, R>> merge(boolean parallel) {
+        Comparator<Object> comparator = (Comparator<Object>) ((NavigableMap<Object, Set<L>>) left.map).comparator();
+        List<Object> keys = new ArrayList<Object>();
+        Iterator<Object> l = left.map.keySet().iterator();
+        Iterator<Object> r = right.map.keySet().iterator();
+        if (l.hasNext() && r.hasNext()) {
+            Object lk = l.next();
+            Object rk = r.next();
+            while (true) {
+                int c = comparator == null ? ((Comparable<Object>) lk).compareTo(rk)
+                        : comparator.compare(lk, rk);
+                if (c == 0) {
+                    keys.add(lk);
+                }
+                if (c <= 0) {
+                    if (!l.hasNext()) {
+                        break;
+                    }
+                    lk = l.next();
+                }
+                if (c >= 0) {
+                    if (!r.hasNext()) {
+                        break;
+                    }
+                    rk = r.next();
+                }
+            }
+        }
+        return StreamSupport.stream(keys.spliterator(), parallel).flatMap(
+                k -> pairs(left.posting(k), right.map.get(k)));
+    }
+
+    private Stream<Map.Entry<L, R>> hash(boolean parallel) {
+        Map<Object, List<R>> table = new HashMap<Object, List<R>>();
+        for (R bean : right.beans) {
+            for (Object value : right.values(bean)) {
+                List<R> beans = table.get(value);
+                if (beans == null) {
+                    table.put(value, beans = new ArrayList<R>(1));
+                }
+                beans.add(bean);
+            }
+        }
+        return left.groups(parallel).flatMap(g -> pairs(g.getValue(), table.get(g.getKey())));
+    }
+
+    private static <L, R> Stream<Map.Entry<L, R>> pairs(Collection<L> lefts, Collection<R> rights) {
+        if (lefts == null || rights == null || lefts.isEmpty() || rights.isEmpty()) {
+            return Stream.empty();
+        }
+        return lefts.stream().flatMap(l -> rights.stream().map(
+                r -> (Map.Entry<L, R>) new AbstractMap.SimpleImmutableEntry<L, R>(l, r)));
+    }
+
+    /**
+     * Beans and index of one side of the join
+     */
+    private static class Side<K> {
+
+        private final Set<K> beans;
+        private final boolean all;
+        private final Map<Object, Set<K>> map;
+        private final PropertyAccessor<K> accessor;
+
+        Side(BeanIndexer<K> indexer, Set<K> beans, boolean all, String property) {
+            this.beans = beans;
+            this.all = all;
+            this.map = indexer.getIndex(property);
+            this.accessor = indexer.accessorFor(property);
+        }
+
+        /**
+         * Retrieves the beans of this side having the given value of the
+         * indexed property
+         */
+        Collection<K> posting(Object key) {
+            Set<K> posting = key == null ? null : map.get(key);
+            if (posting == null || all) {
+                return posting;
+            }
+            return posting.stream().filter(beans::contains).collect(Collectors.<K>toList());
+        }
+
+        /**
+         * Groups the beans of this side by their values, from the index if
+         * all the beans are joined
+         */
+        Stream<Map.Entry<Object, Collection<K>>> groups(boolean parallel) {
+            if (map != null && all) {
+                return StreamSupport.stream(map.entrySet().spliterator(), parallel)
+                        .filter(e -> e.getKey() != null)
+                        .map(e -> new AbstractMap.SimpleImmutableEntry<Object, Collection<K>>(
+                                e.getKey(), e.getValue()));
+            }
+            return StreamSupport.stream(beans.spliterator(), parallel).flatMap(
+                    bean -> values(bean).stream().map(
+                            v -> new AbstractMap.SimpleImmutableEntry<Object, Collection<K>>(
+                                    v, Collections.singletonList(bean))));
+        }
+
+        /**
+         * Retrieves the non null values of the property of the given bean
+         */
+        Collection<?> values(K bean) {
+            Object value = accessor.getValue(bean);
+            Collection<?> values = value instanceof Collection<?> ? (Collection<?>) value
+                    : Collections.singletonList(value);
+            return values.stream().filter(Objects::nonNull).collect(Collectors.toList());
+        }
+    }
+}
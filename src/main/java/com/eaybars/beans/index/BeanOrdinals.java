@@ -0,0 +1,78 @@
+package com.eaybars.beans.index;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns dense int ordinals to beans, so that structures can refer to a bean
+ * by its ordinal. An ordinal is reference counted and reused after the bean
+ * is released as many times as it is acquired.
+ *
+ * @author Ertunc
+ */
+final class BeanOrdinals {
+
+    private final Map<Object, Integer> ordinals = new HashMap<Object, Integer>();
+    private Object[] beans = new Object[16];
+    private int[] references = new int[16];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int next;
+
+    /**
+     * Retrieves the ordinal of the given bean, assigning a new one if it has
+     * none, and increments its reference count
+     */
+    int acquire(Object bean) {
+        Integer ordinal = ordinals.get(bean);
+        if (ordinal == null) {
+            ordinal = freeCount > 0 ? free[--freeCount] : next++;
+            if (ordinal == beans.length) {
+                int length = beans.length * 2;
+                Object[] b = new Object[length];
+                System.arraycopy(beans, 0, b, 0, beans.length);
+                beans = b;
+                int[] r = new int[length];
+                System.arraycopy(references, 0, r, 0, references.length);
+                references = r;
+            }
+            beans[ordinal] = bean;
+            ordinals.put(bean, ordinal);
+        }
+        references[ordinal]++;
+        return ordinal;
+    }
+
+    /**
+     * Decrements the reference count of the given ordinal, releasing it when
+     * it is no longer referred
+     */
+    void release(int ordinal) {
+        if (--references[ordinal] == 0) {
+            ordinals.remove(beans[ordinal]);
+            beans[ordinal] = null;
+            if (freeCount == free.length) {
+                int[] f = new int[free.length * 2];
+                System.arraycopy(free, 0, f, 0, freeCount);
+                free = f;
+            }
+            free[freeCount++] = ordinal;
+        }
+    }
+
+    /**
+     * @return -1 if the bean has no ordinal
+     */
+    int ordinalOf(Object bean) {
+        Integer ordinal = ordinals.get(bean);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    Object get(int ordinal) {
+        return beans[ordinal];
+    }
+
+    int size() {
+        return ordinals.size();
+    }
+}
@@ -0,0 +1,20 @@
+package com.eaybars.beans.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the beans of an indexer to and from the persisted forms of
+ * the indexer, such as snapshots. A bean read back must be equal to the bean
+ * written.
+ *
+ * @author Ertunc
+ * @param <K> type of the bean
+ */
+public interface BeanSerializer<K> {
+
+    public void write(K bean, DataOutput out) throws IOException;
+
+    public K read(DataInput in) throws IOException;
+}
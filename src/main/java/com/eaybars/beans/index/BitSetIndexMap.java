@@ -0,0 +1,214 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Index map of a single valued enum or boolean property. The posting list of
+ * each value is a bitset over bean ordinals, kept in an array indexed by the
+ * ordinal of the enum constant (false and true for booleans) followed by the
+ * posting list of null. Since each bean is in exactly one posting list, the
+ * beans not having some values are the union of the other posting lists.
+ * A BeanIndexer uses it for such properties unless the indexer is concurrent
+ * or refers to its beans through weak references.
+ * <p>
+ * The map is not thread safe.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class BitSetIndexMap<K> extends AbstractMap<Object, Set<K>> {
+
+    private final Class<?> type;
+    private final BeanOrdinals ordinals;
+    private final Object[] keys;
+    private final BitSetPostingSet<K>[] postings;
+
+    @SuppressWarnings("unchecked")
+    BitSetIndexMap(Class<?> type, BeanOrdinals ordinals) {
+        this.type = type;
+        this.ordinals = ordinals;
+        Object[] constants = type.isEnum() ? type.getEnumConstants()
+                : new Object[]{Boolean.FALSE, Boolean.TRUE};
+        keys = Arrays.copyOf(constants, constants.length + 1);
+        postings = new BitSetPostingSet[keys.length];
+        for (int i = 0; i < postings.length; i++) {
+            postings[i] = new BitSetPostingSet<K>(ordinals);
+        }
+    }
+
+    /**
+     * Checks whether the given property type is indexed with bitsets
+     */
+    static boolean isLowCardinality(Class<?> type) {
+        return type.isEnum() || type == boolean.class || type == Boolean.class;
+    }
+
+    /**
+     * @return -1 if the given value is not of the indexed type
+     */
+    private int slot(Object value) {
+        if (value == null) {
+            return keys.length - 1;
+        } else if (type.isEnum()) {
+            return value instanceof Enum<?> && ((Enum<?>) value).getDeclaringClass() == type
+                    ? ((Enum<?>) value).ordinal() : -1;
+        } else {
+            return value instanceof Boolean ? (((Boolean) value) ? 1 : 0) : -1;
+        }
+    }
+
+    private int checkedSlot(Object value) {
+        int slot = slot(value);
+        if (slot < 0) {
+            throw new IllegalArgumentException(value + " is not a value of " + type.getName());
+        }
+        return slot;
+    }
+
+    /**
+     * Adds the given bean to the posting list of the given value
+     */
+    void add(Object value, K bean) {
+        postings[checkedSlot(value)].add(bean);
+    }
+
+    /**
+     * Retrieves the beans having any of the given values
+     */
+    Set<K> in(Collection<?> values) {
+        BitSet bits = new BitSet();
+        for (Object value : values) {
+            int slot = slot(value);
+            if (slot >= 0) {
+                bits.or(postings[slot].bits());
+            }
+        }
+        return new BitSetPostingSet<K>(ordinals, bits);
+    }
+
+    /**
+     * Retrieves the beans having none of the given values
+     */
+    Set<K> notIn(Collection<?> values) {
+        boolean[] excluded = new boolean[keys.length];
+        for (Object value : values) {
+            int slot = slot(value);
+            if (slot >= 0) {
+                excluded[slot] = true;
+            }
+        }
+        BitSet bits = new BitSet();
+        for (int i = 0; i < keys.length; i++) {
+            if (!excluded[i]) {
+                bits.or(postings[i].bits());
+            }
+        }
+        return new BitSetPostingSet<K>(ordinals, bits);
+    }
+
+    @Override
+    public Set<K> get(Object key) {
+        int slot = slot(key);
+        return slot < 0 || postings[slot].isEmpty() ? null : postings[slot];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<K> put(Object key, Set<K> posting) {
+        BitSetPostingSet<K> current = postings[checkedSlot(key)];
+        if (current != posting) {
+            current.clear();
+            current.addAll(posting);
+        }
+        return null;
+    }
+
+    @Override
+    public Set<K> remove(Object key) {
+        Set<K> posting = get(key);
+        if (posting != null) {
+            posting.clear();
+        }
+        return posting;
+    }
+
+    @Override
+    public void clear() {
+        for (BitSetPostingSet<K> posting : postings) {
+            posting.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BitSetPostingSet<K> posting : postings) {
+            if (!posting.isEmpty()) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<Object, Set<K>>> entrySet() {
+        return new AbstractSet<Entry<Object, Set<K>>>() {
+
+            @Override
+            public Iterator<Entry<Object, Set<K>>> iterator() {
+                return new Iterator<Entry<Object, Set<K>>>() {
+
+                    private int slot = advance(-1);
+                    private int last = -1;
+
+                    private int advance(int from) {
+                        do {
+                            from++;
+                        } while (from < keys.length && postings[from].isEmpty());
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < keys.length;
+                    }
+
+                    @Override
+                    public Entry<Object, Set<K>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        last = slot;
+                        slot = advance(slot);
+                        return new SimpleImmutableEntry<Object, Set<K>>(keys[last], postings[last]);
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        postings[last].clear();
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return BitSetIndexMap.this.size();
+            }
+        };
+    }
+}
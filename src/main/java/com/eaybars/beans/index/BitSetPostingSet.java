@@ -0,0 +1,153 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of beans stored as a bitset over the ordinals of the beans of an
+ * indexer. Bitsets of the same indexer share the ordinals, so they can be
+ * combined with bitwise operations. A set wrapping the result of such an
+ * operation is an unmodifiable view.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class BitSetPostingSet<K> extends AbstractSet<K> {
+
+    private final BeanOrdinals ordinals;
+    private final BitSet bits;
+    private final boolean view;
+    private int size;
+    private int modifications;
+
+    BitSetPostingSet(BeanOrdinals ordinals) {
+        this.ordinals = ordinals;
+        this.bits = new BitSet();
+        this.view = false;
+    }
+
+    BitSetPostingSet(BeanOrdinals ordinals, BitSet bits) {
+        this.ordinals = ordinals;
+        this.bits = bits;
+        this.view = true;
+        this.size = bits.cardinality();
+    }
+
+    BitSet bits() {
+        return bits;
+    }
+
+    /**
+     * Counts the beans of this set whose ordinals are in the given bits
+     */
+    int intersectionSize(BitSet other) {
+        BitSet intersection = (BitSet) bits.clone();
+        intersection.and(other);
+        return intersection.cardinality();
+    }
+
+    private void checkModifiable() {
+        if (view) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public boolean add(K bean) {
+        checkModifiable();
+        int ordinal = ordinals.ordinalOf(bean);
+        if (ordinal >= 0 && bits.get(ordinal)) {
+            return false;
+        }
+        bits.set(ordinals.acquire(bean));
+        size++;
+        modifications++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        int ordinal = ordinals.ordinalOf(o);
+        return ordinal >= 0 && bits.get(ordinal);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        checkModifiable();
+        int ordinal = ordinals.ordinalOf(o);
+        if (ordinal < 0 || !bits.get(ordinal)) {
+            return false;
+        }
+        removeAt(ordinal);
+        return true;
+    }
+
+    private void removeAt(int ordinal) {
+        bits.clear(ordinal);
+        ordinals.release(ordinal);
+        size--;
+        modifications++;
+    }
+
+    @Override
+    public void clear() {
+        checkModifiable();
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            ordinals.release(i);
+        }
+        bits.clear();
+        size = 0;
+        modifications++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new Iterator<K>() {
+
+            private int next = bits.nextSetBit(0);
+            private int last = -1;
+            private int expected = modifications;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public K next() {
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = bits.nextSetBit(next + 1);
+                return (K) ordinals.get(last);
+            }
+
+            @Override
+            public void remove() {
+                checkModifiable();
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                last = -1;
+                expected = modifications;
+            }
+        };
+    }
+}
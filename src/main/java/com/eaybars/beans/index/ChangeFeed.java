@@ -0,0 +1,220 @@
+package com.eaybars.beans.index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Feed of the changes made to the indexes of a BeanIndexer, obtained from
+ * BeanIndexer.enableChangeFeed. Each time a bean enters or leaves a key of an
+ * index, an event is written to a ring buffer which subscribers poll in
+ * batches from their own threads.
+ * <p>
+ * Writing an event claims the next sequence number with a single atomic
+ * increment and never waits for the subscribers. A subscriber which falls
+ * behind by more than the capacity of the buffer skips the overwritten
+ * events, which are counted as missed.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class ChangeFeed<K> {
+
+    /**
+     * Kind of a change
+     */
+    public enum Operation {
+
+        /**
+         * A bean has been added to the indexer, entering the new key of the
+         * index
+         */
+        ADD,
+        /**
+         * A bean has been removed from the indexer, leaving the old key of the
+         * index
+         */
+        REMOVE,
+        /**
+         * A bean has moved from the old key to the new key of the index. One
+         * of the keys is null if the values of a multi valued index change.
+         */
+        UPDATE,
+        /**
+         * All beans have been removed from the indexer
+         */
+        CLEAR
+    }
+
+    /**
+     * A change of an index
+     *
+     * @param <K>
+     */
+    public static final class Event<K> {
+
+        private final long sequence;
+        private final Operation operation;
+        private final K bean;
+        private final String index;
+        private final Object oldKey;
+        private final Object newKey;
+
+        Event(long sequence, Operation operation, K bean, String index, Object oldKey, Object newKey) {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.bean = bean;
+            this.index = index;
+            this.oldKey = oldKey;
+            this.newKey = newKey;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the changed bean, null for CLEAR
+         */
+        public K getBean() {
+            return bean;
+        }
+
+        /**
+         * @return the name of the changed index, null for CLEAR
+         */
+        public String getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the key the bean has left, null for ADD
+         */
+        public Object getOldKey() {
+            return oldKey;
+        }
+
+        /**
+         * @return the key the bean has entered, null for REMOVE
+         */
+        public Object getNewKey() {
+            return newKey;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + operation + " " + index + " " + oldKey + " -> " + newKey + " " + bean;
+        }
+    }
+
+    private final AtomicReferenceArray<Event<K>> events;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+
+    ChangeFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.events = new AtomicReferenceArray<Event<K>>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return the number of events kept in the buffer, the requested capacity
+     * rounded up to a power of two
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return the sequence number of the next event
+     */
+    public long getSequence() {
+        return head.get();
+    }
+
+    void publish(Operation operation, K bean, String index, Object oldKey, Object newKey) {
+        long sequence = head.getAndIncrement();
+        events.lazySet((int) sequence & mask, new Event<K>(sequence, operation, bean, index, oldKey, newKey));
+    }
+
+    /**
+     * Creates a subscription receiving the events written from now on
+     *
+     * @return
+     */
+    public Subscription subscribe() {
+        return new Subscription(head.get());
+    }
+
+    /**
+     * Position of a subscriber in the feed. A subscription is not thread safe
+     * and should be polled by one thread at a time.
+     */
+    public class Subscription {
+
+        private long position;
+        private long missed;
+
+        private Subscription(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Retrieves the events written since the last poll, in the order of
+         * their sequence numbers
+         *
+         * @param maxEvents maximum number of events to retrieve
+         * @return the events, empty if there is no new event
+         */
+        public List<Event<K>> poll(int maxEvents) {
+            List<Event<K>> batch = new ArrayList<Event<K>>(Math.min(maxEvents, 64));
+            while (batch.size() < maxEvents) {
+                Event<K> event = events.get((int) position & mask);
+                if (event == null || event.sequence < position) {// not written yet
+                    break;
+                }
+                if (event.sequence > position) {// overwritten
+                    long oldest = Math.max(head.get() - events.length(), position + 1);
+                    missed += oldest - position;
+                    position = oldest;
+                    continue;
+                }
+                batch.add(event);
+                position++;
+            }
+            return batch;
+        }
+
+        /**
+         * @return the sequence number of the next event to poll
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return the number of events overwritten before they were polled
+         */
+        public long getMissed() {
+            return missed;
+        }
+
+        /**
+         * @return the number of events written but not polled yet
+         */
+        public long getLag() {
+            return head.get() - position;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.eaybars.beans.index;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.DoublePredicate;
+
+/**
+ * Columnar copy of numeric properties of the beans of a BeanIndexer,
+ * obtained from BeanIndexer.enableColumns. The values of each property are
+ * kept in a double array aligned to bean ordinals, so that scans and
+ * aggregations run as plain loops over the arrays instead of reading the
+ * property of each bean. A bean without a value, a removed bean and a free
+ * ordinal hold NaN, which fails every comparison and is skipped by the
+ * aggregations. The indexer scans through the columns with Filter.where.
+ * Its min, max, sum and average, and those of its searches, read the column
+ * of a property only if the property has no sorted index, as the ends and
+ * running totals of a sorted index answer them without a scan.
+ * <p>
+ * Columns are kept up to date when beans are added and removed, and when a
+ * property of an observable bean changes. Values are Numbers or Dates, the
+ * latter stored as milliseconds since the epoch, and long values beyond 2^53
+ * lose precision. A value of another type found after the columns are enabled
+ * is held as NaN, so that it does not fail the change which brought it. The
+ * store is thread safe, scans hold its lock.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class ColumnStore<K> {
+
+    private final String[] properties;
+    private final PropertyAccessor<K>[] accessors;
+    private final boolean[] derived;
+    private final double[][] columns;
+    private BeanOrdinals ordinals = new BeanOrdinals();
+    private int length;
+
+    /**
+     * @param derived whether the value of each property depends on other
+     * properties, and is read again whenever any property changes
+     */
+    ColumnStore(String[] properties, PropertyAccessor<K>[] accessors, boolean[] derived) {
+        this.properties = properties;
+        this.accessors = accessors;
+        this.derived = derived;
+        this.columns = new double[properties.length][16];
+        for (double[] column : columns) {
+            Arrays.fill(column, Double.NaN);
+        }
+    }
+
+    /**
+     * @return the properties held in columns
+     */
+    public List<String> getProperties() {
+        return Collections.unmodifiableList(Arrays.asList(properties));
+    }
+
+    /**
+     * @return the number of beans in the store
+     */
+    public synchronized int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * Retrieves the value of the given property held for the given bean
+     *
+     * @param bean
+     * @param property
+     * @return NaN if the bean is not in the store or has no value
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized double getValue(K bean, String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        int ordinal = ordinals.ordinalOf(bean);
+        return ordinal < 0 ? Double.NaN : column[ordinal];
+    }
+
+    /**
+     * @param property
+     * @return the number of beans having a value for the given property
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized int count(String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (column[i] == column[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the beans whose value of the given property is within the given
+     * inclusive bounds
+     *
+     * @param property
+     * @param from
+     * @param to
+     * @return
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized int count(String property, double from, double to)
+            throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v >= from && v <= to) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieves the beans whose value of the given property is within the
+     * given inclusive bounds
+     *
+     * @param property
+     * @param from
+     * @param to
+     * @return
+     * @throws IllegalArgumentException if no such column exists
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Set<K> between(String property, double from, double to)
+            throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        Set<K> result = new HashSet<K>();
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v >= from && v <= to) {
+                result.add((K) ordinals.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the beans whose value of the given property matches the
+     * given predicate. Beans without a value are not tested.
+     *
+     * @param property
+     * @param predicate
+     * @return
+     * @throws IllegalArgumentException if no such column exists
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Set<K> matching(String property, DoublePredicate predicate)
+            throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        Set<K> result = new HashSet<K>();
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v == v && predicate.test(v)) {
+                result.add((K) ordinals.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the beans whose value of the given property matches the given
+     * predicate to the given set
+     *
+     * @param within the beans to test, or null for all beans
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void matching(String property, DoublePredicate predicate, Set<K> within,
+            Set<K> matches) {
+        double[] column = columns[column(property)];
+        if (within == null) {
+            for (int i = 0; i < length; i++) {
+                double v = column[i];
+                if (v == v && predicate.test(v)) {
+                    matches.add((K) ordinals.get(i));
+                }
+            }
+        } else {
+            for (K bean : within) {
+                int ordinal = ordinals.ordinalOf(bean);
+                double v = ordinal < 0 ? Double.NaN : column[ordinal];
+                if (v == v && predicate.test(v)) {
+                    matches.add(bean);
+                }
+            }
+        }
+    }
+
+    /**
+     * Summarizes the values of the given property held for the given beans
+     */
+    synchronized DoubleSummaryStatistics summary(String property, Set<K> within) {
+        double[] column = columns[column(property)];
+        DoubleSummaryStatistics summary = new DoubleSummaryStatistics();
+        for (K bean : within) {
+            int ordinal = ordinals.ordinalOf(bean);
+            double v = ordinal < 0 ? Double.NaN : column[ordinal];
+            if (v == v) {
+                summary.accept(v);
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @param property
+     * @return the sum of the values of the given property, zero if there are
+     * none
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized double sum(String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            sum += v == v ? v : 0;
+        }
+        return sum;
+    }
+
+    /**
+     * @param property
+     * @return the average of the values of the given property, NaN if there
+     * are none
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized double average(String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v == v) {
+                sum += v;
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @param property
+     * @return the lowest value of the given property, NaN if there are none
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized double min(String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        double min = Double.POSITIVE_INFINITY;
+        boolean found = false;
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v <= min) {
+                min = v;
+                found = true;
+            }
+        }
+        return found ? min : Double.NaN;
+    }
+
+    /**
+     * @param property
+     * @return the highest value of the given property, NaN if there are none
+     * @throws IllegalArgumentException if no such column exists
+     */
+    public synchronized double max(String property) throws IllegalArgumentException {
+        double[] column = columns[column(property)];
+        double max = Double.NEGATIVE_INFINITY;
+        boolean found = false;
+        for (int i = 0; i < length; i++) {
+            double v = column[i];
+            if (v >= max) {
+                max = v;
+                found = true;
+            }
+        }
+        return found ? max : Double.NaN;
+    }
+
+    boolean hasColumn(String property) {
+        return Arrays.asList(properties).contains(property);
+    }
+
+    private int column(String property) {
+        for (int i = 0; i < properties.length; i++) {
+            if (properties[i].equals(property)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No such column: " + property);
+    }
+
+    /**
+     * Reads the values of the beans of the indexer when the columns are
+     * enabled
+     *
+     * @throws IllegalArgumentException if a value is neither a Number nor a
+     * Date
+     */
+    synchronized void load(Iterable<K> beans) {
+        for (K bean : beans) {
+            add(bean, true);
+        }
+    }
+
+    /**
+     * Reads the values of a bean added to the indexer
+     */
+    synchronized void added(K bean) {
+        add(bean, false);
+    }
+
+    private void add(K bean, boolean strict) {
+        double[] values = new double[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = read(i, bean, strict);
+        }
+        int ordinal = ordinals.acquire(bean);
+        if (ordinal >= columns[0].length) {
+            int capacity = columns[0].length * 2;
+            for (int i = 0; i < columns.length; i++) {
+                double[] column = Arrays.copyOf(columns[i], capacity);
+                Arrays.fill(column, columns[i].length, capacity, Double.NaN);
+                columns[i] = column;
+            }
+        }
+        length = Math.max(length, ordinal + 1);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i][ordinal] = values[i];
+        }
+    }
+
+    synchronized void removed(Object bean) {
+        int ordinal = ordinals.ordinalOf(bean);
+        if (ordinal >= 0) {
+            for (double[] column : columns) {
+                column[ordinal] = Double.NaN;
+            }
+            ordinals.release(ordinal);
+        }
+    }
+
+    /**
+     * Reads the given property of the given bean again, along with the
+     * derived values
+     */
+    synchronized void changed(K bean, String property) {
+        int ordinal = ordinals.ordinalOf(bean);
+        if (ordinal >= 0) {
+            for (int i = 0; i < columns.length; i++) {
+                if (derived[i] || properties[i].equals(property)) {
+                    columns[i][ordinal] = read(i, bean, false);
+                }
+            }
+        }
+    }
+
+    synchronized void cleared() {
+        ordinals = new BeanOrdinals();
+        for (double[] column : columns) {
+            Arrays.fill(column, 0, length, Double.NaN);
+        }
+        length = 0;
+    }
+
+    private double read(int column, K bean, boolean strict) {
+        Object value = accessors[column].getValue(bean);
+        if (strict && value != null && !(value instanceof Number || value instanceof Date)) {
+            throw new IllegalArgumentException("Values of the property are not numbers: "
+                    + properties[column]);
+        }
+        return toDouble(value);
+    }
+
+    /**
+     * @return NaN if the value is neither a Number nor a Date
+     */
+    static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return Double.NaN;
+    }
+}
@@ -0,0 +1,45 @@
+package com.eaybars.beans.index;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases the native memory of direct and mapped buffers without waiting
+ * for the garbage collector to collect them.
+ *
+ * @author Ertunc
+ */
+final class DirectBuffers {
+
+    private DirectBuffers() {
+    }
+
+    /**
+     * Releases the memory or the mapping of the given buffer, which must not
+     * be used afterwards, nor any view of it. If the memory cannot be
+     * released, it is left to the garbage collector.
+     *
+     * @param buffer a direct buffer obtained from allocateDirect or map, not
+     * a slice or a duplicate
+     */
+    static void free(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } catch (NoSuchMethodException e) {// before Java 9
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception e) {
+        }
+    }
+}
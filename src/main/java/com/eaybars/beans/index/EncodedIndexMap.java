@@ -0,0 +1,271 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Index map of a dictionary encoded index. Each distinct value is assigned
+ * a dense int code, and the value, its hash and its posting list are kept in
+ * arrays indexed by the code. The dictionary is an open addressed table of
+ * codes with linear probing, so that a value is hashed once, compared by its
+ * hash before equals, and stored once without any boxed code or entry
+ * object. The indexer keeps the stored instance of a value, obtained from
+ * intern, wherever it remembers the values of a bean, so that equal values
+ * of many beans share one instance. The code of a value is reused after the
+ * value is removed from the index.
+ * <p>
+ * The map is not thread safe.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class EncodedIndexMap<K> extends AbstractMap<Object, Set<K>> {
+
+    private static final Object NULL_KEY = new Object();
+
+    // code + 1 of the value in each slot, zero for an empty slot
+    private int[] table = new int[32];
+    private Object[] values = new Object[16];
+    private int[] hashes = new int[16];
+    private Object[] postings = new Object[16];
+    private int[] free = new int[16];
+    private int freeCount;
+    private int next;
+    private int size;
+    private int modifications;
+
+    private static int hash(Object value) {
+        int h = value.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(Object value, int hash) {
+        int mask = table.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            int code = table[i] - 1;
+            if (code < 0 || hashes[code] == hash && values[code].equals(value)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * @return -1 if the value is not in the index
+     */
+    int codeOf(Object value) {
+        Object key = value == null ? NULL_KEY : value;
+        return table[slotOf(key, hash(key))] - 1;
+    }
+
+    Object valueOf(int code) {
+        return values[code] == NULL_KEY ? null : values[code];
+    }
+
+    @SuppressWarnings("unchecked")
+    Set<K> postingOf(int code) {
+        return (Set<K>) postings[code];
+    }
+
+    /**
+     * @return the instance of the given value stored in the index, or the
+     * given value if it is not in the index
+     */
+    Object intern(Object value) {
+        int code = codeOf(value);
+        return code < 0 ? value : valueOf(code);
+    }
+
+    /**
+     * Assigns a code to the given value, which must not be in the index
+     *
+     * @return the code of the value
+     */
+    int encode(Object value, Set<K> posting) {
+        Object key = value == null ? NULL_KEY : value;
+        int hash = hash(key);
+        int code = freeCount > 0 ? free[--freeCount] : next++;
+        if (code == values.length) {
+            values = Arrays.copyOf(values, code * 2);
+            hashes = Arrays.copyOf(hashes, code * 2);
+            postings = Arrays.copyOf(postings, code * 2);
+        }
+        values[code] = key;
+        hashes[code] = hash;
+        postings[code] = posting;
+        table[slotOf(key, hash)] = code + 1;
+        size++;
+        modifications++;
+        if (size * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return code;
+    }
+
+    /**
+     * Removes the value having the given code from the index, releasing its
+     * posting list
+     */
+    void release(int code) {
+        int mask = table.length - 1;
+        int i = slotOf(values[code], hashes[code]);
+        // shift back the following slots of the probe sequence
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[table[j] - 1] & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+        OffHeapCollectionFactory.release(postings[code]);
+        values[code] = null;
+        postings[code] = null;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, freeCount * 2);
+        }
+        free[freeCount++] = code;
+        size--;
+        modifications++;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int code = 0; code < next; code++) {
+            if (values[code] != null) {
+                int i = hashes[code] & mask;
+                while (table[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = code + 1;
+            }
+        }
+    }
+
+    @Override
+    public Set<K> get(Object key) {
+        int code = codeOf(key);
+        return code < 0 ? null : postingOf(code);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return codeOf(key) >= 0;
+    }
+
+    @Override
+    public Set<K> put(Object key, Set<K> posting) {
+        int code = codeOf(key);
+        if (code < 0) {
+            encode(key, posting);
+            return null;
+        }
+        Set<K> old = postingOf(code);
+        postings[code] = posting;
+        if (old != posting) {
+            OffHeapCollectionFactory.release(old);
+        }
+        return old;
+    }
+
+    @Override
+    public Set<K> remove(Object key) {
+        int code = codeOf(key);
+        if (code < 0) {
+            return null;
+        }
+        Set<K> old = postingOf(code);
+        release(code);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < next; i++) {
+            OffHeapCollectionFactory.release(postings[i]);
+            values[i] = null;
+            postings[i] = null;
+        }
+        Arrays.fill(table, 0);
+        freeCount = 0;
+        next = 0;
+        size = 0;
+        modifications++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<Object, Set<K>>> entrySet() {
+        return new AbstractSet<Entry<Object, Set<K>>>() {
+
+            @Override
+            public Iterator<Entry<Object, Set<K>>> iterator() {
+                return new Iterator<Entry<Object, Set<K>>>() {
+
+                    private int code = advance(-1);
+                    private int last = -1;
+                    private int expected = modifications;
+
+                    private int advance(int from) {
+                        do {
+                            from++;
+                        } while (from < next && values[from] == null);
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return code < next;
+                    }
+
+                    @Override
+                    public Entry<Object, Set<K>> next() {
+                        if (expected != modifications) {
+                            throw new ConcurrentModificationException();
+                        }
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        last = code;
+                        code = advance(code);
+                        final int c = last;
+                        return new SimpleEntry<Object, Set<K>>(valueOf(c), postingOf(c)) {
+
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public Set<K> setValue(Set<K> value) {
+                                postings[c] = value;
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last < 0) {
+                            throw new IllegalStateException();
+                        }
+                        release(last);
+                        last = -1;
+                        expected = modifications;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
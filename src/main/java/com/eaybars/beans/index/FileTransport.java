@@ -0,0 +1,115 @@
+package com.eaybars.beans.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Transport through a file: the leader appends the batches to the file, each
+ * framed by its length and checksum like the batches of a MutationLog, and
+ * each follower tails the file with its own FileTransport from the beginning.
+ * A batch which is not completely written yet is read again later.
+ *
+ * @author Ertunc
+ */
+public class FileTransport implements ReplicationTransport {
+
+    private static final int HEADER_SIZE = 8;
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final File file;
+    private RandomAccessFile out;
+    private RandomAccessFile in;
+    private long position;
+
+    /**
+     * @param file
+     */
+    public FileTransport(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized void send(byte[] batch) throws IOException {
+        if (out == null) {
+            out = new RandomAccessFile(file, "rw");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(batch, 0, batch.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + batch.length);
+        buffer.putInt(batch.length).putInt((int) crc.getValue()).put(batch).flip();
+        FileChannel channel = out.getChannel();
+        long end = channel.size();
+        while (buffer.hasRemaining()) {
+            end += channel.write(buffer, end);
+        }
+    }
+
+    @Override
+    public synchronized byte[] receive(long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            byte[] batch = read();
+            if (batch != null) {
+                return batch;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, POLL_INTERVAL));
+        }
+    }
+
+    /**
+     * Reads the batch at the current position if it is completely written
+     */
+    private byte[] read() throws IOException {
+        if (in == null) {
+            if (!file.exists()) {
+                return null;
+            }
+            in = new RandomAccessFile(file, "r");
+        }
+        FileChannel channel = in.getChannel();
+        if (channel.size() < position + HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+        }
+        int length = header.getInt(0);
+        if (length < 0 || channel.size() < position + HEADER_SIZE + length) {
+            return null;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length);
+        while (batch.hasRemaining()
+                && channel.read(batch, position + HEADER_SIZE + batch.position()) > 0) {
+        }
+        CRC32 crc = new CRC32();
+        crc.update(batch.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(4)) {// still being written
+            return null;
+        }
+        position += HEADER_SIZE + length;
+        return batch.array();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+}
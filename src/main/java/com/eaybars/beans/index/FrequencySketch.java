@@ -0,0 +1,75 @@
+package com.eaybars.beans.index;
+
+/**
+ * Count-min sketch estimating how often beans have been used, with four bit
+ * counters packed sixteen to a long. Once the number of increments reaches
+ * ten times the capacity all counters are halved, so that the estimates
+ * favour recent use. Not thread safe.
+ *
+ * @author Ertunc
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * Math.max(capacity, 1);
+    }
+
+    /**
+     * @return the estimated number of uses of the given bean, at most 15
+     */
+    int frequency(Object bean) {
+        int hash = spread(bean.hashCode());
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int shift = offset(hash, i) << 2;
+            frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> shift) & 15));
+        }
+        return frequency;
+    }
+
+    void increment(Object bean) {
+        int hash = spread(bean.hashCode());
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = index(hash, i);
+            int shift = offset(hash, i) << 2;
+            if (((table[index] >>> shift) & 15) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int offset(int hash, int i) {
+        return (hash >>> (i << 3)) & 15;
+    }
+}
@@ -0,0 +1,125 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable index map of an unsorted index of a frozen indexer. Keys and
+ * posting sets are kept in parallel arrays of an open addressed table with
+ * linear probing, filled to at most half of its capacity.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class FrozenHashIndexMap<K> extends AbstractMap<Object, Set<K>> {
+
+    private static final Object NULL_KEY = new Object();
+
+    private final Object[] keys;
+    private final Object[] postings;
+    private final int mask;
+    private final int size;
+
+    FrozenHashIndexMap(Map<Object, Set<K>> source, BeanOrdinals ordinals) {
+        int capacity = Integer.highestOneBit(Math.max(2, source.size() * 2) - 1) << 1;
+        this.keys = new Object[capacity];
+        this.postings = new Object[capacity];
+        this.mask = capacity - 1;
+        int count = 0;
+        for (Entry<Object, Set<K>> e : source.entrySet()) {
+            if (e.getValue().isEmpty()) {
+                continue;
+            }
+            Object key = e.getKey() == null ? NULL_KEY : e.getKey();
+            int i = slot(key);
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            postings[i] = FrozenPostingSet.of(ordinals, e.getValue(), e.getValue().size());
+            count++;
+        }
+        this.size = count;
+    }
+
+    private int slot(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(Object key) {
+        Object k = key == null ? NULL_KEY : key;
+        for (int i = slot(k);; i = (i + 1) & mask) {
+            if (keys[i] == null) {
+                return -1;
+            } else if (Objects.equals(keys[i], k)) {
+                return i;
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<K> get(Object key) {
+        int i = find(key);
+        return i < 0 ? null : (Set<K>) postings[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<Object, Set<K>>> entrySet() {
+        return new AbstractSet<Entry<Object, Set<K>>>() {
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<Object, Set<K>>> iterator() {
+                return new Iterator<Entry<Object, Set<K>>>() {
+
+                    int next = advance(0);
+
+                    private int advance(int i) {
+                        while (i < keys.length && keys[i] == null) {
+                            i++;
+                        }
+                        return i;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Entry<Object, Set<K>> next() {
+                        if (next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next;
+                        next = advance(i + 1);
+                        return new SimpleImmutableEntry<Object, Set<K>>(
+                                keys[i] == NULL_KEY ? null : keys[i], (Set<K>) postings[i]);
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,75 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of beans of a frozen indexer, stored as a sorted array of
+ * the ordinals of the beans. Membership is a lookup of the ordinal of the
+ * bean followed by a binary search.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class FrozenPostingSet<K> extends AbstractSet<K> {
+
+    private final BeanOrdinals ordinals;
+    private final int[] postings;
+
+    /**
+     * @param postings sorted ordinals of the beans
+     */
+    FrozenPostingSet(BeanOrdinals ordinals, int[] postings) {
+        this.ordinals = ordinals;
+        this.postings = postings;
+    }
+
+    /**
+     * Creates the posting set of the given beans
+     */
+    static <K> FrozenPostingSet<K> of(BeanOrdinals ordinals, Iterable<?> beans, int size) {
+        int[] postings = new int[size];
+        int i = 0;
+        for (Object bean : beans) {
+            postings[i++] = ordinals.ordinalOf(bean);
+        }
+        Arrays.sort(postings);
+        return new FrozenPostingSet<K>(ordinals, postings);
+    }
+
+    @Override
+    public int size() {
+        return postings.length;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        int ordinal = ordinals.ordinalOf(o);
+        return ordinal >= 0 && (postings.length == ordinals.size()
+                || Arrays.binarySearch(postings, ordinal) >= 0);
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new Iterator<K>() {
+
+            int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < postings.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public K next() {
+                if (next == postings.length) {
+                    throw new NoSuchElementException();
+                }
+                return (K) ordinals.get(postings[next++]);
+            }
+        };
+    }
+}
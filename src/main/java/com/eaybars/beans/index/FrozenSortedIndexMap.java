@@ -0,0 +1,301 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable index map of a sorted index of a frozen indexer. Keys are kept
+ * in a sorted array searched by binary search, aligned with an array of the
+ * posting sets. Range views share the arrays of the map, and bounds outside
+ * the range of a view are clamped to the view.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class FrozenSortedIndexMap<K> extends AbstractMap<Object, Set<K>>
+        implements NavigableMap<Object, Set<K>> {
+
+    private final Comparator<? super Object> comparator;
+    private final Comparator<? super Object> order;
+    private final Object[] keys;
+    private final Object[] postings;
+    private final int lo;
+    private final int hi;
+    private final boolean descending;
+
+    @SuppressWarnings("unchecked")
+    FrozenSortedIndexMap(NavigableMap<Object, Set<K>> source, BeanOrdinals ordinals) {
+        this.comparator = source.comparator();
+        this.order = comparator == null ? (Comparator<? super Object>) (Comparator<?>) Comparator.naturalOrder() : comparator;
+        Object[] k = new Object[source.size()];
+        Object[] p = new Object[source.size()];
+        int count = 0;
+        for (Entry<Object, Set<K>> e : source.entrySet()) {
+            if (!e.getValue().isEmpty()) {
+                k[count] = e.getKey();
+                p[count++] = FrozenPostingSet.of(ordinals, e.getValue(), e.getValue().size());
+            }
+        }
+        this.keys = Arrays.copyOf(k, count);
+        this.postings = Arrays.copyOf(p, count);
+        this.lo = 0;
+        this.hi = count;
+        this.descending = false;
+    }
+
+    private FrozenSortedIndexMap(FrozenSortedIndexMap<K> map, int lo, int hi, boolean descending) {
+        this.comparator = map.comparator;
+        this.order = map.order;
+        this.keys = map.keys;
+        this.postings = map.postings;
+        this.lo = lo;
+        this.hi = Math.max(lo, hi);
+        this.descending = descending;
+    }
+
+    private int search(Object key) {
+        return Arrays.binarySearch(keys, lo, hi, key, order);
+    }
+
+    // indexes in ascending order, within [lo, hi]
+    private int ceilingIndex(Object key) {
+        int i = search(key);
+        return i >= 0 ? i : -(i + 1);
+    }
+
+    private int higherIndex(Object key) {
+        int i = search(key);
+        return i >= 0 ? i + 1 : -(i + 1);
+    }
+
+    private int floorIndex(Object key) {
+        int i = search(key);
+        return i >= 0 ? i : -(i + 1) - 1;
+    }
+
+    private int lowerIndex(Object key) {
+        int i = search(key);
+        return (i >= 0 ? i : -(i + 1)) - 1;
+    }
+
+    private int start(Object key, boolean inclusive) {
+        return inclusive ? ceilingIndex(key) : higherIndex(key);
+    }
+
+    private int end(Object key, boolean inclusive) {
+        return inclusive ? higherIndex(key) : ceilingIndex(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entry<Object, Set<K>> entry(int i) {
+        return i < lo || i >= hi ? null
+                : new SimpleImmutableEntry<Object, Set<K>>(keys[i], (Set<K>) postings[i]);
+    }
+
+    private static Object key(Entry<Object, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private static Object existingKey(Entry<Object, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    @Override
+    public int size() {
+        return hi - lo;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<K> get(Object key) {
+        int i = search(key);
+        return i >= 0 ? (Set<K>) postings[i] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return search(key) >= 0;
+    }
+
+    @Override
+    public Comparator<? super Object> comparator() {
+        return descending ? Collections.reverseOrder(comparator) : comparator;
+    }
+
+    @Override
+    public Entry<Object, Set<K>> firstEntry() {
+        return entry(descending ? hi - 1 : lo);
+    }
+
+    @Override
+    public Entry<Object, Set<K>> lastEntry() {
+        return entry(descending ? lo : hi - 1);
+    }
+
+    @Override
+    public Object firstKey() {
+        return existingKey(firstEntry());
+    }
+
+    @Override
+    public Object lastKey() {
+        return existingKey(lastEntry());
+    }
+
+    @Override
+    public Entry<Object, Set<K>> ceilingEntry(Object key) {
+        return entry(descending ? floorIndex(key) : ceilingIndex(key));
+    }
+
+    @Override
+    public Entry<Object, Set<K>> floorEntry(Object key) {
+        return entry(descending ? ceilingIndex(key) : floorIndex(key));
+    }
+
+    @Override
+    public Entry<Object, Set<K>> higherEntry(Object key) {
+        return entry(descending ? lowerIndex(key) : higherIndex(key));
+    }
+
+    @Override
+    public Entry<Object, Set<K>> lowerEntry(Object key) {
+        return entry(descending ? higherIndex(key) : lowerIndex(key));
+    }
+
+    @Override
+    public Object ceilingKey(Object key) {
+        return key(ceilingEntry(key));
+    }
+
+    @Override
+    public Object floorKey(Object key) {
+        return key(floorEntry(key));
+    }
+
+    @Override
+    public Object higherKey(Object key) {
+        return key(higherEntry(key));
+    }
+
+    @Override
+    public Object lowerKey(Object key) {
+        return key(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<Object, Set<K>> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<Object, Set<K>> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableMap<Object, Set<K>> descendingMap() {
+        return new FrozenSortedIndexMap<K>(this, lo, hi, !descending);
+    }
+
+    @Override
+    public NavigableSet<Object> navigableKeySet() {
+        TreeSet<Object> set = new TreeSet<Object>(comparator());
+        set.addAll(keySet());
+        return Collections.unmodifiableNavigableSet(set);
+    }
+
+    @Override
+    public NavigableSet<Object> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableMap<Object, Set<K>> subMap(Object fromKey, boolean fromInclusive,
+            Object toKey, boolean toInclusive) {
+        if (descending) {
+            return new FrozenSortedIndexMap<K>(this, start(toKey, toInclusive),
+                    end(fromKey, fromInclusive), true);
+        }
+        return new FrozenSortedIndexMap<K>(this, start(fromKey, fromInclusive),
+                end(toKey, toInclusive), false);
+    }
+
+    @Override
+    public NavigableMap<Object, Set<K>> headMap(Object toKey, boolean inclusive) {
+        if (descending) {
+            return new FrozenSortedIndexMap<K>(this, start(toKey, inclusive), hi, true);
+        }
+        return new FrozenSortedIndexMap<K>(this, lo, end(toKey, inclusive), false);
+    }
+
+    @Override
+    public NavigableMap<Object, Set<K>> tailMap(Object fromKey, boolean inclusive) {
+        if (descending) {
+            return new FrozenSortedIndexMap<K>(this, lo, end(fromKey, inclusive), true);
+        }
+        return new FrozenSortedIndexMap<K>(this, start(fromKey, inclusive), hi, false);
+    }
+
+    @Override
+    public SortedMap<Object, Set<K>> subMap(Object fromKey, Object toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<Object, Set<K>> headMap(Object toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<Object, Set<K>> tailMap(Object fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public Set<Entry<Object, Set<K>>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Set<K>>>() {
+
+            @Override
+            public int size() {
+                return hi - lo;
+            }
+
+            @Override
+            public Iterator<Entry<Object, Set<K>>> iterator() {
+                return new Iterator<Entry<Object, Set<K>>>() {
+
+                    int next = descending ? hi - 1 : lo;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next >= lo && next < hi;
+                    }
+
+                    @Override
+                    public Entry<Object, Set<K>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<Object, Set<K>> entry = entry(next);
+                        next += descending ? -1 : 1;
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+}
@@ -14,6 +14,11 @@ public @interface Index {
     
     boolean contents() default false;
     boolean sorted() default false;
+    /**
+     * Whether the values of an unsorted index are dictionary encoded, see
+     * BeanIndexer.addEncodedIndex
+     */
+    boolean encoded() default false;
     @SuppressWarnings("rawtypes")
     Class<? extends Comparator> comparator() default Comparator.class;
 
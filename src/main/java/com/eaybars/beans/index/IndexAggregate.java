@@ -0,0 +1,117 @@
+package com.eaybars.beans.index;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Order statistics of the values of a sorted index: the keys in index order
+ * with the cumulative number of values up to each key, and the sum of the
+ * values if they are numbers. Computed once from the posting sizes, it
+ * answers percentiles by binary search and sums in constant time until the
+ * index changes.
+ *
+ * @author Ertunc
+ */
+final class IndexAggregate {
+
+    private final long generation;
+    private final Object[] keys;
+    private final long[] counts;
+    private final double sum;
+    private final boolean numeric;
+
+    /**
+     * @param generation modification count of the indexer the aggregate is
+     * valid for
+     * @param map sorted index
+     * @param within beans to aggregate, or null for all the beans of the
+     * index
+     */
+    <K> IndexAggregate(long generation, NavigableMap<Object, Set<K>> map, Set<K> within) {
+        this.generation = generation;
+        Object[] k = new Object[map.size()];
+        long[] c = new long[map.size()];
+        int size = 0;
+        long count = 0;
+        double s = 0;
+        boolean n = true;
+        for (Map.Entry<Object, Set<K>> e : map.entrySet()) {
+            if (size == k.length) {// concurrent indexes may grow meanwhile
+                break;
+            }
+            long beans = within == null ? e.getValue().size() : intersection(e.getValue(), within);
+            if (beans > 0) {
+                count += beans;
+                k[size] = e.getKey();
+                c[size++] = count;
+                if (e.getKey() instanceof Number) {
+                    s += ((Number) e.getKey()).doubleValue() * beans;
+                } else {
+                    n = false;
+                }
+            }
+        }
+        this.keys = size == k.length ? k : Arrays.copyOf(k, size);
+        this.counts = size == c.length ? c : Arrays.copyOf(c, size);
+        this.sum = s;
+        this.numeric = n;
+    }
+
+    private static <K> long intersection(Set<K> posting, Set<K> within) {
+        Set<K> small = posting.size() < within.size() ? posting : within;
+        Set<K> large = small == posting ? within : posting;
+        long count = 0;
+        for (K bean : small) {
+            if (large.contains(bean)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return number of the aggregated values, counting each value of a
+     * multi valued property
+     */
+    long count() {
+        return counts.length == 0 ? 0 : counts[counts.length - 1];
+    }
+
+    /**
+     * Retrieves the value at the given percentile by the nearest rank method
+     *
+     * @param percentile between 0 and 1
+     * @return null if there are no values
+     */
+    Object percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return null;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        int low = 0;
+        int high = counts.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (counts[mid] < rank) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return keys[low];
+    }
+
+    /**
+     * @return null if the values are not numbers
+     */
+    Double sum() {
+        return numeric ? sum : null;
+    }
+}
@@ -0,0 +1,130 @@
+package com.eaybars.beans.index;
+
+import java.util.Comparator;
+
+/**
+ * Immutable description of a single index: the indexed property, whether it
+ * is sorted, the comparator of a sorted index (null for natural ordering),
+ * whether an unsorted index is dictionary encoded, the enum or boolean type
+ * of the values of a single valued index, whether the values are derived
+ * from the whole bean rather than read from a single property and the
+ * accessor used to read the indexed values. A definition is created by
+ * sorted or unsorted, and the other attributes are set on copies of it.
+ *
+ * @author Ertunc
+ * @param <K> type of the bean
+ */
+public final class IndexDefinition<K> {
+
+    private final String property;
+    private final boolean sorted;
+    private final Comparator<?> comparator;
+    private final boolean encoded;
+    private final Class<?> valueType;
+    private final boolean derived;
+    private final PropertyAccessor<K> accessor;
+
+    private IndexDefinition(String property, boolean sorted, Comparator<?> comparator,
+            boolean encoded, Class<?> valueType, boolean derived, PropertyAccessor<K> accessor) {
+        this.property = property;
+        this.sorted = sorted;
+        this.comparator = comparator;
+        this.encoded = encoded;
+        this.valueType = valueType;
+        this.derived = derived;
+        this.accessor = accessor;
+    }
+
+    /**
+     * Defines a sorted index
+     *
+     * @param <K>
+     * @param property
+     * @param comparator null for the natural ordering of the values
+     * @param accessor
+     * @return
+     */
+    public static <K> IndexDefinition<K> sorted(String property, Comparator<?> comparator,
+            PropertyAccessor<K> accessor) {
+        return new IndexDefinition<K>(property, true, comparator, false, null, false, accessor);
+    }
+
+    /**
+     * Defines an unsorted index
+     *
+     * @param <K>
+     * @param property
+     * @param accessor
+     * @return
+     */
+    public static <K> IndexDefinition<K> unsorted(String property, PropertyAccessor<K> accessor) {
+        return new IndexDefinition<K>(property, false, null, false, null, false, accessor);
+    }
+
+    /**
+     * @return a copy of this unsorted index which is dictionary encoded
+     * @throws IllegalArgumentException if this index is sorted
+     */
+    public IndexDefinition<K> asEncoded() throws IllegalArgumentException {
+        if (sorted) {
+            throw new IllegalArgumentException("Dictionary encoding is only applicable to unsorted indexes: "
+                    + property);
+        }
+        return new IndexDefinition<K>(property, sorted, comparator, true, valueType, derived, accessor);
+    }
+
+    /**
+     * @param valueType the enum or boolean type of the values if a bean has a
+     * single value for the index, null otherwise
+     * @return a copy of this index with the given value type
+     */
+    public IndexDefinition<K> withValueType(Class<?> valueType) {
+        return new IndexDefinition<K>(property, sorted, comparator, encoded, valueType, derived, accessor);
+    }
+
+    /**
+     * @return a copy of this index whose values are computed from the bean,
+     * such as by an annotated method or a function, and may change whenever
+     * any property of the bean changes
+     */
+    public IndexDefinition<K> asDerived() {
+        return new IndexDefinition<K>(property, sorted, comparator, encoded, valueType, true, accessor);
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    public Comparator<?> getComparator() {
+        return comparator;
+    }
+
+    public boolean isEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return the enum or boolean type of the values of a single valued index,
+     * null if unknown
+     */
+    public Class<?> getValueType() {
+        return valueType;
+    }
+
+    public boolean isDerived() {
+        return derived;
+    }
+
+    public PropertyAccessor<K> getAccessor() {
+        return accessor;
+    }
+
+    @Override
+    public String toString() {
+        return property + (sorted ? " (sorted)" : encoded ? " (encoded)" : "");
+    }
+}
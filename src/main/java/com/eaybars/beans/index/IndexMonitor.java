@@ -0,0 +1,199 @@
+package com.eaybars.beans.index;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects usage statistics of a BeanIndexer: per index key distribution,
+ * update and query counts, and per filter operation latency histograms and
+ * result sizes. A monitor is obtained from BeanIndexer.enableMonitoring; an
+ * indexer without a monitor does not take any measurement.
+ * <p>
+ * Statistics can be exported as an MXBean through {@link #registerMBean} and
+ * forwarded to a metrics library through a {@link MetricsListener}. The index
+ * structure statistics of a thread unsafe indexer should be read from the
+ * thread modifying the indexer.
+ *
+ * @author Ertunc
+ */
+public class IndexMonitor implements IndexMonitorMXBean {
+
+    private static final int ENTRY_BYTES = 40;
+    private static final int POSTING_SET_BYTES = 128;
+
+    private final BeanIndexer<?> indexer;
+    private final ConcurrentMap<String, AtomicLong> updates = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> queries = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private volatile MetricsListener listener;
+    private volatile long startTime = System.nanoTime();
+    private ObjectName objectName;
+
+    IndexMonitor(BeanIndexer<?> indexer) {
+        this.indexer = indexer;
+    }
+
+    public MetricsListener getMetricsListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener to be notified of each measurement
+     *
+     * @param listener null to remove the current listener
+     * @return
+     */
+    public IndexMonitor setMetricsListener(MetricsListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    void indexUpdated(String property) {
+        counter(updates, property).incrementAndGet();
+        MetricsListener l = listener;
+        if (l != null) {
+            l.indexUpdated(property);
+        }
+    }
+
+    /**
+     * @param property null for an operation on whole beans
+     */
+    void queryExecuted(String operation, String property, long nanos, int resultSize) {
+        if (property != null) {
+            counter(queries, property).incrementAndGet();
+        }
+        String key = operation + "#" + (property == null ? "" : property);
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos, resultSize);
+        MetricsListener l = listener;
+        if (l != null) {
+            l.queryExecuted(operation, property, nanos, resultSize);
+        }
+    }
+
+    private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String property) {
+        AtomicLong counter = counters.get(property);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(property, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    @Override
+    public int getSize() {
+        return indexer.size();
+    }
+
+    @Override
+    public double getUptime() {
+        return (System.nanoTime() - startTime) / 1e9;
+    }
+
+    @Override
+    public List<IndexStatistics> getIndexStatistics() {
+        List<IndexStatistics> result = new ArrayList<IndexStatistics>();
+        for (String property : indexer.getAllIndexes()) {
+            result.add(getIndexStatistics(property));
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the statistics of the index of the given property
+     *
+     * @param property
+     * @return
+     */
+    public IndexStatistics getIndexStatistics(String property) {
+        Map<Object, ? extends Set<?>> map = indexer.getBuiltIndex(property);
+        int largest = 0;
+        long memory = 0;
+        if (map != null) {
+            for (Set<?> posting : map.values()) {
+                largest = Math.max(largest, posting.size());
+                memory += ENTRY_BYTES + POSTING_SET_BYTES + (long) posting.size() * ENTRY_BYTES;
+            }
+        }
+        AtomicLong updateCount = updates.get(property);
+        AtomicLong queryCount = queries.get(property);
+        long u = updateCount == null ? 0 : updateCount.get();
+        double uptime = getUptime();
+        return new IndexStatistics(property, map instanceof NavigableMap<?, ?>,
+                map != null, map == null ? 0 : map.size(), largest, memory, u,
+                uptime > 0 ? u / uptime : 0, queryCount == null ? 0 : queryCount.get());
+    }
+
+    @Override
+    public List<QueryStatistics> getQueryStatistics() {
+        List<QueryStatistics> result = new ArrayList<QueryStatistics>();
+        for (Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            int separator = e.getKey().indexOf('#');
+            String property = e.getKey().substring(separator + 1);
+            result.add(e.getValue().toStatistics(e.getKey().substring(0, separator),
+                    property.isEmpty() ? null : property));
+        }
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        updates.clear();
+        queries.clear();
+        histograms.clear();
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Registers this monitor to the platform MBean server under the domain
+     * "com.eaybars.beans" with the given name
+     *
+     * @param name
+     * @return
+     * @throws JMException
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        if (objectName != null) {
+            unregisterMBean();
+        }
+        ObjectName on = new ObjectName("com.eaybars.beans:type=BeanIndexer,name="
+                + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        objectName = on;
+        return on;
+    }
+
+    /**
+     * Unregisters this monitor from the platform MBean server if it has been
+     * registered
+     *
+     * @throws JMException
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+}
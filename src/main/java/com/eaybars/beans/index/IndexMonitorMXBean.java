@@ -0,0 +1,30 @@
+package com.eaybars.beans.index;
+
+import java.util.List;
+
+/**
+ * Management interface of an {@link IndexMonitor}
+ *
+ * @author Ertunc
+ */
+public interface IndexMonitorMXBean {
+
+    /**
+     * @return number of beans in the indexer
+     */
+    public int getSize();
+
+    /**
+     * @return seconds since the monitor has been enabled or reset
+     */
+    public double getUptime();
+
+    public List<IndexStatistics> getIndexStatistics();
+
+    public List<QueryStatistics> getQueryStatistics();
+
+    /**
+     * Resets the update, query and latency counters
+     */
+    public void reset();
+}
@@ -0,0 +1,367 @@
+package com.eaybars.beans.index;
+
+import static com.eaybars.beans.properties.PropertyIntrospector.*;
+import com.eaybars.beans.events.BeanEvent;
+import com.eaybars.beans.events.EventIntrospector;
+import com.eaybars.beans.events.NoSuchEventException;
+import com.eaybars.beans.properties.BeanProperty;
+
+import java.beans.PropertyChangeListener;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable description of the indexes of a bean class together with the
+ * accessors to read the indexed values and the property change event of the
+ * class, if any. A BeanIndexer created from a schema does not introspect the
+ * bean class, so a schema can be resolved once and shared by any number of
+ * indexers.
+ * <p>
+ * Schemas are generated at compile time by the IndexProcessor for each class
+ * declaring @Index annotations. The generated class is named after the bean
+ * class with an "_IndexSchema" suffix and implements {@link Provider}. For
+ * classes without a generated schema, the schema is resolved by introspecting
+ * the @Index annotations of the class.
+ *
+ * @author Ertunc
+ * @param <K> type of the bean
+ */
+public final class IndexSchema<K> {
+
+    /**
+     * Suffix appended to the bean class name (with '$' replaced by '_') to
+     * name the generated schema provider
+     */
+    public static final String GENERATED_SUFFIX = "_IndexSchema";
+
+    // a schema refers to its class, so it is attached to the class itself
+    // rather than held by a map keyed by the class
+    private static final ClassValue<IndexSchema<?>> schemas = new ClassValue<IndexSchema<?>>() {
+
+        @Override
+        protected IndexSchema<?> computeValue(Class<?> beanClass) {
+            IndexSchema<?> schema = generatedFor(beanClass);
+            return schema != null ? schema : introspect(beanClass);
+        }
+    };
+
+    private final Class<K> beanClass;
+    private final List<IndexDefinition<K>> indexes;
+    private final BeanEvent<PropertyChangeListener> beanEvent;
+
+    /**
+     * Creates a new schema
+     *
+     * @param beanClass
+     * @param indexes
+     * @param beanEvent property change event of the bean class, or null if
+     * the bean class does not fire property change events
+     */
+    public IndexSchema(Class<K> beanClass, List<IndexDefinition<K>> indexes,
+            BeanEvent<PropertyChangeListener> beanEvent) {
+        this.beanClass = beanClass;
+        this.indexes = Collections.unmodifiableList(new ArrayList<IndexDefinition<K>>(indexes));
+        this.beanEvent = beanEvent;
+    }
+
+    public Class<K> getBeanClass() {
+        return beanClass;
+    }
+
+    public List<IndexDefinition<K>> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Retrieves the property change event of the bean class
+     *
+     * @return null if the bean class does not fire property change events
+     */
+    public BeanEvent<PropertyChangeListener> getBeanEvent() {
+        return beanEvent;
+    }
+
+    /**
+     * Retrieves the schema of the given class, either the one generated at
+     * compile time or the one resolved by introspecting the class. The schema
+     * is resolved only once per class.
+     *
+     * @param <T>
+     * @param beanClass
+     * @return
+     * @throws IllegalArgumentException if a sorted index is declared on a
+     * property whose type is not sortable
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> IndexSchema<T> forClass(Class<T> beanClass)
+            throws IllegalArgumentException {
+        return (IndexSchema<T>) schemas.get(beanClass);
+    }
+
+    /**
+     * Resolves the schema of the given class by searching the class and
+     * adding properties as sorted or unsorted indexes according to the
+     * declared @Index annotations. Comparators and property accessors are
+     * resolved once and shared by the indexers created from the schema.
+     *
+     * @param <T>
+     * @param beanClass
+     * @return
+     * @throws IllegalArgumentException if a sorted index is declared on a
+     * property whose type is not sortable
+     */
+    public static <T> IndexSchema<T> introspect(Class<T> beanClass)
+            throws IllegalArgumentException {
+        List<IndexDefinition<T>> indexes = scanIndexes(beanClass, null, false);
+        scanDerivedIndexes(beanClass, indexes);
+        BeanEvent<PropertyChangeListener> beanEvent;
+        try {
+            beanEvent = EventIntrospector.getBeanEvent(beanClass, PropertyChangeListener.class);
+        } catch (NoSuchEventException e) {
+            beanEvent = null;
+        }
+        return new IndexSchema<T>(beanClass, indexes, beanEvent);
+    }
+
+    /**
+     * Resolves the indexes declared by @Index annotations on the properties
+     * of the given parent property, or of the bean class if parent is null
+     */
+    static <T> List<IndexDefinition<T>> scanIndexes(Class<T> beanClass, BeanProperty parent,
+            boolean checkBeforeIndexing) {
+        List<IndexDefinition<T>> indexes = new ArrayList<IndexDefinition<T>>();
+        scanIndexes(beanClass, parent, checkBeforeIndexing, indexes);
+        return indexes;
+    }
+
+    private static <T> void scanIndexes(Class<T> beanClass, BeanProperty parent,
+            boolean checkBeforeIndexing, List<IndexDefinition<T>> indexes) {
+        Class<?> clazz = getPropertyClass(beanClass, parent);
+        Index classIndex = clazz.getAnnotation(Index.class);
+
+        if (checkBeforeIndexing ? (classIndex != null && classIndex.contents())
+                : true) {
+            for (BeanProperty property : getAllProperties(clazz)) {
+                if (!property.isWriteOnly()) {
+                    Index index = property.getAnnotation(Index.class);
+                    if (index == null ? (classIndex != null && !classIndex
+                            .contents()) : !index.contents()) {
+                        indexes.add(createIndex(beanClass, parent == null ? property
+                                : getProperty(beanClass, parent.toString() + "." + property)));
+                    } else {
+                        scanIndexes(beanClass, property, index == null, indexes);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds an index for each public method annotated with @Index which is
+     * not a getter, named after the method
+     */
+    private static <T> void scanDerivedIndexes(Class<T> beanClass,
+            List<IndexDefinition<T>> indexes) {
+        Set<Method> getters = new HashSet<Method>();
+        for (BeanProperty property : getAllProperties(beanClass)) {
+            getters.add(property.getPropertyDescriptor().getReadMethod());
+        }
+        for (Method method : beanClass.getMethods()) {
+            Index index = method.getAnnotation(Index.class);
+            if (index != null && method.getParameterTypes().length == 0
+                    && method.getReturnType() != void.class
+                    && !Modifier.isStatic(method.getModifiers())
+                    && !getters.contains(method)) {
+                Class<?> type = method.getReturnType();
+                indexes.add(createIndex(method.getName(), index, getValueClass(method),
+                        type.isArray() || Collection.class.isAssignableFrom(type) ? null : type,
+                        true, new MethodAccessor<T>(method)));
+            }
+        }
+    }
+
+    private static <T> IndexDefinition<T> createIndex(Class<T> beanClass,
+            BeanProperty property) {
+        Index index = property.getAnnotation(Index.class);
+        Class<?> clazz = getPropertyClass(beanClass, property);
+        PropertyAccessor<T> accessor = new BeanPropertyAccessor<T>(property);
+        Class<?> valueType = clazz;
+        for (BeanProperty p = property; p != null; p = p.getParent()) {
+            if (p.isCollectionOrArrayType()) {
+                valueType = null;
+            }
+        }
+        if (index != null) {
+            return createIndex(property.toString(), index, clazz, valueType, false, accessor);
+        } else {
+            index = clazz.getAnnotation(Index.class);
+            boolean sorted = index != null && index.sorted() && isSortable(clazz);
+            return sorted ? IndexDefinition.sorted(property.toString(), null, accessor)
+                    : IndexDefinition.unsorted(property.toString(), accessor)
+                    .withValueType(lowCardinality(valueType));
+        }
+    }
+
+    /**
+     * @param valueType the type of the values if a bean has a single value
+     * for the index, null otherwise
+     * @param derived whether the index is on a method which is not a getter
+     */
+    private static <T> IndexDefinition<T> createIndex(String name, Index index,
+            Class<?> clazz, Class<?> valueType, boolean derived, PropertyAccessor<T> accessor) {
+        Comparator<?> comparator;
+        if (index.sorted() || !Comparator.class.equals(index.comparator())) {
+            if (index.encoded()) {
+                throw new IllegalArgumentException("Dictionary encoding is only applicable to unsorted indexes: "
+                        + name);
+            } else if (!index.sorted()) {
+                try {
+                    comparator = index.comparator().newInstance();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            } else if (!isSortable(clazz)) {
+                throw new IllegalArgumentException("Type of the property "
+                        + name + " ("
+                        + clazz.getSimpleName() + ") is not sortable");
+            } else {
+                comparator = null;
+            }
+            IndexDefinition<T> definition = IndexDefinition.sorted(name, comparator, accessor);
+            return derived ? definition.asDerived() : definition;
+        } else {
+            IndexDefinition<T> definition = IndexDefinition.unsorted(name, accessor)
+                    .withValueType(lowCardinality(valueType));
+            if (index.encoded()) {
+                definition = definition.asEncoded();
+            }
+            return derived ? definition.asDerived() : definition;
+        }
+    }
+
+    /**
+     * Retrieves the type of the values of a derived index method, which is
+     * the element type for collections and arrays
+     */
+    private static Class<?> getValueClass(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type.isArray()) {
+            return type.getComponentType();
+        } else if (Collection.class.isAssignableFrom(type)) {
+            Type generic = method.getGenericReturnType();
+            if (generic instanceof ParameterizedType) {
+                Type element = ((ParameterizedType) generic).getActualTypeArguments()[0];
+                if (element instanceof Class<?>) {
+                    return (Class<?>) element;
+                }
+            }
+            return Object.class;
+        }
+        return type;
+    }
+
+    private static Class<?> getPropertyClass(Class<?> beanClass, BeanProperty parent) {
+        return parent == null ? beanClass
+                : (parent.isCollectionOrArrayType() ? parent
+                        .getCollectionOrArrayType() : parent.getPropertyType());
+    }
+
+    /**
+     * The value type is only kept for the enums and booleans indexed by
+     * BitSetIndexMap
+     */
+    private static Class<?> lowCardinality(Class<?> valueType) {
+        return valueType != null && BitSetIndexMap.isLowCardinality(valueType) ? valueType : null;
+    }
+
+    private static boolean isSortable(Class<?> clazz) {
+        return clazz.isPrimitive() || Comparable.class.isAssignableFrom(clazz);
+    }
+
+    /**
+     * Retrieves the schema generated at compile time for the given class
+     *
+     * @param <T>
+     * @param beanClass
+     * @return null if no schema has been generated for the class
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> IndexSchema<T> generatedFor(Class<T> beanClass) {
+        String name = beanClass.getName().replace('$', '_') + GENERATED_SUFFIX;
+        Class<?> providerClass;
+        try {
+            providerClass = Class.forName(name, true, beanClass.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        try {
+            return ((Provider<T>) providerClass.newInstance()).getSchema();
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class BeanPropertyAccessor<K> implements PropertyAccessor<K> {
+
+        private final BeanProperty property;
+
+        BeanPropertyAccessor(BeanProperty property) {
+            this.property = property;
+        }
+
+        @Override
+        public Object getValue(K bean) {
+            try {
+                return property.getValue(bean);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static class MethodAccessor<K> implements PropertyAccessor<K> {
+
+        private final Method method;
+
+        MethodAccessor(Method method) {
+            this.method = method;
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {// public methods of public classes remain invocable
+            }
+        }
+
+        @Override
+        public Object getValue(K bean) {
+            try {
+                return method.invoke(bean);
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Implemented by the schema classes generated by the IndexProcessor
+     *
+     * @param <K> type of the bean
+     */
+    public interface Provider<K> {
+
+        public IndexSchema<K> getSchema();
+    }
+}
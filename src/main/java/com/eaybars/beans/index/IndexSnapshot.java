@@ -0,0 +1,314 @@
+package com.eaybars.beans.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * Persists the beans and the built indexes of a BeanIndexer to a binary file
+ * and restores them into another indexer without reading any bean property.
+ * <p>
+ * Beans are written once through a user provided {@link BeanSerializer} and
+ * referred to by their ordinal in the file. Each index is written as the
+ * dictionary of its keys, in index order for sorted indexes, followed by the
+ * posting list of bean ordinals of each key. The file is read through memory
+ * mapped buffers, one per section, so restoring is bound by decoding the
+ * beans and the keys. The buffers are unmapped once the snapshot is read.
+ * <p>
+ * The indexer must not be modified while a snapshot is being written.
+ *
+ * @author Ertunc
+ */
+public class IndexSnapshot {
+
+    private static final int MAGIC = 0x42494458; // "BIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final long BEAN_SECTION_SIZE = 64L << 20;
+    private static final byte BEANS = 1;
+    private static final byte INDEX = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes a snapshot of the given indexer with the standard value
+     * serializer
+     *
+     * @param <K>
+     * @param indexer
+     * @param file
+     * @param beanSerializer
+     * @throws IOException
+     */
+    public static <K> void write(BeanIndexer<K> indexer, File file,
+            BeanSerializer<K> beanSerializer) throws IOException {
+        write(indexer, file, beanSerializer, new StandardValueSerializer());
+    }
+
+    /**
+     * Writes a snapshot of the beans and the built indexes of the given
+     * indexer. The snapshot is written to a temporary file which replaces the
+     * given file once complete.
+     *
+     * @param <K>
+     * @param indexer
+     * @param file
+     * @param beanSerializer
+     * @param valueSerializer serializer of the index keys
+     * @throws IOException
+     */
+    public static <K> void write(BeanIndexer<K> indexer, File file,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer)
+            throws IOException {
+        writeSnapshot(indexer, file, beanSerializer, valueSerializer);
+    }
+
+    /**
+     * Writes a snapshot and returns the ordinals of the written beans
+     */
+    static <K> Map<K, Integer> writeSnapshot(BeanIndexer<K> indexer, File file,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer)
+            throws IOException {
+        Map<K, Integer> ordinals = new HashMap<K, Integer>();
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0); // footer offset, written last
+
+            List<Section> sections = new ArrayList<Section>();
+            Section section = new Section(BEANS, HEADER_SIZE);
+            for (K bean : indexer) {
+                ordinals.put(bean, ordinals.size());
+                beanSerializer.write(bean, out);
+                section.count++;
+                if ((section.count & 1023) == 0) {
+                    out.flush();
+                    if (channel.position() - section.offset >= BEAN_SECTION_SIZE) {
+                        section.length = channel.position() - section.offset;
+                        sections.add(section);
+                        section = new Section(BEANS, channel.position());
+                    }
+                }
+            }
+            out.flush();
+            section.length = channel.position() - section.offset;
+            sections.add(section);
+
+            for (String property : indexer.getAllIndexes()) {
+                Map<Object, Set<K>> map = indexer.getBuiltIndex(property);
+                if (map != null) {
+                    section = new Section(INDEX, channel.position());
+                    section.property = property;
+                    section.sorted = map instanceof NavigableMap<?, ?>;
+                    section.count = map.size();
+                    for (Object key : map.keySet()) {
+                        valueSerializer.write(key, out);
+                    }
+                    for (Set<K> posting : map.values()) {
+                        int[] postingOrdinals = new int[posting.size()];
+                        int size = 0;
+                        for (K bean : posting) {
+                            Integer ordinal = ordinals.get(bean);
+                            if (ordinal != null && size < postingOrdinals.length) {
+                                postingOrdinals[size++] = ordinal;
+                            }
+                        }
+                        out.writeInt(size);
+                        for (int i = 0; i < size; i++) {
+                            out.writeInt(postingOrdinals[i]);
+                        }
+                    }
+                    out.flush();
+                    section.length = channel.position() - section.offset;
+                    sections.add(section);
+                }
+            }
+
+            long footer = channel.position();
+            out.writeInt(ordinals.size());
+            out.writeInt(sections.size());
+            for (Section s : sections) {
+                out.writeByte(s.type);
+                out.writeLong(s.offset);
+                out.writeLong(s.length);
+                out.writeInt(s.count);
+                if (s.type == INDEX) {
+                    byte[] name = s.property.getBytes(UTF8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeBoolean(s.sorted);
+                }
+            }
+            out.flush();
+            ByteBuffer footerOffset = ByteBuffer.allocate(8);
+            footerOffset.putLong(0, footer);
+            channel.write(footerOffset, 8);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(file) && (!file.delete() || !temp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file + " with " + temp);
+        }
+        return ordinals;
+    }
+
+    /**
+     * Reads a snapshot written with the standard value serializer into the
+     * given indexer
+     *
+     * @param <K>
+     * @param file
+     * @param indexer
+     * @param beanSerializer
+     * @throws IOException
+     */
+    public static <K> void read(File file, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer) throws IOException {
+        read(file, indexer, beanSerializer, new StandardValueSerializer());
+    }
+
+    /**
+     * Reads a snapshot into the given empty indexer. The beans are added to
+     * the indexer, and each built index of the indexer which has been
+     * persisted with the same sorting is restored from the snapshot. Other
+     * indexes of the indexer are built from the beans as usual.
+     *
+     * @param <K>
+     * @param file
+     * @param indexer
+     * @param beanSerializer
+     * @param valueSerializer serializer of the index keys
+     * @throws IOException
+     * @throws IllegalStateException if the indexer is not empty
+     */
+    public static <K> void read(File file, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer)
+            throws IOException, IllegalStateException {
+        readSnapshot(file, indexer, beanSerializer, valueSerializer);
+    }
+
+    /**
+     * Reads a snapshot and returns the restored beans by their ordinals
+     */
+    @SuppressWarnings("unchecked")
+    static <K> Object[] readSnapshot(File file, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer)
+            throws IOException, IllegalStateException {
+        if (!indexer.isEmpty()) {
+            throw new IllegalStateException("Snapshot can only be read into an empty indexer");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer header = map(channel, 0, HEADER_SIZE, mapped);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not an index snapshot");
+            }
+            long footerOffset = header.getLong(8);
+            DataInputStream footer = new DataInputStream(new ByteBufferInputStream(
+                    map(channel, footerOffset, channel.size() - footerOffset, mapped)));
+            Object[] beans = new Object[footer.readInt()];
+            List<Section> sections = new ArrayList<Section>();
+            for (int i = footer.readInt(); i > 0; i--) {
+                Section s = new Section(footer.readByte(), footer.readLong());
+                s.length = footer.readLong();
+                s.count = footer.readInt();
+                if (s.type == INDEX) {
+                    byte[] name = new byte[footer.readInt()];
+                    footer.readFully(name);
+                    s.property = new String(name, UTF8);
+                    s.sorted = footer.readBoolean();
+                }
+                sections.add(s);
+            }
+
+            int ordinal = 0;
+            for (Section s : sections) {
+                if (s.type == BEANS) {
+                    DataInputStream in = new DataInputStream(new ByteBufferInputStream(
+                            map(channel, s.offset, s.length, mapped)));
+                    for (int i = 0; i < s.count; i++) {
+                        beans[ordinal++] = beanSerializer.read(in);
+                    }
+                }
+            }
+            for (Object bean : beans) {
+                indexer.restoreBean((K) bean);
+            }
+
+            Set<String> restored = new HashSet<String>();
+            for (Section s : sections) {
+                Map<Object, Set<K>> map = s.type == INDEX ? indexer.getBuiltIndex(s.property) : null;
+                if (map == null || !map.isEmpty() || (map instanceof NavigableMap<?, ?>) != s.sorted) {
+                    continue;
+                }
+                ByteBuffer buffer = map(channel, s.offset, s.length, mapped);
+                DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+                Object[] keys = new Object[s.count];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = valueSerializer.read(in);
+                }
+                for (Object key : keys) {
+                    int size = buffer.getInt();
+                    List<K> posting = new ArrayList<K>(size);
+                    for (int i = 0; i < size; i++) {
+                        posting.add((K) beans[buffer.getInt()]);
+                    }
+                    indexer.restorePosting(map, key, posting);
+                }
+                restored.add(s.property);
+            }
+            indexer.restored(restored);
+            return beans;
+        } finally {
+            raf.close();
+            for (MappedByteBuffer buffer : mapped) {
+                DirectBuffers.free(buffer);
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length,
+            List<MappedByteBuffer> mapped) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        mapped.add(buffer);
+        return buffer;
+    }
+
+    private static class Section {
+
+        private final byte type;
+        private final long offset;
+        private long length;
+        private int count;
+        private String property;
+        private boolean sorted;
+
+        Section(byte type, long offset) {
+            this.type = type;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.eaybars.beans.index;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the state and usage of a single index
+ *
+ * @author Ertunc
+ */
+public class IndexStatistics {
+
+    private final String property;
+    private final boolean sorted;
+    private final boolean built;
+    private final int distinctKeys;
+    private final int largestPostingList;
+    private final long approximateMemory;
+    private final long updates;
+    private final double updateRate;
+    private final long queries;
+
+    @ConstructorProperties({"property", "sorted", "built", "distinctKeys",
+        "largestPostingList", "approximateMemory", "updates", "updateRate", "queries"})
+    public IndexStatistics(String property, boolean sorted, boolean built,
+            int distinctKeys, int largestPostingList, long approximateMemory,
+            long updates, double updateRate, long queries) {
+        this.property = property;
+        this.sorted = sorted;
+        this.built = built;
+        this.distinctKeys = distinctKeys;
+        this.largestPostingList = largestPostingList;
+        this.approximateMemory = approximateMemory;
+        this.updates = updates;
+        this.updateRate = updateRate;
+        this.queries = queries;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    /**
+     * @return false for a lazy index which is not built yet
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public int getDistinctKeys() {
+        return distinctKeys;
+    }
+
+    /**
+     * @return number of beans sharing the most common key of the index
+     */
+    public int getLargestPostingList() {
+        return largestPostingList;
+    }
+
+    /**
+     * @return estimated bytes used by the index structure itself, excluding
+     * the keys and the beans
+     */
+    public long getApproximateMemory() {
+        return approximateMemory;
+    }
+
+    public long getUpdates() {
+        return updates;
+    }
+
+    /**
+     * @return updates per second since monitoring started
+     */
+    public double getUpdateRate() {
+        return updateRate;
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    @Override
+    public String toString() {
+        return property + "[keys=" + distinctKeys + ", largest=" + largestPostingList
+                + ", memory=" + approximateMemory + ", updates=" + updates
+                + ", queries=" + queries + "]";
+    }
+}
@@ -0,0 +1,87 @@
+package com.eaybars.beans.index;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running count and sum of the values of a sorted index, updated as beans
+ * are added to and removed from the index, so that sums and averages do not
+ * visit the index. The order statistics answering percentiles are computed
+ * from the index when a percentile is asked for, and kept until the index
+ * changes.
+ *
+ * @author Ertunc
+ */
+final class IndexTotals {
+
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+    private final LongAdder nonNumeric = new LongAdder();
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile IndexAggregate aggregate;
+
+    /**
+     * Counts the given number of beans added to the given key
+     */
+    void added(Object key, long beans) {
+        count.add(beans);
+        if (key instanceof Number) {
+            sum.add(((Number) key).doubleValue() * beans);
+        } else {
+            nonNumeric.add(beans);
+        }
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Counts the given number of beans removed from the given key
+     */
+    void removed(Object key, long beans) {
+        added(key, -beans);
+    }
+
+    /**
+     * Counts the contents of the given index again
+     */
+    <K> void recount(Map<Object, Set<K>> map) {
+        count.reset();
+        sum.reset();
+        nonNumeric.reset();
+        for (Map.Entry<Object, Set<K>> e : map.entrySet()) {
+            added(e.getKey(), e.getValue().size());
+        }
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * @return number of the values, counting each value of a multi valued
+     * property
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return null if the values are not numbers
+     */
+    Double sum() {
+        return nonNumeric.sum() != 0 ? null : sum.sum();
+    }
+
+    /**
+     * Retrieves the order statistics of the given index, computing them
+     * again if the index has changed since they were computed
+     */
+    <K> IndexAggregate aggregate(NavigableMap<Object, Set<K>> map) {
+        long generation = modifications.get();
+        IndexAggregate a = aggregate;
+        if (a == null || a.getGeneration() != generation) {
+            aggregate = a = new IndexAggregate(generation, map, null);
+        }
+        return a;
+    }
+}
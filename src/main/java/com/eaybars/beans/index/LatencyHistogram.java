@@ -0,0 +1,65 @@
+package com.eaybars.beans.index;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies and result sizes with power of two
+ * buckets
+ *
+ * @author Ertunc
+ */
+class LatencyHistogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong totalResults = new AtomicLong();
+    private final AtomicLong maxResults = new AtomicLong();
+
+    void record(long nanos, int resultSize) {
+        buckets.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        totalResults.addAndGet(resultSize);
+        updateMax(maxNanos, nanos);
+        updateMax(maxResults, resultSize);
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos) - 1;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    /**
+     * Retrieves the upper bound of the bucket holding the given percentile
+     */
+    private long percentile(double percentile, long total) {
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return maxNanos.get();
+    }
+
+    QueryStatistics toStatistics(String operation, String property) {
+        long total = count.get();
+        return new QueryStatistics(operation, property, total,
+                total == 0 ? 0 : totalNanos.get() / total,
+                total == 0 ? 0 : Math.min(percentile(0.5, total), maxNanos.get()),
+                total == 0 ? 0 : Math.min(percentile(0.99, total), maxNanos.get()),
+                maxNanos.get(),
+                total == 0 ? 0 : (double) totalResults.get() / total,
+                maxResults.get());
+    }
+}
@@ -0,0 +1,36 @@
+package com.eaybars.beans.index;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory transport which hands the batches sent by a leader to a single
+ * follower in the same process
+ *
+ * @author Ertunc
+ */
+public class LoopbackTransport implements ReplicationTransport {
+
+    private final BlockingQueue<byte[]> batches = new LinkedBlockingQueue<byte[]>();
+    private volatile boolean closed;
+
+    @Override
+    public void send(byte[] batch) throws IOException {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+        batches.add(batch.clone());
+    }
+
+    @Override
+    public byte[] receive(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        return batches.poll(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,31 @@
+package com.eaybars.beans.index;
+
+/**
+ * Callback notified by an {@link IndexMonitor} of the measurements it takes.
+ * Methods are invoked from the thread searching or modifying the indexer, so
+ * implementations should only hand the measurements over to a metrics
+ * library.
+ *
+ * @author Ertunc
+ */
+public interface MetricsListener {
+
+    /**
+     * Called after a filter operation has been applied to a search
+     *
+     * @param operation name of the filter method, e.g. "having"
+     * @param property null for an operation on whole beans, e.g. "where"
+     * @param nanos time spent in the operation
+     * @param resultSize size of the search result after the operation
+     */
+    public void queryExecuted(String operation, String property, long nanos,
+            int resultSize);
+
+    /**
+     * Called after a bean has been added to, removed from or updated in the
+     * index of the given property
+     *
+     * @param property
+     */
+    public void indexUpdated(String property);
+}
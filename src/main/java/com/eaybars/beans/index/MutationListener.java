@@ -0,0 +1,42 @@
+package com.eaybars.beans.index;
+
+/**
+ * Listener notified of the changes made to a BeanIndexer, after the indexes
+ * of the indexer have been updated. Listeners are notified from the thread
+ * making the change.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public interface MutationListener<K> {
+
+    /**
+     * Called when a bean is added to the indexer
+     *
+     * @param bean
+     */
+    void beanAdded(K bean);
+
+    /**
+     * Called when a bean is removed from the indexer
+     *
+     * @param bean the object given to remove, which is equal to the removed
+     * bean
+     */
+    void beanRemoved(K bean);
+
+    /**
+     * Called when a property of an indexed bean changes
+     *
+     * @param bean
+     * @param property
+     * @param oldValue
+     * @param newValue
+     */
+    void propertyChanged(K bean, String property, Object oldValue, Object newValue);
+
+    /**
+     * Called when all beans are removed from the indexer
+     */
+    void beansCleared();
+}
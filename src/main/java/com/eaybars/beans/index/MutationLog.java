@@ -0,0 +1,547 @@
+package com.eaybars.beans.index;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes made to a BeanIndexer, which makes the
+ * indexer durable between snapshots.
+ * <p>
+ * A log directory holds the last IndexSnapshot of the indexer and the log of
+ * the changes made after it. Added beans are written in full with the given
+ * BeanSerializer, and referred to by an integer id afterwards. A property
+ * change is written as the new value of the property, which is set in place
+ * on replay like a ReplicationFollower applies it, unless the property
+ * cannot be set or its value cannot be written by the ValueSerializer, in
+ * which case the bean is written in full. Records are buffered in memory and appended to the
+ * log in batches, each forced to disk once for all the records in it. In
+ * SYNC mode a change returns once its batch is on disk, so that concurrent
+ * changes share a single force; in ASYNC mode batches are forced
+ * periodically by a background thread.
+ * <p>
+ * Opening a log rebuilds the indexer from the snapshot and the log tail,
+ * ignoring a batch left incomplete by a crash. checkpoint() writes a new
+ * snapshot and starts a new log. Neither may run concurrently with changes
+ * to the indexer.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class MutationLog<K> implements MutationListener<K>, Closeable {
+
+    /**
+     * When the logged changes are forced to disk
+     */
+    public enum Durability {
+
+        /**
+         * A change returns after its record is forced to disk
+         */
+        SYNC,
+        /**
+         * Records are forced to disk periodically in the background
+         */
+        ASYNC
+    }
+
+    private static final int MAGIC = 0x424c4f47; // "BLOG"
+    // version 2 adds the records of property values
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int FLUSH_THRESHOLD = 1 << 20;
+    private static final String SNAPSHOT = "snapshot.";
+    private static final String LOG = "log.";
+
+    private final File directory;
+    private final BeanIndexer<K> indexer;
+    private final BeanSerializer<K> beanSerializer;
+    private final ValueSerializer valueSerializer;
+    private final Durability durability;
+    private final Object lock = new Object();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final AtomicLong syncCount = new AtomicLong();
+    private ScheduledExecutorService syncExecutor;
+    private RandomAccessFile file;
+    private final MutationRecords.Encoder<K> encoder;
+    private int nextId;
+    private long generation;
+    private long appended;
+    private long synced;
+    private boolean flushing;
+    private IOException failure;
+
+    private MutationLog(File directory, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer,
+            Durability durability) {
+        this.directory = directory;
+        this.indexer = indexer;
+        this.beanSerializer = beanSerializer;
+        this.valueSerializer = valueSerializer;
+        this.durability = durability;
+        this.encoder = new MutationRecords.Encoder<K>(beanSerializer, valueSerializer);
+    }
+
+    /**
+     * Rebuilds the given empty indexer from the given log directory, if it
+     * has any state, and logs the changes made to it afterwards in SYNC mode
+     *
+     * @param <K>
+     * @param directory
+     * @param indexer
+     * @param beanSerializer
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if the indexer is not empty
+     */
+    public static <K> MutationLog<K> open(File directory, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer) throws IOException, IllegalStateException {
+        return open(directory, indexer, beanSerializer, new StandardValueSerializer(),
+                Durability.SYNC, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuilds the given empty indexer from the given log directory, if it
+     * has any state, and logs the changes made to it afterwards
+     *
+     * @param <K>
+     * @param directory
+     * @param indexer
+     * @param beanSerializer
+     * @param valueSerializer serializer of the index keys in snapshots
+     * @param durability
+     * @param syncInterval interval of forcing records to disk in ASYNC mode
+     * @param unit
+     * @return
+     * @throws IOException
+     * @throws IllegalStateException if the indexer is not empty
+     */
+    public static <K> MutationLog<K> open(File directory, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer,
+            Durability durability, long syncInterval, TimeUnit unit)
+            throws IOException, IllegalStateException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        MutationLog<K> log = new MutationLog<K>(directory, indexer, beanSerializer,
+                valueSerializer, durability);
+        long length = log.recover();
+        File logFile = new File(directory, LOG + log.generation);
+        if (length < HEADER_SIZE) {
+            log.file = createLog(logFile);
+        } else {
+            log.file = new RandomAccessFile(logFile, "rw");
+            log.file.setLength(length);
+            log.file.seek(length);
+        }
+        if (durability == Durability.ASYNC) {
+            log.startSync(syncInterval, unit);
+        }
+        indexer.addMutationListener(log);
+        return log;
+    }
+
+    /**
+     * Rebuilds the given empty indexer from the given log directory without
+     * logging its changes
+     *
+     * @param <K>
+     * @param directory
+     * @param indexer
+     * @param beanSerializer
+     * @throws IOException
+     * @throws IllegalStateException if the indexer is not empty
+     */
+    public static <K> void replay(File directory, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer) throws IOException, IllegalStateException {
+        replay(directory, indexer, beanSerializer, new StandardValueSerializer());
+    }
+
+    /**
+     * Rebuilds the given empty indexer from the given log directory without
+     * logging its changes
+     *
+     * @param <K>
+     * @param directory
+     * @param indexer
+     * @param beanSerializer
+     * @param valueSerializer serializer of the index keys in snapshots
+     * @throws IOException
+     * @throws IllegalStateException if the indexer is not empty
+     */
+    public static <K> void replay(File directory, BeanIndexer<K> indexer,
+            BeanSerializer<K> beanSerializer, ValueSerializer valueSerializer)
+            throws IOException, IllegalStateException {
+        new MutationLog<K>(directory, indexer, beanSerializer, valueSerializer,
+                Durability.ASYNC).recover();
+    }
+
+    /**
+     * Rebuilds the indexer from the latest snapshot and its log
+     *
+     * @return the length of the valid part of the log
+     */
+    @SuppressWarnings("unchecked")
+    private long recover() throws IOException {
+        if (!indexer.isEmpty()) {
+            throw new IllegalStateException("Mutation log can only be replayed into an empty indexer");
+        }
+        generation = latestGeneration(directory);
+        Map<Integer, K> beans = new HashMap<Integer, K>();
+        File snapshot = new File(directory, SNAPSHOT + generation);
+        if (snapshot.exists()) {
+            Object[] restored = IndexSnapshot.readSnapshot(snapshot, indexer,
+                    beanSerializer, valueSerializer);
+            for (int i = 0; i < restored.length; i++) {
+                beans.put(i, (K) restored[i]);
+            }
+            nextId = restored.length;
+        }
+        long length = 0;
+        File log = new File(directory, LOG + generation);
+        if (log.exists()) {
+            length = replayLog(log, beans);
+        }
+        Map<K, Integer> ids = new HashMap<K, Integer>();
+        for (Map.Entry<Integer, K> e : beans.entrySet()) {
+            ids.put(e.getValue(), e.getKey());
+        }
+        encoder.reset(ids, nextId);
+        return length;
+    }
+
+    private static long latestGeneration(File directory) {
+        long latest = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SNAPSHOT)) {
+                    try {
+                        latest = Math.max(latest, Long.parseLong(name.substring(SNAPSHOT.length())));
+                    } catch (NumberFormatException e) {// temporary file
+                    }
+                }
+            }
+        }
+        return latest;
+    }
+
+    private long replayLog(File log, Map<Integer, K> beans) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+        try {
+            int version;
+            if (in.readInt() != MAGIC || (version = in.readInt()) < 1 || version > VERSION) {
+                throw new IOException(log + " is not a mutation log");
+            }
+            long length = HEADER_SIZE;
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] batch;
+                int checksum;
+                try {
+                    batch = new byte[in.readInt()];
+                    checksum = in.readInt();
+                    in.readFully(batch);
+                } catch (EOFException e) {
+                    break;
+                } catch (NegativeArraySizeException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(batch, 0, batch.length);
+                if (batch.length == 0 || (int) crc.getValue() != checksum) {
+                    break;
+                }
+                nextId = MutationRecords.apply(new DataInputStream(new ByteArrayInputStream(batch)),
+                        indexer, beans, beanSerializer, valueSerializer, nextId);
+                length += HEADER_SIZE + batch.length;
+            }
+            return length;
+        } catch (EOFException e) {// incomplete header
+            return 0;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static RandomAccessFile createLog(File log) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        try {
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(VERSION);
+            file.getChannel().force(true);
+            return file;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void startSync(long interval, TimeUnit unit) {
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "MutationLog-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException e) {// kept as the failure of this log
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    @Override
+    public void beanAdded(K bean) {
+        append(MutationRecords.ADD, bean);
+    }
+
+    @Override
+    public void beanRemoved(K bean) {
+        append(MutationRecords.REMOVE, bean);
+    }
+
+    @Override
+    public void propertyChanged(K bean, String property, Object oldValue, Object newValue) {
+        append(MutationRecords.SET, bean, property, newValue);
+    }
+
+    @Override
+    public void beansCleared() {
+        append(MutationRecords.CLEAR, null);
+    }
+
+    private void append(byte type, K bean) {
+        append(type, bean, null, null);
+    }
+
+    private void append(byte type, K bean, String property, Object value) {
+        long sequence;
+        int size;
+        synchronized (lock) {
+            if (failure != null) {
+                throw new IllegalStateException("Mutation log has failed", failure);
+            }
+            record.reset();
+            try {
+                if (type == MutationRecords.SET) {
+                    encoder.writeChange(bean, property, value, recordOut);
+                } else {
+                    encoder.write(type, bean, recordOut);
+                }
+                record.writeTo(pending);
+            } catch (IOException e) {// the log no longer matches the indexer
+                failure = e;
+                throw new IllegalStateException("Mutation log has failed", e);
+            }
+            size = pending.size();
+            sequence = ++appended;
+        }
+        if (durability == Durability.SYNC || size >= FLUSH_THRESHOLD) {
+            try {
+                commit(sequence);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records to disk, unless they are already being
+     * written by another thread, and waits until the record of the given
+     * sequence number is on disk
+     */
+    private void commit(long sequence) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                byte[] batch;
+                long target;
+                FileChannel channel;
+                synchronized (lock) {
+                    while (flushing && synced < sequence) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (synced >= sequence) {
+                        return;
+                    }
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    flushing = true;
+                    batch = pending.toByteArray();
+                    pending.reset();
+                    target = appended;
+                    channel = file.getChannel();
+                }
+                IOException error = null;
+                try {
+                    write(channel, batch);
+                    channel.force(false);
+                    syncCount.incrementAndGet();
+                } catch (IOException e) {
+                    error = e;
+                }
+                synchronized (lock) {
+                    flushing = false;
+                    if (error == null) {
+                        synced = target;
+                    } else {
+                        failure = error;
+                    }
+                    lock.notifyAll();
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, byte[] batch) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(batch, 0, batch.length);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + batch.length);
+        buffer.putInt(batch.length).putInt((int) crc.getValue()).put(batch).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Forces all the logged changes to disk
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        long sequence;
+        synchronized (lock) {
+            sequence = appended;
+        }
+        commit(sequence);
+    }
+
+    /**
+     * Writes a snapshot of the indexer and starts a new log, deleting the
+     * previous snapshot and log. The indexer must not be changed until the
+     * checkpoint completes.
+     *
+     * @throws IOException
+     */
+    public synchronized void checkpoint() throws IOException {
+        sync();
+        long next = generation + 1;
+        File log = new File(directory, LOG + next);
+        RandomAccessFile nextFile = createLog(log);
+        Map<K, Integer> ordinals;
+        try {
+            ordinals = IndexSnapshot.writeSnapshot(indexer, new File(directory, SNAPSHOT + next),
+                    beanSerializer, valueSerializer);
+        } catch (IOException e) {
+            nextFile.close();
+            log.delete();
+            throw e;
+        }
+        RandomAccessFile previousFile;
+        long previous;
+        synchronized (lock) {
+            previousFile = file;
+            previous = generation;
+            file = nextFile;
+            generation = next;
+            encoder.reset(ordinals, ordinals.size());
+        }
+        previousFile.close();
+        new File(directory, SNAPSHOT + previous).delete();
+        new File(directory, LOG + previous).delete();
+    }
+
+    /**
+     * Stops logging the changes of the indexer, forcing the logged changes
+     * to disk
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        indexer.removeMutationListener(this);
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+        try {
+            sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Retrieves the generation of the current snapshot and log, incremented
+     * by each checkpoint
+     *
+     * @return
+     */
+    public long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Retrieves the number of changes logged since the log is opened
+     *
+     * @return
+     */
+    public long getRecordCount() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    /**
+     * Retrieves the number of times the log has been forced to disk since it
+     * is opened
+     *
+     * @return
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+}
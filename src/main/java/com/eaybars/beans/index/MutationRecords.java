@@ -0,0 +1,190 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.properties.BeanProperty;
+import com.eaybars.beans.properties.NoSuchPropertyException;
+import com.eaybars.beans.properties.PropertyIntrospector;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary format of the changes of a BeanIndexer shared by the MutationLog and
+ * replication. Added beans are written in full and referred to by an integer
+ * id afterwards. A property change is written as the new value of the
+ * property when the encoder has a ValueSerializer and the property can be
+ * set, and as the whole bean otherwise:
+ * <pre>
+ * ADD    id bean
+ * REMOVE id
+ * CHANGE id bean
+ * SET    id property value
+ * CLEAR
+ * </pre>
+ *
+ * @author Ertunc
+ */
+final class MutationRecords {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte CHANGE = 3;
+    static final byte CLEAR = 4;
+    static final byte SET = 5;
+
+    private MutationRecords() {
+    }
+
+    /**
+     * Assigns the ids of the beans and writes their records. Not thread safe.
+     *
+     * @param <K>
+     */
+    static final class Encoder<K> {
+
+        private final BeanSerializer<K> serializer;
+        private final ValueSerializer values;
+        private final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        private final DataOutputStream valueOut = new DataOutputStream(value);
+        private Map<K, Integer> ids = new HashMap<K, Integer>();
+        private int nextId;
+
+        Encoder(BeanSerializer<K> serializer) {
+            this(serializer, null);
+        }
+
+        /**
+         * @param values serializer of the values of changed properties, null
+         * to write changed beans in full
+         */
+        Encoder(BeanSerializer<K> serializer, ValueSerializer values) {
+            this.serializer = serializer;
+            this.values = values;
+        }
+
+        /**
+         * Continues with the given ids of the current beans
+         */
+        void reset(Map<K, Integer> ids, int nextId) {
+            this.ids = ids;
+            this.nextId = nextId;
+        }
+
+        /**
+         * Writes the record of the given change
+         *
+         * @throws IOException if the bean has no id, which happens when its
+         * hash code has changed since it was added, so that the change cannot
+         * be recorded
+         */
+        void write(byte type, K bean, DataOutputStream out) throws IOException {
+            Integer id = type == ADD ? Integer.valueOf(nextId) : bean == null ? null : ids.get(bean);
+            if (bean != null && id == null) {
+                throw new IOException("Changed bean has no record id: " + bean);
+            }
+            out.writeByte(type);
+            if (id != null) {
+                out.writeInt(id);
+            }
+            if (type == ADD || type == CHANGE) {
+                serializer.write(bean, out);
+            }
+            if (type == ADD) {
+                ids.put(bean, nextId++);
+            } else if (type == REMOVE) {
+                ids.remove(bean);
+            } else if (type == CLEAR) {
+                ids.clear();
+            }
+        }
+
+        /**
+         * Writes the record of a change of the given property of the given
+         * bean, falling back to a CHANGE record when the property cannot be
+         * set or its value cannot be serialized
+         *
+         * @throws IOException if the bean has no record id
+         */
+        void writeChange(K bean, String property, Object newValue, DataOutputStream out)
+                throws IOException {
+            Integer id = ids.get(bean);
+            if (values == null || id == null || !isWritable(bean, property)) {
+                write(CHANGE, bean, out);
+                return;
+            }
+            value.reset();
+            try {
+                values.write(newValue, valueOut);
+            } catch (IOException e) {// not a serializable value
+                write(CHANGE, bean, out);
+                return;
+            }
+            out.writeByte(SET);
+            out.writeInt(id);
+            out.writeUTF(property);
+            value.writeTo(out);
+        }
+
+        private static boolean isWritable(Object bean, String property) {
+            try {
+                BeanProperty bProperty = PropertyIntrospector.getProperty(bean.getClass(), property);
+                return !bProperty.isReadOnly() && bProperty.getParent() == null;
+            } catch (NoSuchPropertyException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Applies the records read from the given stream to the given indexer.
+     * A SET record sets the property of the bean in place.
+     *
+     * @param beans beans of the indexer by their ids, updated with the
+     * records
+     * @param values serializer of the values of SET records
+     * @return the next id following the applied records
+     */
+    static <K> int apply(DataInputStream in, BeanIndexer<K> indexer, Map<Integer, K> beans,
+            BeanSerializer<K> serializer, ValueSerializer values, int nextId) throws IOException {
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            if (type == CLEAR) {
+                indexer.clear();
+                beans.clear();
+                continue;
+            }
+            int id = in.readInt();
+            if (type == SET) {
+                set(indexer, beans.get(id), id, in.readUTF(), values.read(in));
+                continue;
+            }
+            K bean = type == REMOVE ? null : serializer.read(in);
+            K old = bean == null ? beans.remove(id) : beans.put(id, bean);
+            if (old != null) {
+                indexer.remove(old);
+            }
+            if (bean != null) {
+                indexer.add(bean);
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+        return nextId;
+    }
+
+    private static <K> void set(BeanIndexer<K> indexer, K bean, int id, String property,
+            Object value) throws IOException {
+        if (bean == null) {
+            throw new IOException("Unknown record id: " + id);
+        }
+        try {
+            indexer.setProperty(bean, PropertyIntrospector.getProperty(bean.getClass(), property), value);
+        } catch (NoSuchPropertyException e) {
+            throw new IOException(e.getMessage(), e);
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.eaybars.beans.index;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A thread unsafe factory which makes a BeanIndexer keep the posting lists of
+ * its indexes, the beans having each index key, off the heap.
+ * <p>
+ * A posting list is a hash table of bean ordinals allocated from direct
+ * buffers of at most the given capacity in total. Only the beans themselves
+ * are kept on the heap, once for all the posting lists of the factory. The
+ * memory of a posting list is released when its last bean is removed, and
+ * by the indexer when it is cleared or one of its indexes is removed. The
+ * direct buffers are freed as soon as no posting list uses them.
+ * <p>
+ * Index keys stay on the heap, in the HashMaps and TreeMaps created by this
+ * factory: keys are arbitrary objects found by their hashCode, equals and
+ * compareTo, which cannot be run against a serialized form, and there is a
+ * single key for the many beans of its posting list. Other collections are
+ * created on the heap as well.
+ * <p>
+ * A factory may be shared by indexers used from the same thread.
+ *
+ * @author Ertunc
+ */
+public class OffHeapCollectionFactory implements CollectionFactory {
+
+    private final OffHeapMemory memory;
+    private final BeanOrdinals ordinals = new BeanOrdinals();
+
+    /**
+     * Creates a factory allocating at most the given number of bytes off the
+     * heap
+     *
+     * @param capacity
+     */
+    public OffHeapCollectionFactory(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        memory = new OffHeapMemory(capacity);
+    }
+
+    /**
+     * Creates an empty off-heap posting list
+     *
+     * @param <K>
+     * @return
+     */
+    public <K> Set<K> createPostingSet() {
+        return new OffHeapPostingSet<K>(memory, ordinals);
+    }
+
+    @Override
+    public Set createNewSet() {
+        return new HashSet();
+    }
+
+    @Override
+    public NavigableSet createNewNavigableSet(Comparator<?> c) {
+        return new TreeSet(c);
+    }
+
+    @Override
+    public Map createNewMap() {
+        return new HashMap();
+    }
+
+    @Override
+    public NavigableMap createNewNavigableMap(Comparator<?> c) {
+        return new TreeMap(c);
+    }
+
+    /**
+     * Releases the memory of the given posting list if it is off the heap
+     */
+    static void release(Object posting) {
+        if (posting instanceof OffHeapPostingSet<?>) {
+            ((OffHeapPostingSet<?>) posting).clear();
+        }
+    }
+
+    /**
+     * Retrieves the maximum number of bytes allocated off the heap
+     *
+     * @return
+     */
+    public long getCapacity() {
+        return memory.getCapacity();
+    }
+
+    /**
+     * Retrieves the number of bytes currently allocated off the heap, which
+     * includes the unused parts of the allocated buffers
+     *
+     * @return
+     */
+    public long getReservedBytes() {
+        return memory.getReserved();
+    }
+
+    /**
+     * Retrieves the number of off-heap bytes used by the posting lists
+     *
+     * @return
+     */
+    public long getUsedBytes() {
+        return memory.getAllocated();
+    }
+
+    /**
+     * Retrieves the number of beans referred by the posting lists
+     *
+     * @return
+     */
+    public int getBeanCount() {
+        return ordinals.size();
+    }
+}
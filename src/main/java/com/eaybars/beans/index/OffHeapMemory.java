@@ -0,0 +1,153 @@
+package com.eaybars.beans.index;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocates blocks of ints from direct buffers, up to a fixed capacity. Block
+ * sizes are powers of two, and released blocks are kept in a free list per
+ * size to be reused. The buffers are freed once all blocks are released,
+ * without waiting for the garbage collector.
+ * <p>
+ * A block address holds the index of its buffer in the high 32 bits and its
+ * offset within the buffer in the low 32 bits.
+ *
+ * @author Ertunc
+ */
+final class OffHeapMemory {
+
+    static final int MIN_BLOCK = 4;
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final long capacity;
+    private final List<IntBuffer> chunks = new ArrayList<IntBuffer>();
+    // the direct buffers viewed by the chunks, which are freed
+    private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private final long[][] free = new long[32][];
+    private final int[] freeCount = new int[32];
+    private int top;
+    private long reserved;
+    private long allocated;
+
+    OffHeapMemory(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Allocates a zero filled block of the given number of ints, which must
+     * be a power of two not less than MIN_BLOCK
+     *
+     * @throws IllegalStateException if the capacity is exceeded
+     */
+    long allocate(int ints) {
+        int sizeClass = Integer.numberOfTrailingZeros(ints);
+        long address;
+        if (freeCount[sizeClass] > 0) {
+            address = free[sizeClass][--freeCount[sizeClass]];
+            IntBuffer buffer = buffer(address);
+            int offset = offset(address);
+            for (int i = 0; i < ints; i++) {
+                buffer.put(offset + i, 0);
+            }
+        } else {
+            IntBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+            if (chunk == null || chunk.capacity() - top < ints) {
+                if (chunk != null) {
+                    carve(chunks.size() - 1, top, chunk.capacity() - top);
+                }
+                chunk = newChunk(ints);
+            }
+            address = ((long) (chunks.size() - 1) << 32) | top;
+            top += ints;
+        }
+        allocated += (long) ints * 4;
+        return address;
+    }
+
+    /**
+     * Releases the given block of the given number of ints
+     */
+    void free(long address, int ints) {
+        push(Integer.numberOfTrailingZeros(ints), address);
+        allocated -= (long) ints * 4;
+        if (allocated == 0) {
+            chunks.clear();
+            for (ByteBuffer buffer : buffers) {
+                DirectBuffers.free(buffer);
+            }
+            buffers.clear();
+            for (int i = 0; i < free.length; i++) {
+                free[i] = null;
+                freeCount[i] = 0;
+            }
+            top = 0;
+            reserved = 0;
+        }
+    }
+
+    IntBuffer buffer(long address) {
+        return chunks.get((int) (address >>> 32));
+    }
+
+    static int offset(long address) {
+        return (int) address;
+    }
+
+    private IntBuffer newChunk(int ints) {
+        long bytes = (long) ints * 4;
+        long size = Math.max(bytes, Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, reserved)));
+        size = Math.min(size, capacity - reserved);
+        if (size < bytes || bytes > MAX_CHUNK_BYTES) {
+            throw new IllegalStateException("Off-heap capacity of " + capacity
+                    + " bytes exceeded");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        IntBuffer chunk = buffer.order(ByteOrder.nativeOrder()).asIntBuffer();
+        buffers.add(buffer);
+        chunks.add(chunk);
+        reserved += size;
+        top = 0;
+        return chunk;
+    }
+
+    /**
+     * Adds the unused tail of a chunk to the free lists
+     */
+    private void carve(int chunk, int offset, int ints) {
+        for (int size = Integer.highestOneBit(Math.max(ints, 1)); size >= MIN_BLOCK; size >>>= 1) {
+            if (ints >= size) {
+                push(Integer.numberOfTrailingZeros(size), ((long) chunk << 32) | offset);
+                offset += size;
+                ints -= size;
+            }
+        }
+    }
+
+    private void push(int sizeClass, long address) {
+        long[] list = free[sizeClass];
+        if (list == null) {
+            list = free[sizeClass] = new long[16];
+        } else if (freeCount[sizeClass] == list.length) {
+            long[] l = new long[list.length * 2];
+            System.arraycopy(list, 0, l, 0, list.length);
+            list = free[sizeClass] = l;
+        }
+        list[freeCount[sizeClass]++] = address;
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    long getReserved() {
+        return reserved;
+    }
+
+    long getAllocated() {
+        return allocated;
+    }
+}
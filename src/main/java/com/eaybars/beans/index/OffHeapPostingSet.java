@@ -0,0 +1,217 @@
+package com.eaybars.beans.index;
+
+import java.nio.IntBuffer;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of beans stored as an open addressing hash table of bean ordinals in a
+ * block of off-heap memory. A slot holds the ordinal plus one, zero for an
+ * empty slot or -1 for a removed one. The block is released when the set
+ * becomes empty.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class OffHeapPostingSet<K> extends AbstractSet<K> {
+
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private final OffHeapMemory memory;
+    private final BeanOrdinals ordinals;
+    private long address;
+    private IntBuffer buffer;
+    private int base;
+    private int slots;
+    private int size;
+    private int removed;
+    private int modifications;
+
+    OffHeapPostingSet(OffHeapMemory memory, BeanOrdinals ordinals) {
+        this.memory = memory;
+        this.ordinals = ordinals;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int key) {
+        if (buffer == null) {
+            return -1;
+        }
+        int mask = slots - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            int v = buffer.get(base + i);
+            if (v == key) {
+                return i;
+            } else if (v == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private void insert(int key) {
+        int mask = slots - 1;
+        for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+            int v = buffer.get(base + i);
+            if (v == EMPTY || v == REMOVED) {
+                if (v == REMOVED) {
+                    removed--;
+                }
+                buffer.put(base + i, key);
+                return;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        IntBuffer oldBuffer = buffer;
+        int oldBase = base;
+        int oldSlots = slots;
+        long oldAddress = address;
+        slots = Math.max(OffHeapMemory.MIN_BLOCK, Integer.highestOneBit(capacity) * 4);
+        address = memory.allocate(slots);
+        buffer = memory.buffer(address);
+        base = OffHeapMemory.offset(address);
+        removed = 0;
+        if (oldBuffer != null) {
+            for (int i = 0; i < oldSlots; i++) {
+                int v = oldBuffer.get(oldBase + i);
+                if (v > 0) {
+                    insert(v);
+                }
+            }
+            memory.free(oldAddress, oldSlots);
+        }
+    }
+
+    private void release() {
+        if (buffer != null) {
+            memory.free(address, slots);
+            buffer = null;
+            slots = 0;
+            removed = 0;
+        }
+    }
+
+    @Override
+    public boolean add(K bean) {
+        int ordinal = ordinals.ordinalOf(bean);
+        if (ordinal >= 0 && indexOf(ordinal + 1) >= 0) {
+            return false;
+        }
+        if ((size + removed + 1) * 2 > slots) {
+            resize(size + 1);
+        }
+        insert(ordinals.acquire(bean) + 1);
+        size++;
+        modifications++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        int ordinal = ordinals.ordinalOf(o);
+        return ordinal >= 0 && indexOf(ordinal + 1) >= 0;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int ordinal = ordinals.ordinalOf(o);
+        int slot = ordinal < 0 ? -1 : indexOf(ordinal + 1);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    private void removeAt(int slot) {
+        int key = buffer.get(base + slot);
+        buffer.put(base + slot, REMOVED);
+        removed++;
+        size--;
+        modifications++;
+        ordinals.release(key - 1);
+        if (size == 0) {
+            release();
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (buffer != null) {
+            for (int i = 0; i < slots; i++) {
+                int v = buffer.get(base + i);
+                if (v > 0) {
+                    ordinals.release(v - 1);
+                }
+            }
+            release();
+            size = 0;
+            modifications++;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new Iterator<K>() {
+
+            private int next = -1;
+            private int last = -1;
+            private int expected = modifications;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                do {
+                    next++;
+                } while (buffer != null && next < slots && buffer.get(base + next) <= 0);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return buffer != null && next < slots;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public K next() {
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                advance();
+                return (K) ordinals.get(buffer.get(base + last) - 1);
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                last = -1;
+                expected = modifications;
+            }
+        };
+    }
+}
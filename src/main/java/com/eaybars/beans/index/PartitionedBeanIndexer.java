@@ -0,0 +1,372 @@
+package com.eaybars.beans.index;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Set of beans hash partitioned across independent BeanIndexers, so that
+ * concurrent writes to different partitions share neither the element set
+ * nor the posting sets. Beans are assigned to a partition by the hash of the
+ * value of a partition property, or by their own hash code.
+ * <p>
+ * Searches are scattered to the partitions in parallel on the fork/join pool
+ * and their results gathered into a single set. Ordered queries merge the
+ * ordered results of the partitions.
+ * <p>
+ * The value of the partition property of a bean must not change while the
+ * bean is in the indexer.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class PartitionedBeanIndexer<K> extends AbstractSet<K> implements Set<K> {
+
+    private final BeanIndexer<K>[] partitions;
+    private final PropertyAccessor<K> partitionAccessor;
+
+    /**
+     * Creates a concurrent partitioned indexer with one partition per
+     * available processor, partitioning the beans by their hash codes
+     *
+     * @param schema
+     */
+    public PartitionedBeanIndexer(IndexSchema<K> schema) {
+        this(schema, CollectionFactory.Predefined.CONCURRENT.getFactory(),
+                Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    /**
+     * Creates a partitioned indexer with the given number of partitions,
+     * each having the indexes of the given schema and using the given
+     * factory
+     *
+     * @param schema
+     * @param factory
+     * @param partitions
+     * @param partitionProperty property whose values partition the beans,
+     * or null to partition the beans by their hash codes
+     * @throws IllegalArgumentException if the number of partitions is not
+     * positive
+     */
+    @SuppressWarnings("unchecked")
+    public PartitionedBeanIndexer(IndexSchema<K> schema, CollectionFactory factory,
+            int partitions, String partitionProperty) throws IllegalArgumentException {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Number of partitions must be positive: "
+                    + partitions);
+        }
+        this.partitions = new BeanIndexer[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new BeanIndexer<K>(schema, factory);
+        }
+        this.partitionAccessor = partitionProperty == null ? null
+                : this.partitions[0].accessorFor(partitionProperty);
+    }
+
+    /**
+     * Creates a concurrent partitioned indexer with one partition per
+     * available processor for the indexes declared on the given class
+     *
+     * @param <T>
+     * @param clazz
+     * @return
+     */
+    public static <T> PartitionedBeanIndexer<T> partitionedIndexFrom(Class<T> clazz) {
+        return new PartitionedBeanIndexer<T>(IndexSchema.forClass(clazz));
+    }
+
+    /**
+     * @return the partitions of this indexer
+     */
+    public List<BeanIndexer<K>> getPartitions() {
+        return Collections.unmodifiableList(Arrays.asList(partitions));
+    }
+
+    @SuppressWarnings("unchecked")
+    private BeanIndexer<K> partitionOf(Object bean) {
+        Object key = partitionAccessor == null ? bean : partitionAccessor.getValue((K) bean);
+        int h = (key == null ? 0 : key.hashCode()) * 0x9E3779B9; // spread low bits upwards
+        return partitions[(int) (((h & 0xFFFFFFFFL) * partitions.length) >>> 32)];
+    }
+
+    /**
+     * Adds a sorted index to all partitions
+     *
+     * @param property
+     * @param comparator
+     * @return
+     */
+    public PartitionedBeanIndexer<K> addSortedIndex(String property,
+            Comparator<?> comparator) {
+        for (BeanIndexer<K> partition : partitions) {
+            partition.addSortedIndex(property, comparator);
+        }
+        return this;
+    }
+
+    /**
+     * Adds an unsorted index to all partitions
+     *
+     * @param property
+     * @return
+     */
+    public PartitionedBeanIndexer<K> addUnsortedIndex(String property) {
+        for (BeanIndexer<K> partition : partitions) {
+            partition.addUnsortedIndex(property);
+        }
+        return this;
+    }
+
+    /**
+     * Removes an index from all partitions
+     *
+     * @param property
+     * @return
+     */
+    public PartitionedBeanIndexer<K> removeIndex(String property) {
+        for (BeanIndexer<K> partition : partitions) {
+            partition.removeIndex(property);
+        }
+        return this;
+    }
+
+    /**
+     * Evaluates the given search on every partition in parallel and gathers
+     * the results. For example
+     * <pre>
+     * indexer.search(f -&gt; f.having("name", "abc").and().havingGreater("number", 1, true))
+     * </pre>
+     *
+     * @param query builds a search from the filter of a partition
+     * @return
+     */
+    public Set<K> search(Function<BeanIndexer<K>.Filter, BeanIndexer<K>.Search> query) {
+        List<Set<K>> gathered = Arrays.stream(partitions).parallel()
+                .map(p -> query.apply(p.filter()).results())
+                .collect(Collectors.<Set<K>>toList());
+        Set<K> results = new HashSet<K>();
+        for (Set<K> partial : gathered) {
+            results.addAll(partial);
+        }
+        return results;
+    }
+
+    /**
+     * Evaluates the given search on every partition in parallel and merges
+     * the results of the partitions sorted by the given comparator
+     *
+     * @param query builds a search from the filter of a partition
+     * @param comparator
+     * @return
+     */
+    public List<K> sortedSearch(Function<BeanIndexer<K>.Filter, BeanIndexer<K>.Search> query,
+            Comparator<? super K> comparator) {
+        List<List<K>> sorted = Arrays.stream(partitions).parallel()
+                .map(p -> {
+                    List<K> results = new ArrayList<K>(query.apply(p.filter()).results());
+                    results.sort(comparator);
+                    return results;
+                }).collect(Collectors.<List<K>>toList());
+        List<K> merged = new ArrayList<K>();
+        PriorityQueue<Cursor<K>> queue = new PriorityQueue<Cursor<K>>(partitions.length,
+                (c1, c2) -> comparator.compare(c1.head, c2.head));
+        for (List<K> results : sorted) {
+            Cursor.offer(queue, results.iterator());
+        }
+        while (!queue.isEmpty()) {
+            Cursor<K> c = queue.poll();
+            merged.add(c.head);
+            Cursor.offer(queue, c.rest);
+        }
+        return merged;
+    }
+
+    /**
+     * Retrieves the beans with the given number of lowest values of the given
+     * sorted index, merging the sorted indexes of the partitions
+     *
+     * @param property
+     * @param count
+     * @return
+     * @throws IllegalArgumentException if no such sorted index exists
+     */
+    public List<K> first(String property, int count) throws IllegalArgumentException {
+        return mergeIndexes(property, count, false);
+    }
+
+    /**
+     * Retrieves the beans with the given number of highest values of the
+     * given sorted index, in descending index order
+     *
+     * @param property
+     * @param count
+     * @return
+     * @throws IllegalArgumentException if no such sorted index exists
+     */
+    public List<K> last(String property, int count) throws IllegalArgumentException {
+        return mergeIndexes(property, count, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<K> mergeIndexes(String property, int count, boolean descending) {
+        PriorityQueue<Cursor<Map.Entry<Object, Set<K>>>> queue = null;
+        for (BeanIndexer<K> partition : partitions) {
+            Map<Object, Set<K>> map = partition.getIndex(property);
+            if (map == null) {
+                throw new IllegalArgumentException("No such indexed field: "
+                        + property);
+            } else if (!(map instanceof NavigableMap<?, ?>)) {
+                throw new IllegalArgumentException(
+                        "No such sorted-indexed field: " + property);
+            }
+            NavigableMap<Object, Set<K>> sorted = (NavigableMap<Object, Set<K>>) map;
+            if (descending) {
+                sorted = sorted.descendingMap();
+            }
+            if (queue == null) {
+                Comparator<Object> c = (Comparator<Object>) sorted.comparator();
+                Comparator<Object> keys = c != null ? c
+                        : (k1, k2) -> ((Comparable<Object>) k1).compareTo(k2);
+                queue = new PriorityQueue<Cursor<Map.Entry<Object, Set<K>>>>(partitions.length,
+                        (c1, c2) -> keys.compare(c1.head.getKey(), c2.head.getKey()));
+            }
+            Cursor.offer(queue, sorted.entrySet().iterator());
+        }
+        Set<K> merged = new LinkedHashSet<K>();
+        while (merged.size() < count && queue != null && !queue.isEmpty()) {
+            Cursor<Map.Entry<Object, Set<K>>> c = queue.poll();
+            for (Iterator<K> i = c.head.getValue().iterator(); i.hasNext() && merged.size() < count;) {
+                merged.add(i.next());
+            }
+            Cursor.offer(queue, c.rest);
+        }
+        return new ArrayList<K>(merged);
+    }
+
+    /**
+     * Creates a stream of all the beans, splitting at the partitions first
+     *
+     * @return
+     */
+    @Override
+    public Stream<K> stream() {
+        return Arrays.stream(partitions).flatMap(BeanIndexer::stream);
+    }
+
+    @Override
+    public Stream<K> parallelStream() {
+        return Arrays.stream(partitions).parallel().flatMap(BeanIndexer::stream);
+    }
+
+    @Override
+    public boolean add(K bean) {
+        return partitionOf(bean).add(bean);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return partitionOf(o).remove(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return partitionOf(o).contains(o);
+    }
+
+    @Override
+    public void clear() {
+        for (BeanIndexer<K> partition : partitions) {
+            partition.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BeanIndexer<K> partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (BeanIndexer<K> partition : partitions) {
+            if (!partition.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+        return new Iterator<K>() {
+
+            private int partition;
+            private Iterator<K> current = partitions[0].iterator();
+            private Iterator<K> last;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && partition < partitions.length - 1) {
+                    current = partitions[++partition].iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public K next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = current;
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                last.remove();
+                last = null;
+            }
+        };
+    }
+
+    /**
+     * Head of an ordered iterator for k-way merges
+     */
+    private static class Cursor<T> {
+
+        private final T head;
+        private final Iterator<T> rest;
+
+        private Cursor(T head, Iterator<T> rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        static <T> void offer(PriorityQueue<Cursor<T>> queue, Iterator<T> iterator) {
+            if (iterator.hasNext()) {
+                queue.add(new Cursor<T>(iterator.next(), iterator));
+            }
+        }
+    }
+}
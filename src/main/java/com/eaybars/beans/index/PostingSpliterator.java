@@ -0,0 +1,118 @@
+package com.eaybars.beans.index;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the posting sets of a range of index keys, in key order.
+ * The sizes of the postings are summed once so that the exact size of any
+ * part of the range is known, and the range is split at the posting which
+ * divides its beans in halves. A single remaining posting is split by its own
+ * spliterator.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class PostingSpliterator<K> implements Spliterator<K> {
+
+    private final Set<K>[] postings;
+    private final long[] offsets;
+    private final boolean sized;
+    private int index;
+    private final int fence;
+    private Spliterator<K> current;
+
+    /**
+     * @param postings posting sets of the range in key order
+     * @param sized whether the postings do not change while being traversed
+     */
+    @SuppressWarnings("unchecked")
+    PostingSpliterator(Collection<Set<K>> postings, boolean sized) {
+        this.postings = postings.toArray(new Set[postings.size()]);
+        this.offsets = new long[this.postings.length + 1];
+        for (int i = 0; i < this.postings.length; i++) {
+            offsets[i + 1] = offsets[i] + this.postings[i].size();
+        }
+        this.sized = sized;
+        this.index = 0;
+        this.fence = this.postings.length;
+    }
+
+    private PostingSpliterator(PostingSpliterator<K> parent, int index, int fence,
+            Spliterator<K> current) {
+        this.postings = parent.postings;
+        this.offsets = parent.offsets;
+        this.sized = parent.sized;
+        this.index = index;
+        this.fence = fence;
+        this.current = current;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super K> action) {
+        while (true) {
+            if (current != null && current.tryAdvance(action)) {
+                return true;
+            }
+            if (index >= fence) {
+                current = null;
+                return false;
+            }
+            current = postings[index++].spliterator();
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super K> action) {
+        if (current != null) {
+            current.forEachRemaining(action);
+            current = null;
+        }
+        for (; index < fence; index++) {
+            postings[index].forEach(action);
+        }
+    }
+
+    @Override
+    public Spliterator<K> trySplit() {
+        if (fence - index > 1) {
+            // split at the posting closest to the middle of the beans
+            long middle = (offsets[index] + offsets[fence]) >>> 1;
+            int low = index + 1;
+            int high = fence - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (offsets[mid] < middle) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            Spliterator<K> prefix = new PostingSpliterator<K>(this, index, low, current);
+            index = low;
+            current = null;
+            return prefix;
+        }
+        if (current == null && index < fence) {
+            current = postings[index++].spliterator();
+        }
+        return current == null ? null : current.trySplit();
+    }
+
+    @Override
+    public long estimateSize() {
+        return offsets[fence] - offsets[index]
+                + (current == null ? 0 : current.estimateSize());
+    }
+
+    @Override
+    public int characteristics() {
+        int characteristics = ORDERED | NONNULL;
+        if (sized && (current == null || current.hasCharacteristics(SIZED))) {
+            characteristics |= SIZED;
+        }
+        return characteristics;
+    }
+}
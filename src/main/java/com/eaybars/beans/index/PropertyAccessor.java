@@ -0,0 +1,21 @@
+package com.eaybars.beans.index;
+
+/**
+ * Reads the value of an indexed property from a bean without going through
+ * the reflective property introspection. Accessors are generated by the
+ * IndexProcessor for classes declaring @Index annotations.
+ *
+ * @author Ertunc
+ * @param <K> type of the bean
+ */
+public interface PropertyAccessor<K> {
+
+    /**
+     * Retrieves the value of the property. For properties reached through a
+     * collection or array, the values are returned as a collection.
+     *
+     * @param bean
+     * @return
+     */
+    public Object getValue(K bean);
+}
@@ -0,0 +1,223 @@
+package com.eaybars.beans.index;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of search results of a BeanIndexer, obtained from
+ * BeanIndexer.enableQueryCache. A cached result is keyed by the normalized
+ * description of the search up to the step producing it, and is valid as
+ * long as the generation counters of the indexes used by the search have not
+ * changed. Adding or removing a bean advances the generation of every index,
+ * a property change only advances the generation of the changed index.
+ * <p>
+ * For LFU the cached searches are kept in buckets by their number of hits,
+ * each in insertion order, so the victim is the oldest search of the lowest
+ * bucket and is found without visiting the other entries.
+ *
+ * @author Ertunc
+ */
+public class QueryCache {
+
+    /**
+     * Policy choosing the entry to evict when the cache is full
+     */
+    public enum Eviction {
+
+        /**
+         * Evicts the least recently used result
+         */
+        LRU,
+        /**
+         * Evicts the least frequently used result
+         */
+        LFU
+    }
+
+    private final int maximumSize;
+    private final Eviction eviction;
+    private final LinkedHashMap<QueryStep, Entry> entries;
+    // searches by number of hits, for LFU
+    private final TreeMap<Long, LinkedHashSet<QueryStep>> frequencies;
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> indexGenerations = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    QueryCache(int maximumSize, Eviction eviction) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.eviction = eviction;
+        this.entries = new LinkedHashMap<QueryStep, Entry>(16, 0.75f, eviction == Eviction.LRU);
+        this.frequencies = eviction == Eviction.LFU ? new TreeMap<Long, LinkedHashSet<QueryStep>>() : null;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public Eviction getEviction() {
+        return eviction;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all cached results
+     */
+    public synchronized void clear() {
+        entries.clear();
+        if (frequencies != null) {
+            frequencies.clear();
+        }
+    }
+
+    /**
+     * Called after beans are added or removed
+     */
+    void beansChanged() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Called after the keys of the given index change without beans being
+     * added or removed
+     */
+    void indexChanged(String property) {
+        AtomicLong g = indexGenerations.get(property);
+        if (g == null) {
+            AtomicLong created = new AtomicLong();
+            g = indexGenerations.putIfAbsent(property, created);
+            if (g == null) {
+                g = created;
+            }
+        }
+        g.incrementAndGet();
+    }
+
+    /**
+     * Captures the current generations of the indexes used by the given
+     * search. Must be called before the result of the search is computed.
+     */
+    long[] stamp(QueryStep step) {
+        long[] stamp = new long[step.length() + 1];
+        stamp[0] = generation.get();
+        int i = 1;
+        for (QueryStep s = step; s != null; s = s.getPrevious()) {
+            AtomicLong g = s.getProperty() == null ? null : indexGenerations.get(s.getProperty());
+            stamp[i++] = g == null ? 0 : g.get();
+        }
+        return stamp;
+    }
+
+    /**
+     * Retrieves the cached result of the search if it is still valid
+     *
+     * @param step
+     * @param stamp current generations as captured by {@link #stamp}
+     * @return null if no valid result is cached
+     */
+    synchronized Set<?> get(QueryStep step, long[] stamp) {
+        Entry entry = entries.get(step);
+        if (entry != null && Arrays.equals(entry.stamp, stamp)) {
+            if (frequencies != null) {
+                unlink(step, entry);
+                entry.frequency++;
+                link(step, entry);
+            }
+            hits.incrementAndGet();
+            return entry.result;
+        }
+        if (entry != null) {
+            entries.remove(step);
+            if (frequencies != null) {
+                unlink(step, entry);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches the result of the search. The result must not be modified
+     * afterwards.
+     */
+    synchronized void put(QueryStep step, long[] stamp, Set<?> result) {
+        if (!entries.containsKey(step) && entries.size() >= maximumSize) {
+            evict();
+        }
+        Entry entry = new Entry(stamp, result);
+        Entry old = entries.put(step, entry);
+        if (frequencies != null) {
+            if (old != null) {
+                unlink(step, old);
+            }
+            link(step, entry);
+        }
+    }
+
+    private void evict() {
+        if (eviction == Eviction.LRU) {
+            Iterator<Map.Entry<QueryStep, Entry>> i = entries.entrySet().iterator();
+            i.next();
+            i.remove();
+        } else {
+            Map.Entry<Long, LinkedHashSet<QueryStep>> lowest = frequencies.firstEntry();
+            Iterator<QueryStep> i = lowest.getValue().iterator();
+            QueryStep victim = i.next();
+            i.remove();
+            if (lowest.getValue().isEmpty()) {
+                frequencies.remove(lowest.getKey());
+            }
+            entries.remove(victim);
+        }
+    }
+
+    private void link(QueryStep step, Entry entry) {
+        LinkedHashSet<QueryStep> bucket = frequencies.get(entry.frequency);
+        if (bucket == null) {
+            frequencies.put(entry.frequency, bucket = new LinkedHashSet<QueryStep>());
+        }
+        bucket.add(step);
+    }
+
+    private void unlink(QueryStep step, Entry entry) {
+        LinkedHashSet<QueryStep> bucket = frequencies.get(entry.frequency);
+        bucket.remove(step);
+        if (bucket.isEmpty()) {
+            frequencies.remove(entry.frequency);
+        }
+    }
+
+    private static class Entry {
+
+        private final long[] stamp;
+        private final Set<?> result;
+        private long frequency;
+
+        Entry(long[] stamp, Set<?> result) {
+            this.stamp = stamp;
+            this.result = result;
+        }
+    }
+}
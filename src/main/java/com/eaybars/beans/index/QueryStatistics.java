@@ -0,0 +1,86 @@
+package com.eaybars.beans.index;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency and result size summary of a filter operation on an index
+ *
+ * @author Ertunc
+ */
+public class QueryStatistics {
+
+    private final String operation;
+    private final String property;
+    private final long count;
+    private final long meanNanos;
+    private final long medianNanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+    private final double meanResultSize;
+    private final long maxResultSize;
+
+    @ConstructorProperties({"operation", "property", "count", "meanNanos",
+        "medianNanos", "p99Nanos", "maxNanos", "meanResultSize", "maxResultSize"})
+    public QueryStatistics(String operation, String property, long count,
+            long meanNanos, long medianNanos, long p99Nanos, long maxNanos,
+            double meanResultSize, long maxResultSize) {
+        this.operation = operation;
+        this.property = property;
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.medianNanos = medianNanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+        this.meanResultSize = meanResultSize;
+        this.maxResultSize = maxResultSize;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getProperty() {
+        return property;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        return meanNanos;
+    }
+
+    /**
+     * @return upper bound of the histogram bucket holding the median latency
+     */
+    public long getMedianNanos() {
+        return medianNanos;
+    }
+
+    /**
+     * @return upper bound of the histogram bucket holding the 99th percentile
+     * latency
+     */
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public double getMeanResultSize() {
+        return meanResultSize;
+    }
+
+    public long getMaxResultSize() {
+        return maxResultSize;
+    }
+
+    @Override
+    public String toString() {
+        return operation + "(" + property + ")[count=" + count + ", mean="
+                + meanNanos + "ns, p99=" + p99Nanos + "ns, results=" + meanResultSize + "]";
+    }
+}
@@ -0,0 +1,121 @@
+package com.eaybars.beans.index;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Normalized description of a search: each step holds a filter operation and
+ * the connective joining it to the previous steps, and refers to the previous
+ * step, so that a step identifies the whole search up to and including it.
+ *
+ * @author Ertunc
+ */
+final class QueryStep {
+
+    private final QueryStep previous;
+    private final boolean and;
+    private final String operation;
+    private final String property;
+    private final Object[] arguments;
+    private final int length;
+    private final int hash;
+
+    QueryStep(QueryStep previous, boolean and, String operation,
+            String property, Object... arguments) {
+        this.previous = previous;
+        this.and = and;
+        this.operation = operation;
+        this.property = property;
+        this.arguments = arguments.clone();
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i] instanceof Set<?>) { // decouple from later changes
+                this.arguments[i] = new HashSet<Object>((Set<?>) arguments[i]);
+            }
+        }
+        this.length = previous == null ? 1 : previous.length + 1;
+        int h = previous == null ? 17 : previous.hash;
+        h = 31 * h + (and ? 1 : 0);
+        h = 31 * h + operation.hashCode();
+        h = 31 * h + (property == null ? 0 : property.hashCode());
+        h = 31 * h + Arrays.hashCode(arguments);
+        this.hash = h;
+    }
+
+    QueryStep getPrevious() {
+        return previous;
+    }
+
+    boolean isAnd() {
+        return and;
+    }
+
+    String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the searched property, or null for operations on the search
+     * result itself such as inverse
+     */
+    String getProperty() {
+        return property;
+    }
+
+    Object[] getArguments() {
+        return arguments;
+    }
+
+    int length() {
+        return length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof QueryStep)) {
+            return false;
+        }
+        QueryStep s1 = this;
+        QueryStep s2 = (QueryStep) obj;
+        if (s1.hash != s2.hash || s1.length != s2.length) {
+            return false;
+        }
+        while (s1 != null) {
+            if (s1 == s2) {
+                return true;
+            }
+            if (s1.and != s2.and || !s1.operation.equals(s2.operation)
+                    || (s1.property == null ? s2.property != null : !s1.property.equals(s2.property))
+                    || !Arrays.equals(s1.arguments, s2.arguments)) {
+                return false;
+            }
+            s1 = s1.previous;
+            s2 = s2.previous;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (previous != null) {
+            sb.append(previous).append(and ? " and " : " or ");
+        }
+        sb.append(operation).append('(');
+        if (property != null) {
+            sb.append(property);
+        }
+        for (Object argument : arguments) {
+            sb.append(", ").append(argument);
+        }
+        return sb.append(')').toString();
+    }
+}
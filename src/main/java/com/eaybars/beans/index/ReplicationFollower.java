@@ -0,0 +1,168 @@
+package com.eaybars.beans.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the batches of changes published by a ReplicationLeader to a local
+ * BeanIndexer, setting changed properties on the follower's copy of the bean
+ * in place. Batches are applied when the follower is polled, or
+ * continuously by a background thread once it is started. A batch received
+ * out of sequence fails the follower, since its indexer can no longer be
+ * kept identical to the leader's.
+ * <p>
+ * The indexer of a follower should only be changed by the follower.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class ReplicationFollower<K> implements Closeable {
+
+    private final BeanIndexer<K> indexer;
+    private final BeanSerializer<K> serializer;
+    private final ValueSerializer valueSerializer;
+    private final ReplicationTransport transport;
+    private final Map<Integer, K> beans = new HashMap<Integer, K>();
+    private int nextId;
+    private volatile long sequence;
+    private volatile IOException failure;
+    private volatile Thread thread;
+
+    /**
+     * @param indexer
+     * @param serializer
+     * @param transport
+     */
+    public ReplicationFollower(BeanIndexer<K> indexer, BeanSerializer<K> serializer,
+            ReplicationTransport transport) {
+        this(indexer, serializer, new StandardValueSerializer(), transport);
+    }
+
+    /**
+     * @param indexer
+     * @param serializer
+     * @param valueSerializer serializer of the values of changed properties,
+     * the same as the leader's
+     * @param transport
+     */
+    public ReplicationFollower(BeanIndexer<K> indexer, BeanSerializer<K> serializer,
+            ValueSerializer valueSerializer, ReplicationTransport transport) {
+        this.indexer = indexer;
+        this.serializer = serializer;
+        this.valueSerializer = valueSerializer;
+        this.transport = transport;
+    }
+
+    /**
+     * Applies the received batches, waiting up to the given timeout for the
+     * first one
+     *
+     * @param maxBatches maximum number of batches to apply
+     * @param timeout
+     * @param unit
+     * @return the number of batches applied
+     * @throws IOException if a batch cannot be received or is out of
+     * sequence
+     * @throws InterruptedException
+     */
+    public synchronized int poll(int maxBatches, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException {
+        if (failure != null) {
+            throw failure;
+        }
+        int applied = 0;
+        while (applied < maxBatches) {
+            byte[] batch = transport.receive(applied == 0 ? timeout : 0, unit);
+            if (batch == null) {
+                break;
+            }
+            try {
+                apply(batch);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    private void apply(byte[] batch) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        long batchSequence = in.readLong();
+        if (batchSequence != sequence + 1) {
+            throw new IOException("Replication gap: expected batch " + (sequence + 1)
+                    + " but received " + batchSequence);
+        }
+        nextId = MutationRecords.apply(in, indexer, beans, serializer, valueSerializer, nextId);
+        sequence = batchSequence;
+    }
+
+    /**
+     * Starts applying the received batches in a background thread until the
+     * follower is closed or fails
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (thread == Thread.currentThread()) {
+                    try {
+                        poll(Integer.MAX_VALUE, 100, TimeUnit.MILLISECONDS);
+                    } catch (IOException e) {// kept as the failure of this follower
+                        return;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ReplicationFollower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Retrieves the sequence number of the last applied batch
+     *
+     * @return
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the error which failed this follower, or null
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops applying batches and closes the transport
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        transport.close();
+    }
+}
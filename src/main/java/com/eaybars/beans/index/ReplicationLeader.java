@@ -0,0 +1,245 @@
+package com.eaybars.beans.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the changes of a BeanIndexer to ReplicationFollowers through a
+ * ReplicationTransport, so that the followers keep the same beans in their
+ * own indexers.
+ * <p>
+ * Changes are encoded in the record format of the MutationLog and buffered
+ * until they are flushed as a batch, either explicitly, periodically by a
+ * background thread or once the buffer grows large. Each batch starts with
+ * its sequence number, which lets the followers detect lost batches. The
+ * first batches hold the beans of the indexer at the time the leader is
+ * created, so the indexer must not be changed until the constructor returns.
+ * <p>
+ * A property change is sent as the new value of the property, written with
+ * a ValueSerializer, which the followers set on their copy of the bean. A
+ * change which cannot be sent this way, for example of a read only property,
+ * is sent as the whole bean. A change which cannot be recorded at all fails
+ * the leader, since its followers can no longer be kept identical to the
+ * indexer.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class ReplicationLeader<K> implements MutationListener<K>, Closeable {
+
+    private static final int FLUSH_THRESHOLD = 1 << 16;
+
+    private final BeanIndexer<K> indexer;
+    private final ReplicationTransport transport;
+    private final MutationRecords.Encoder<K> encoder;
+    private final Object lock = new Object();
+    private final Object sendLock = new Object();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ScheduledExecutorService flushExecutor;
+    private long sequence;
+    private volatile IOException failure;
+
+    /**
+     * Publishes the beans of the given indexer and its changes afterwards,
+     * which are sent when the leader is flushed
+     *
+     * @param indexer
+     * @param serializer
+     * @param transport
+     * @throws IOException
+     */
+    public ReplicationLeader(BeanIndexer<K> indexer, BeanSerializer<K> serializer,
+            ReplicationTransport transport) throws IOException {
+        this(indexer, serializer, new StandardValueSerializer(), transport);
+    }
+
+    /**
+     * Publishes the beans of the given indexer and its changes afterwards,
+     * writing the values of changed properties with the given serializer
+     *
+     * @param indexer
+     * @param serializer
+     * @param valueSerializer
+     * @param transport
+     * @throws IOException
+     */
+    public ReplicationLeader(BeanIndexer<K> indexer, BeanSerializer<K> serializer,
+            ValueSerializer valueSerializer, ReplicationTransport transport) throws IOException {
+        this.indexer = indexer;
+        this.transport = transport;
+        this.encoder = new MutationRecords.Encoder<K>(serializer, valueSerializer);
+        append(MutationRecords.CLEAR, null);
+        for (K bean : indexer) {
+            append(MutationRecords.ADD, bean);
+        }
+        flush();
+        indexer.addMutationListener(this);
+    }
+
+    /**
+     * Publishes the beans of the given indexer and its changes afterwards,
+     * flushing the changes periodically
+     *
+     * @param indexer
+     * @param serializer
+     * @param transport
+     * @param flushInterval
+     * @param unit
+     * @throws IOException
+     */
+    public ReplicationLeader(BeanIndexer<K> indexer, BeanSerializer<K> serializer,
+            ReplicationTransport transport, long flushInterval, TimeUnit unit) throws IOException {
+        this(indexer, serializer, transport);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ReplicationLeader-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {// kept as the failure of this leader
+                }
+            }
+        }, flushInterval, flushInterval, unit);
+    }
+
+    @Override
+    public void beanAdded(K bean) {
+        publish(MutationRecords.ADD, bean);
+    }
+
+    @Override
+    public void beanRemoved(K bean) {
+        publish(MutationRecords.REMOVE, bean);
+    }
+
+    @Override
+    public void propertyChanged(K bean, String property, Object oldValue, Object newValue) {
+        publish(MutationRecords.SET, bean, property, newValue);
+    }
+
+    @Override
+    public void beansCleared() {
+        publish(MutationRecords.CLEAR, null);
+    }
+
+    private void publish(byte type, K bean) {
+        publish(type, bean, null, null);
+    }
+
+    private void publish(byte type, K bean, String property, Object value) {
+        if (failure != null) {
+            throw new IllegalStateException("Replication has failed", failure);
+        }
+        try {
+            append(type, bean, property, value);
+        } catch (IOException e) {// the followers no longer match the indexer
+            failure = e;
+            throw new IllegalStateException("Replication has failed", e);
+        }
+    }
+
+    private void append(byte type, K bean) throws IOException {
+        append(type, bean, null, null);
+    }
+
+    private void append(byte type, K bean, String property, Object value) throws IOException {
+        boolean full;
+        synchronized (lock) {
+            record.reset();
+            if (type == MutationRecords.SET) {
+                encoder.writeChange(bean, property, value, recordOut);
+            } else {
+                encoder.write(type, bean, recordOut);
+            }
+            record.writeTo(pending);
+            full = pending.size() >= FLUSH_THRESHOLD;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the changes made since the last flush as a batch
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        synchronized (sendLock) {
+            byte[] records;
+            long batchSequence;
+            synchronized (lock) {
+                if (pending.size() == 0) {
+                    return;
+                }
+                records = pending.toByteArray();
+                pending.reset();
+                batchSequence = ++sequence;
+            }
+            ByteArrayOutputStream batch = new ByteArrayOutputStream(records.length + 8);
+            DataOutputStream out = new DataOutputStream(batch);
+            out.writeLong(batchSequence);
+            out.write(records);
+            try {
+                transport.send(batch.toByteArray());
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the sequence number of the last batch sent
+     *
+     * @return
+     */
+    public long getSequence() {
+        synchronized (lock) {
+            return sequence;
+        }
+    }
+
+    /**
+     * Stops publishing the changes of the indexer, sending the pending ones
+     * and closing the transport
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        indexer.removeMutationListener(this);
+        if (flushExecutor != null) {
+            // interrupting a flush would close the channel of a file transport
+            // in the middle of a batch
+            flushExecutor.shutdown();
+            try {
+                flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            flush();
+        } finally {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.eaybars.beans.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the batches of changes from a ReplicationLeader to its
+ * ReplicationFollowers in the order they are sent. The leader and each
+ * follower use their own end of the transport.
+ *
+ * @author Ertunc
+ */
+public interface ReplicationTransport extends Closeable {
+
+    /**
+     * Sends the given batch to the followers
+     *
+     * @param batch
+     * @throws IOException
+     */
+    public void send(byte[] batch) throws IOException;
+
+    /**
+     * Receives the next batch sent by the leader, waiting up to the given
+     * timeout for it
+     *
+     * @param timeout
+     * @param unit
+     * @return null if no batch has been received within the timeout
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public byte[] receive(long timeout, TimeUnit unit) throws IOException, InterruptedException;
+}
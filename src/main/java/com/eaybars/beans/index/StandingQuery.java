@@ -0,0 +1,178 @@
+package com.eaybars.beans.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+/**
+ * Search of a BeanIndexer whose results are kept up to date as the indexer
+ * changes, obtained from BeanIndexer.standingQuery. The search is executed
+ * once against the indexes, then each added, removed or changed bean is
+ * tested against the conditions of the search alone, so the cost of keeping
+ * the results is proportional to the changes rather than to the number of
+ * beans. A property change is only tested if the search uses the property.
+ * <p>
+ * Listeners are notified of the beans entering and leaving the results from
+ * the thread making the change, like MutationListeners.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+public class StandingQuery<K> implements MutationListener<K> {
+
+    /**
+     * Listener notified of the changes of the results of a standing query
+     *
+     * @param <K>
+     */
+    public interface Listener<K> {
+
+        /**
+         * Called when a bean starts matching the query
+         *
+         * @param bean
+         */
+        void entered(K bean);
+
+        /**
+         * Called when a bean stops matching the query or is removed from the
+         * indexer
+         *
+         * @param bean
+         */
+        void left(K bean);
+    }
+
+    private final BeanIndexer<K> indexer;
+    private final Set<K> result;
+    private final List<Listener<K>> listeners = new CopyOnWriteArrayList<Listener<K>>();
+    private Predicate<K> condition;
+    private Set<String> properties;
+    private List<K> pending = new ArrayList<K>();
+    private boolean cleared;
+
+    StandingQuery(BeanIndexer<K> indexer, Set<K> result) {
+        this.indexer = indexer;
+        this.result = result;
+    }
+
+    /**
+     * Starts from the given results of the search, testing the beans changed
+     * while the search was executed again
+     *
+     * @param properties the properties used by the condition, or null if any
+     * property change may affect it
+     */
+    synchronized void initialize(Predicate<K> condition, Set<String> properties, Set<K> initial) {
+        this.condition = condition;
+        this.properties = properties;
+        result.addAll(initial);
+        if (cleared) {
+            result.retainAll(indexer);
+        }
+        for (K bean : pending) {
+            if (indexer.contains(bean)) {
+                evaluate(bean);
+            } else {
+                result.remove(bean);
+            }
+        }
+        pending = null;
+    }
+
+    /**
+     * Retrieves the current results. The returned set is an unmodifiable
+     * view, which is only safe to iterate while the indexer changes if the
+     * indexer is concurrent.
+     *
+     * @return
+     */
+    public Set<K> results() {
+        return Collections.unmodifiableSet(result);
+    }
+
+    public int size() {
+        return result.size();
+    }
+
+    public boolean contains(K bean) {
+        return result.contains(bean);
+    }
+
+    public void addListener(Listener<K> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener<K> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Stops updating the results
+     */
+    public void close() {
+        indexer.removeMutationListener(this);
+    }
+
+    @Override
+    public synchronized void beanAdded(K bean) {
+        if (pending != null) {
+            pending.add(bean);
+        } else {
+            evaluate(bean);
+        }
+    }
+
+    @Override
+    public synchronized void beanRemoved(K bean) {
+        if (pending != null) {
+            pending.add(bean);
+        } else if (result.remove(bean)) {
+            for (Listener<K> l : listeners) {
+                l.left(bean);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void propertyChanged(K bean, String property, Object oldValue,
+            Object newValue) {
+        if (pending != null) {
+            pending.add(bean);
+        } else if (properties == null || properties.contains(property)) {
+            evaluate(bean);
+        }
+    }
+
+    @Override
+    public synchronized void beansCleared() {
+        if (pending != null) {
+            cleared = true;
+            return;
+        }
+        List<K> left = new ArrayList<K>(result);
+        result.clear();
+        for (K bean : left) {
+            for (Listener<K> l : listeners) {
+                l.left(bean);
+            }
+        }
+    }
+
+    private void evaluate(K bean) {
+        if (condition.test(bean)) {
+            if (result.add(bean)) {
+                for (Listener<K> l : listeners) {
+                    l.entered(bean);
+                }
+            }
+        } else if (result.remove(bean)) {
+            for (Listener<K> l : listeners) {
+                l.left(bean);
+            }
+        }
+    }
+}
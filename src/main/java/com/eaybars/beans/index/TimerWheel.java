@@ -0,0 +1,197 @@
+package com.eaybars.beans.index;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timer wheel holding the expiry times of beans in
+ * milliseconds. Each level has 64 slots, a slot of a level spanning all the
+ * slots of the level below, and a bean is kept in the lowest level whose
+ * range covers its expiry time. Beans of a higher level slot are moved down
+ * when the wheel reaches the slot, so scheduling, cancelling and expiring a
+ * bean costs constant time. Advancing the wheel skips the empty slots of the
+ * lowest level using the occupancy mask of the level.
+ * <p>
+ * A BeanIndexer schedules its beans on a wheel once expiry is enabled with
+ * expireAfter or expireAt, and removes the expired beans in batches whenever
+ * a bean is added, a search is started or expire is called.
+ * <p>
+ * The wheel is thread safe.
+ *
+ * @author Ertunc
+ * @param <K>
+ */
+final class TimerWheel<K> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 5;
+
+    private final Node<K>[][] slots;
+    private final long[] occupied = new long[LEVELS];
+    private final Map<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    TimerWheel(long now) {
+        this.tick = now;
+        this.slots = new Node[LEVELS][SLOTS];
+    }
+
+    private static final class Node<K> {
+
+        final K bean;
+        long deadline;
+        int level;
+        int slot;
+        Node<K> previous;
+        Node<K> next;
+
+        Node(K bean) {
+            this.bean = bean;
+        }
+    }
+
+    /**
+     * Schedules the given bean to expire at the given time, replacing its
+     * previous expiry time if any. A time which has already passed expires
+     * the bean the next time the wheel is advanced.
+     */
+    synchronized void schedule(K bean, long deadline) {
+        Node<K> node = nodes.get(bean);
+        if (node == null) {
+            nodes.put(bean, node = new Node<K>(bean));
+        } else {
+            unlink(node);
+        }
+        node.deadline = Math.max(deadline, tick);
+        place(node);
+    }
+
+    synchronized void cancel(Object bean) {
+        Node<K> node = nodes.remove(bean);
+        if (node != null) {
+            unlink(node);
+        }
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+        for (int level = 0; level < LEVELS; level++) {
+            Arrays.fill(slots[level], null);
+            occupied[level] = 0;
+        }
+    }
+
+    synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Advances the wheel to the given time
+     *
+     * @param expired receives the beans whose expiry time has been reached
+     */
+    synchronized void advance(long now, List<K> expired) {
+        if (nodes.isEmpty()) {
+            tick = Math.max(tick, now);
+            return;
+        }
+        if (now >= tick && (occupied[0] & (1L << (tick & MASK))) != 0) {// scheduled in the past
+            expire((int) (tick & MASK), expired);
+        }
+        while (tick < now) {
+            long boundary = (tick | MASK) + 1;
+            int from = (int) (tick & MASK) + 1;
+            long pending = from == SLOTS ? 0 : occupied[0] & (-1L << from);
+            long next = pending == 0 ? boundary : (tick & ~MASK) + Long.numberOfTrailingZeros(pending);
+            if (next > now) {
+                tick = now;
+                break;
+            }
+            tick = next;
+            if (next == boundary) {
+                cascade();
+            }
+            expire((int) (tick & MASK), expired);
+        }
+    }
+
+    /**
+     * Moves the beans of the higher level slots reached at the current tick
+     * down, starting from the highest level
+     */
+    private void cascade() {
+        int level = 1;
+        while (level < LEVELS - 1 && (tick & ((1L << (BITS * (level + 1))) - 1)) == 0) {
+            level++;
+        }
+        for (; level > 0; level--) {
+            int slot = (int) ((tick >>> (BITS * level)) & MASK);
+            Node<K> node = slots[level][slot];
+            slots[level][slot] = null;
+            occupied[level] &= ~(1L << slot);
+            while (node != null) {
+                Node<K> next = node.next;
+                node.previous = node.next = null;
+                place(node);
+                node = next;
+            }
+        }
+    }
+
+    private void expire(int slot, List<K> expired) {
+        Node<K> node = slots[0][slot];
+        slots[0][slot] = null;
+        occupied[0] &= ~(1L << slot);
+        while (node != null) {
+            Node<K> next = node.next;
+            node.previous = node.next = null;
+            if (node.deadline <= tick) {
+                nodes.remove(node.bean);
+                expired.add(node.bean);
+            } else {
+                place(node);
+            }
+            node = next;
+        }
+    }
+
+    private void place(Node<K> node) {
+        long delta = node.deadline - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+            level++;
+        }
+        // beyond the range of the wheel, placed at its far end to be moved again
+        long time = delta >= 1L << (BITS * LEVELS) ? tick + (1L << (BITS * LEVELS)) - 1 : node.deadline;
+        int slot = (int) ((time >>> (BITS * level)) & MASK);
+        node.level = level;
+        node.slot = slot;
+        node.previous = null;
+        node.next = slots[level][slot];
+        if (node.next != null) {
+            node.next.previous = node;
+        }
+        slots[level][slot] = node;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Node<K> node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else if (slots[node.level][node.slot] == node) {
+            slots[node.level][node.slot] = node.next;
+            if (node.next == null) {
+                occupied[node.level] &= ~(1L << node.slot);
+            }
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        }
+        node.previous = node.next = null;
+    }
+}
@@ -0,0 +1,18 @@
+package com.eaybars.beans.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads indexed property values to and from the persisted forms of
+ * an indexer. {@link StandardValueSerializer} handles the common value types.
+ *
+ * @author Ertunc
+ */
+public interface ValueSerializer {
+
+    public void write(Object value, DataOutput out) throws IOException;
+
+    public Object read(DataInput in) throws IOException;
+}
@@ -0,0 +1,593 @@
+package com.eaybars.beans.index.processor;
+
+import com.eaybars.beans.index.Index;
+import com.eaybars.beans.index.IndexSchema;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@link IndexSchema} provider for each class declaring @Index
+ * annotations, either on the class itself or on its fields. The generated
+ * schema resolves the indexes the same way BeanIndexer.beanIndexFrom does at
+ * runtime and reads the indexed values through direct getter calls, so that
+ * an indexer created from it does not introspect the bean class. The rules
+ * are implemented on both sides, on type mirrors here and on classes in
+ * IndexSchema, and IndexSchemaTest checks that every annotated test bean
+ * resolves alike both ways.
+ * <p>
+ * A class whose indexes cannot be resolved at compile time (for example a
+ * sorted index on a property which is not Comparable) is skipped with a
+ * warning, leaving it to the runtime introspection.
+ *
+ * @author Ertunc
+ */
+@SupportedAnnotationTypes("com.eaybars.beans.index.Index")
+public class IndexProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        Set<TypeElement> beans = new LinkedHashSet<TypeElement>();
+        for (Element e : roundEnv.getElementsAnnotatedWith(Index.class)) {
+            Element type = e;
+            while (type != null && !type.getKind().isClass()
+                    && !type.getKind().isInterface()) {
+                type = type.getEnclosingElement();
+            }
+            if (type != null && type.getKind() == ElementKind.CLASS) {
+                beans.add((TypeElement) type);
+            }
+        }
+        for (TypeElement bean : beans) {
+            try {
+                generate(bean);
+            } catch (UnsupportedBeanException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "No index schema generated for " + bean.getQualifiedName()
+                        + ": " + e.getMessage(), bean);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Cannot write index schema for " + bean.getQualifiedName()
+                        + ": " + e.getMessage(), bean);
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement bean) throws IOException {
+        checkAccessible(bean);
+        List<IndexModel> indexes = new ArrayList<IndexModel>();
+        scan(bean.asType(), new ArrayList<PropertyModel>(), false, indexes,
+                new HashSet<String>());
+        scanDerived(bean, indexes);
+
+        String packageName = processingEnv.getElementUtils().getPackageOf(bean)
+                .getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(bean).toString();
+        String simpleName = (packageName.length() == 0 ? binaryName
+                : binaryName.substring(packageName.length() + 1)).replace('$', '_')
+                + IndexSchema.GENERATED_SUFFIX;
+        String beanType = erasure(bean.asType());
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                packageName.length() == 0 ? simpleName : packageName + "." + simpleName, bean);
+        PrintWriter out = new PrintWriter(file.openWriter());
+        try {
+            if (packageName.length() > 0) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Index schema of {@link " + beanType + "}, generated by "
+                    + IndexProcessor.class.getSimpleName());
+            out.println(" */");
+            out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+            out.println("public final class " + simpleName
+                    + " implements com.eaybars.beans.index.IndexSchema.Provider<" + beanType + "> {");
+            out.println();
+            out.println("    @Override");
+            out.println("    public com.eaybars.beans.index.IndexSchema<" + beanType + "> getSchema() {");
+            out.println("        java.util.List<com.eaybars.beans.index.IndexDefinition<" + beanType
+                    + ">> indexes = new java.util.ArrayList<com.eaybars.beans.index.IndexDefinition<"
+                    + beanType + ">>();");
+            for (IndexModel index : indexes) {
+                out.println("        indexes.add(com.eaybars.beans.index.IndexDefinition.<" + beanType + ">"
+                        + (index.sorted ? "sorted(\"" + index.getName() + "\", "
+                                + (index.comparator == null ? "null" : "new " + index.comparator + "()")
+                                : "unsorted(\"" + index.getName() + "\"")
+                        + ", new com.eaybars.beans.index.PropertyAccessor<" + beanType + ">() {");
+                out.println("            @Override");
+                out.println("            public Object getValue(" + beanType + " bean) {");
+                writeAccessor(out, index.path, "                ");
+                out.println("            }");
+                out.println("        })" + (index.encoded ? ".asEncoded()" : "")
+                        + (index.valueType == null ? "" : ".withValueType(" + index.valueType + ")")
+                        + (index.derived ? ".asDerived()" : "") + ");");
+            }
+            out.println("        return new com.eaybars.beans.index.IndexSchema<" + beanType + ">("
+                    + beanType + ".class, indexes, " + (isObservable(bean) ? "new BeanEvent()" : "null") + ");");
+            out.println("    }");
+            if (isObservable(bean)) {
+                out.println();
+                out.println("    private static class BeanEvent extends com.eaybars.beans.events.BeanEvent<java.beans.PropertyChangeListener> {");
+                out.println();
+                out.println("        BeanEvent() {");
+                out.println("            super(null);");
+                out.println("        }");
+                out.println();
+                out.println("        @Override");
+                out.println("        public void addListener(Object bean, java.beans.PropertyChangeListener listener) {");
+                out.println("            ((" + beanType + ") bean).addPropertyChangeListener(listener);");
+                out.println("        }");
+                out.println();
+                out.println("        @Override");
+                out.println("        public void removeListener(Object bean, java.beans.PropertyChangeListener listener) {");
+                out.println("            ((" + beanType + ") bean).removePropertyChangeListener(listener);");
+                out.println("        }");
+                out.println("    }");
+            }
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Counterpart of BeanIndexer.scanAndAddIndexes
+     */
+    private void scan(TypeMirror type, List<PropertyModel> parent,
+            boolean checkBeforeIndexing, List<IndexModel> result, Set<String> visiting) {
+        Index classIndex = getClassIndex(type);
+        if (checkBeforeIndexing ? (classIndex != null && classIndex.contents()) : true) {
+            if (!visiting.add(erasure(type))) {
+                throw new UnsupportedBeanException("cyclic index contents through "
+                        + toPath(parent));
+            }
+            for (PropertyModel property : getReadableProperties(type)) {
+                List<PropertyModel> path = new ArrayList<PropertyModel>(parent);
+                path.add(property);
+                Index index = property.index;
+                if (index == null ? (classIndex != null && !classIndex.contents()) : !index.contents()) {
+                    result.add(createIndex(path));
+                } else {
+                    scan(getPropertyClass(property), path, index == null, result, visiting);
+                }
+            }
+            visiting.remove(erasure(type));
+        }
+    }
+
+    /**
+     * Counterpart of IndexSchema.scanDerivedIndexes, the generated accessor calls
+     * the derived method directly
+     */
+    private void scanDerived(TypeElement bean, List<IndexModel> result) {
+        DeclaredType type = (DeclaredType) bean.asType();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(bean))) {
+            Index index = method.getAnnotation(Index.class);
+            if (index == null || !method.getModifiers().contains(Modifier.PUBLIC)
+                    || method.getModifiers().contains(Modifier.STATIC)
+                    || !method.getParameters().isEmpty()) {
+                continue;
+            }
+            String methodName = method.getSimpleName().toString();
+            TypeMirror returnType = ((ExecutableType) processingEnv.getTypeUtils()
+                    .asMemberOf(type, method)).getReturnType();
+            if (returnType.getKind() == TypeKind.VOID || isGetter(methodName, returnType)) {
+                continue;
+            }
+            List<PropertyModel> path = new ArrayList<PropertyModel>();
+            path.add(new PropertyModel(methodName, methodName, returnType, index));
+            IndexModel model = createIndex(path);
+            model.derived = true;
+            result.add(model);
+        }
+    }
+
+    private static boolean isGetter(String methodName, TypeMirror returnType) {
+        return (methodName.startsWith("is") && methodName.length() > 2
+                && returnType.getKind() == TypeKind.BOOLEAN)
+                || (methodName.startsWith("get") && methodName.length() > 3
+                && !"getClass".equals(methodName));
+    }
+
+    /**
+     * Counterpart of BeanIndexer.addIndex
+     */
+    private IndexModel createIndex(List<PropertyModel> path) {
+        IndexModel model = createIndexModel(path);
+        if (!model.sorted) {
+            model.valueType = getValueType(path);
+        }
+        return model;
+    }
+
+    private IndexModel createIndexModel(List<PropertyModel> path) {
+        PropertyModel property = path.get(path.size() - 1);
+        Index index = property.index;
+        TypeMirror clazz = getPropertyClass(property);
+        checkAccessorPath(path);
+        if (index != null) {
+            TypeMirror comparator = getComparator(index);
+            boolean defaultComparator = isType(comparator, "java.util.Comparator");
+            if (index.sorted() || !defaultComparator) {
+                if (index.encoded()) {
+                    throw new UnsupportedBeanException("Dictionary encoding is only applicable to unsorted indexes: "
+                            + toPath(path));
+                } else if (!index.sorted()) {
+                    checkInstantiable(comparator);
+                    return new IndexModel(path, true, erasure(comparator), false);
+                } else if (!isSortable(clazz)) {
+                    throw new UnsupportedBeanException("Type of the property " + toPath(path)
+                            + " (" + clazz + ") is not sortable");
+                } else {
+                    return new IndexModel(path, true, null, false);
+                }
+            } else {
+                return new IndexModel(path, false, null, index.encoded());
+            }
+        } else {
+            index = getClassIndex(clazz);
+            return new IndexModel(path, index != null && index.sorted() && isSortable(clazz), null, false);
+        }
+    }
+
+    /**
+     * Counterpart of IndexSchema.createIndex, the class literal of the enum or
+     * boolean type of a single valued index, null for other indexes
+     */
+    private String getValueType(List<PropertyModel> path) {
+        for (PropertyModel property : path) {
+            if (isCollectionOrArray(property.type)) {
+                return null;
+            }
+        }
+        TypeMirror type = path.get(path.size() - 1).type;
+        if (type.getKind() == TypeKind.BOOLEAN) {
+            return "boolean.class";
+        } else if (isType(type, "java.lang.Boolean")) {
+            return "java.lang.Boolean.class";
+        } else if (type.getKind() == TypeKind.DECLARED
+                && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM) {
+            try {
+                checkAccessible((TypeElement) ((DeclaredType) type).asElement());
+            } catch (UnsupportedBeanException e) {
+                return null;
+            }
+            return erasure(type) + ".class";
+        }
+        return null;
+    }
+
+    private void writeAccessor(PrintWriter out, List<PropertyModel> path, String indent) {
+        boolean multiValued = false;
+        for (int i = 0; i < path.size() - 1; i++) {
+            multiValued |= isCollectionOrArray(path.get(i).type);
+        }
+        if (!multiValued) {
+            StringBuilder expression = new StringBuilder("bean");
+            for (PropertyModel property : path) {
+                expression.append('.').append(property.getter).append("()");
+            }
+            out.println(indent + "return " + expression + ";");
+        } else {
+            out.println(indent + "java.util.List<Object> values = new java.util.LinkedList<Object>();");
+            writeLevel(out, path, 0, "bean", false, indent);
+            out.println(indent + "return values;");
+        }
+    }
+
+    private void writeLevel(PrintWriter out, List<PropertyModel> path, int level,
+            String instance, boolean multiValued, String indent) {
+        PropertyModel property = path.get(level);
+        String value = instance + "." + property.getter + "()";
+        if (level == path.size() - 1) {
+            out.println(indent + "values.add(" + value + ");");
+        } else if (isCollectionOrArray(property.type)) {
+            String element = "v" + level;
+            out.println(indent + "for (" + erasure(getPropertyClass(property)) + " " + element
+                    + " : " + value + ") {");
+            out.println(indent + "    if (" + element + " != null) {");
+            writeLevel(out, path, level + 1, element, true, indent + "        ");
+            out.println(indent + "    }");
+            out.println(indent + "}");
+        } else if (multiValued) {
+            String element = "v" + level;
+            out.println(indent + erasure(property.type) + " " + element + " = " + value + ";");
+            out.println(indent + "if (" + element + " != null) {");
+            writeLevel(out, path, level + 1, element, true, indent + "    ");
+            out.println(indent + "}");
+        } else {
+            String element = "v" + level;
+            out.println(indent + erasure(property.type) + " " + element + " = " + value + ";");
+            writeLevel(out, path, level + 1, element, false, indent);
+        }
+    }
+
+    private void checkAccessorPath(List<PropertyModel> path) {
+        boolean multiValued = false;
+        for (int i = 0; i < path.size() - 1; i++) {
+            boolean collection = isCollectionOrArray(path.get(i).type);
+            if (multiValued && collection) {
+                throw new UnsupportedBeanException("nested collection property "
+                        + toPath(path));
+            }
+            multiValued |= collection;
+        }
+    }
+
+    /**
+     * Collects the readable bean properties of the given type the way
+     * java.beans.Introspector does, sorted by name
+     */
+    private Collection<PropertyModel> getReadableProperties(TypeMirror type) {
+        Map<String, PropertyModel> properties = new TreeMap<String, PropertyModel>();
+        if (type.getKind() != TypeKind.DECLARED) {
+            return properties.values();
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(element))) {
+            if (!method.getModifiers().contains(Modifier.PUBLIC)
+                    || method.getModifiers().contains(Modifier.STATIC)
+                    || !method.getParameters().isEmpty()) {
+                continue;
+            }
+            String methodName = method.getSimpleName().toString();
+            TypeMirror returnType = ((ExecutableType) processingEnv.getTypeUtils()
+                    .asMemberOf((DeclaredType) type, method)).getReturnType();
+            String name;
+            if (methodName.startsWith("is") && methodName.length() > 2
+                    && returnType.getKind() == TypeKind.BOOLEAN) {
+                name = decapitalize(methodName.substring(2));
+            } else if (methodName.startsWith("get") && methodName.length() > 3
+                    && returnType.getKind() != TypeKind.VOID) {
+                name = decapitalize(methodName.substring(3));
+                if (properties.containsKey(name)) {
+                    continue; // is getter takes precedence
+                }
+            } else {
+                continue;
+            }
+            if ("class".equals(name)) {
+                continue;
+            }
+            properties.put(name, new PropertyModel(name, methodName, returnType,
+                    findFieldIndex(element, name, returnType)));
+        }
+        return properties.values();
+    }
+
+    /**
+     * Counterpart of BeanProperty.getAnnotation for the field targeted @Index
+     */
+    private Index findFieldIndex(TypeElement clazz, String name, TypeMirror type) {
+        TypeElement c = clazz;
+        while (c != null) {
+            for (VariableElement field : ElementFilter.fieldsIn(c.getEnclosedElements())) {
+                if (field.getSimpleName().contentEquals(name)
+                        && processingEnv.getTypeUtils().isSameType(
+                                processingEnv.getTypeUtils().erasure(field.asType()),
+                                processingEnv.getTypeUtils().erasure(type))) {
+                    return field.getAnnotation(Index.class);
+                }
+            }
+            TypeMirror superclass = c.getSuperclass();
+            c = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return null;
+    }
+
+    private Index getClassIndex(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED
+                ? ((DeclaredType) type).asElement().getAnnotation(Index.class) : null;
+    }
+
+    /**
+     * Counterpart of BeanIndexer.getPropertyClass
+     */
+    private TypeMirror getPropertyClass(PropertyModel property) {
+        if (property.type.getKind() == TypeKind.ARRAY) {
+            return ((ArrayType) property.type).getComponentType();
+        }
+        if (!isCollectionOrArray(property.type)) {
+            return property.type;
+        }
+        List<? extends TypeMirror> typeArgs = ((DeclaredType) property.type).getTypeArguments();
+        if (typeArgs.isEmpty()) {
+            throw new UnsupportedBeanException(property.name
+                    + " is not a parametrized Collection property");
+        }
+        for (TypeMirror t : typeArgs) {
+            if (t.getKind() != TypeKind.DECLARED
+                    || !((DeclaredType) t).getTypeArguments().isEmpty()) {
+                throw new UnsupportedBeanException(property.name
+                        + " is not a parametrized Collection property");
+            }
+        }
+        return typeArgs.get(0);
+    }
+
+    private boolean isCollectionOrArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY || (type.getKind() == TypeKind.DECLARED
+                && processingEnv.getTypeUtils().isAssignable(
+                        processingEnv.getTypeUtils().erasure(type),
+                        processingEnv.getTypeUtils().erasure(getType("java.util.Collection"))));
+    }
+
+    private boolean isSortable(TypeMirror type) {
+        return type.getKind().isPrimitive() || processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type),
+                processingEnv.getTypeUtils().erasure(getType("java.lang.Comparable")));
+    }
+
+    private boolean isObservable(TypeElement bean) {
+        return hasListenerMethod(bean, "addPropertyChangeListener")
+                && hasListenerMethod(bean, "removePropertyChangeListener");
+    }
+
+    private boolean hasListenerMethod(TypeElement bean, String name) {
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(bean))) {
+            if (method.getSimpleName().contentEquals(name)
+                    && method.getModifiers().contains(Modifier.PUBLIC)
+                    && !method.getModifiers().contains(Modifier.STATIC)
+                    && method.getParameters().size() == 1
+                    && isType(method.getParameters().get(0).asType(),
+                            "java.beans.PropertyChangeListener")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeMirror getComparator(Index index) {
+        try {
+            index.comparator();
+            throw new IllegalStateException("Comparator class is expected to be mirrored");
+        } catch (MirroredTypeException e) {
+            return e.getTypeMirror();
+        }
+    }
+
+    private void checkInstantiable(TypeMirror comparator) {
+        TypeElement element = (TypeElement) ((DeclaredType) comparator).asElement();
+        checkAccessible(element);
+        if (element.getModifiers().contains(Modifier.ABSTRACT)
+                || (element.getNestingKind() == NestingKind.MEMBER
+                && !element.getModifiers().contains(Modifier.STATIC))) {
+            throw new UnsupportedBeanException(comparator + " cannot be instantiated");
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                return;
+            }
+        }
+        throw new UnsupportedBeanException(comparator + " has no public no-arg constructor");
+    }
+
+    private void checkAccessible(TypeElement type) {
+        Element e = type;
+        while (!(e instanceof PackageElement)) {
+            if (e.getModifiers().contains(Modifier.PRIVATE)) {
+                throw new UnsupportedBeanException(type.getQualifiedName() + " is not accessible");
+            }
+            e = e.getEnclosingElement();
+        }
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        return type.getKind() == TypeKind.DECLARED
+                && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().contentEquals(name);
+    }
+
+    private TypeMirror getType(String name) {
+        return processingEnv.getElementUtils().getTypeElement(name).asType();
+    }
+
+    private String erasure(TypeMirror type) {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static String decapitalize(String name) {
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(1))
+                && Character.isUpperCase(name.charAt(0))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static String toPath(List<PropertyModel> path) {
+        StringBuilder sb = new StringBuilder();
+        for (PropertyModel property : path) {
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            sb.append(property.name);
+        }
+        return sb.toString();
+    }
+
+    private static class PropertyModel {
+
+        private final String name;
+        private final String getter;
+        private final TypeMirror type;
+        private final Index index;
+
+        PropertyModel(String name, String getter, TypeMirror type, Index index) {
+            this.name = name;
+            this.getter = getter;
+            this.type = type;
+            this.index = index;
+        }
+    }
+
+    private static class IndexModel {
+
+        private final List<PropertyModel> path;
+        private final boolean sorted;
+        private final String comparator;
+        private final boolean encoded;
+        private String valueType;
+        private boolean derived;
+
+        IndexModel(List<PropertyModel> path, boolean sorted, String comparator, boolean encoded) {
+            this.path = path;
+            this.sorted = sorted;
+            this.comparator = comparator;
+            this.encoded = encoded;
+        }
+
+        String getName() {
+            return toPath(path);
+        }
+    }
+
+    private static class UnsupportedBeanException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedBeanException(String message) {
+            super(message);
+        }
+    }
+}
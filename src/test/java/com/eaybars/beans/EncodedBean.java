@@ -0,0 +1,24 @@
+package com.eaybars.beans;
+
+import com.eaybars.beans.index.Index;
+
+public class EncodedBean {
+
+    @Index(encoded = true)
+    private String category;
+    @Index(sorted = true)
+    private int number;
+
+    public EncodedBean(String category, int number) {
+        this.category = category;
+        this.number = number;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+}
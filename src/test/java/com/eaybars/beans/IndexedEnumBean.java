@@ -0,0 +1,36 @@
+package com.eaybars.beans;
+
+import com.eaybars.beans.index.Index;
+
+public class IndexedEnumBean {
+
+    public enum Color {
+
+        RED, GREEN, BLUE
+    }
+
+    @Index
+    private Color color;
+    @Index
+    private boolean active;
+    @Index(sorted = true)
+    private Color ordered;
+
+    public IndexedEnumBean(Color color, boolean active) {
+        this.color = color;
+        this.active = active;
+        this.ordered = color == null ? Color.RED : color;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public Color getOrdered() {
+        return ordered;
+    }
+}
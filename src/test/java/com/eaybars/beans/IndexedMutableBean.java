@@ -0,0 +1,54 @@
+package com.eaybars.beans;
+
+import com.eaybars.beans.index.Index;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+
+@Index
+public class IndexedMutableBean {
+
+    private String address;
+    @Index(sorted = true)
+    private int quantity;
+
+    private PropertyChangeSupport support;
+
+    public IndexedMutableBean(String address, int quantity) {
+        support = new PropertyChangeSupport(this);
+        this.address = address;
+        this.quantity = quantity;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        String old = this.address;
+        this.address = address;
+        support.firePropertyChange("address", old, address);
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        int old = this.quantity;
+        this.quantity = quantity;
+        support.firePropertyChange("quantity", old, quantity);
+    }
+
+    @Index(sorted = true)
+    public int doubleQuantity() {
+        return quantity * 2;
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        support.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        support.removePropertyChangeListener(listener);
+    }
+}
@@ -0,0 +1,122 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class BeanEvictionTest {
+
+    private BeanIndexer<IndexedMutableBean> indexer;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        for (int i = 0; i < 10; i++) {
+            indexer.add(new IndexedMutableBean("address" + i, i));
+        }
+    }
+
+    private IndexedMutableBean lookup(int quantity) {
+        return indexer.filter().having("quantity", quantity).singleResult();
+    }
+
+    @Test
+    public void lruTest() {
+        indexer.clear();
+        BeanEviction<IndexedMutableBean> eviction = indexer.enableEviction(10, BeanEviction.Policy.LRU);
+        for (int i = 0; i < 10; i++) {
+            indexer.add(new IndexedMutableBean("address" + i, i));
+        }
+        lookup(0);
+        indexer.add(new IndexedMutableBean("address10", 10));
+        assertEquals(10, indexer.size());
+        assertTrue(indexer.filter().having("quantity", 1).results().isEmpty());
+        assertFalse(indexer.getAllValuesForProperty("address").contains("address1"));
+        assertEquals(1, indexer.filter().having("quantity", 0).results().size());
+        assertEquals(1, eviction.getEvictionCount());
+
+        indexer.enableEviction(5, BeanEviction.Policy.LRU);
+        assertEquals(5, indexer.size());
+        indexer.clear();
+        indexer.add(new IndexedMutableBean("a", 1));
+        assertEquals(1, indexer.size());
+    }
+
+    @Test
+    public void monitoredSearchTest() {
+        indexer.clear();
+        indexer.enableEviction(10, BeanEviction.Policy.LRU);
+        indexer.enableMonitoring();
+        for (int i = 0; i < 10; i++) {
+            indexer.add(new IndexedMutableBean("address" + i, i));
+        }
+        // measuring a search step does not use its results
+        indexer.filter().having("quantity", 0);
+        indexer.standingQuery(f -> f.having("quantity", 0));
+        indexer.add(new IndexedMutableBean("address10", 10));
+        assertTrue(indexer.filter().having("quantity", 0).results().isEmpty());
+        assertEquals(1, indexer.filter().having("quantity", 1).results().size());
+    }
+
+    @Test
+    public void lfuTest() {
+        indexer.clear();
+        indexer.enableEviction(100, BeanEviction.Policy.LFU);
+        for (int i = 0; i < 100; i++) {
+            indexer.add(new IndexedMutableBean("hot" + i, i));
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                indexer.filter().having("quantity", i).results();
+            }
+            for (int i = 0; i < 20; i++) {// scan of beans used once
+                indexer.add(new IndexedMutableBean("cold", 1000 + round * 20 + i));
+            }
+        }
+        assertEquals(100, indexer.size());
+        int hot = indexer.filter().havingLower("quantity", 100, false).results().size();
+        assertTrue("Only " + hot + " frequently used beans are kept", hot >= 90);
+    }
+
+    @Test
+    public void lowestValueTest() {
+        BeanEviction<IndexedMutableBean> eviction = indexer.enableEviction(5, "quantity");
+        assertEquals(5, indexer.size());
+        assertEquals(5, indexer.min("quantity"));
+        indexer.add(new IndexedMutableBean("address1", 1));
+        assertEquals(5, indexer.min("quantity"));
+        indexer.add(new IndexedMutableBean("address20", 20));
+        assertEquals(6, indexer.min("quantity"));
+        assertEquals(7, eviction.getEvictionCount());
+        try {
+            indexer.enableEviction(5, "address");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void weakReferencesTest() {
+        // the policy would keep the beans of a weak indexer reachable
+        try {
+            indexer.clear();
+            indexer.enableEviction(5, BeanEviction.Policy.LRU);
+            indexer.enableWeakReferences();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        BeanIndexer<IndexedMutableBean> weak = BeanIndexer.beanIndexFrom(IndexedMutableBean.class)
+                .enableWeakReferences();
+        try {
+            weak.enableEviction(5, BeanEviction.Policy.LFU);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        assertNull(weak.getEviction());
+    }
+}
@@ -1,18 +1,27 @@
 package com.eaybars.beans.index;
 
+import com.eaybars.beans.EncodedBean;
 import com.eaybars.beans.IndexedBean1;
 import com.eaybars.beans.IndexedBean2;
+import com.eaybars.beans.IndexedMutableBean;
 import com.eaybars.beans.MutableBean;
 import com.eaybars.beans.ReadOrWriteOnlyBean;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
@@ -362,4 +371,409 @@ public class BeanIndexerTest {
         assertEquals(1, result.size());
         assertTrue(result.contains(new ReadOrWriteOnlyBean("a", 1)));//because of the reverse comparator
     }
+
+    @Test
+    public void lazyIndexTest() {
+        BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class,
+                CollectionFactory.Predefined.THREAD_UNSAFE.getFactory(), true);
+        indexer.addAll(b1);
+
+        assertEquals(b1.getAllIndexes(), indexer.getAllIndexes());
+        assertFalse(indexer.isIndexBuilt("name"));
+        assertFalse(indexer.isIndexBuilt("number"));
+
+        assertEquals(2, indexer.filter().having("name", "abc").results().size());
+        assertTrue(indexer.isIndexBuilt("name"));
+        assertFalse(indexer.isIndexBuilt("number"));
+
+        indexer.add(new IndexedBean1("abc", 9));
+        assertEquals(3, indexer.filter().having("name", "abc").results().size());
+        assertEquals(2, indexer.filter().havingGreater("number", 8, true).results().size());
+        assertTrue(indexer.isIndexBuilt("number"));
+    }
+
+    @Test
+    public void encodedIndexTest() {
+        BeanIndexer<EncodedBean> encoded = BeanIndexer.beanIndexFrom(EncodedBean.class);
+        for (int i = 0; i < 10; i++) {
+            encoded.add(new EncodedBean(new String("c" + i % 2), i));
+        }
+        assertTrue(encoded.getBuiltIndex("category") instanceof EncodedIndexMap<?>);
+        assertEquals(5, encoded.filter().having("category", "c1").results().size());
+        assertEquals(3, encoded.filter().having("category", "c0").and()
+                .havingLower("number", 5, true).results().size());
+        assertEquals(2, encoded.getBuiltIndex("category").size());
+
+        BeanIndexer<IndexedBean1> indexer = new BeanIndexer<IndexedBean1>(IndexedBean1.class)
+                .addEncodedIndex("name");
+        for (int i = 0; i < 100; i++) {
+            indexer.add(new IndexedBean1("n" + (i % 3), i));
+        }
+        EncodedIndexMap<?> map = (EncodedIndexMap<?>) indexer.getBuiltIndex("name");
+        assertEquals(3, map.size());
+        int code = map.codeOf("n1");
+        assertEquals("n1", map.valueOf(code));
+        assertEquals(33, map.postingOf(code).size());
+        assertSame(map.valueOf(code), map.intern(new String("n1")));
+        assertEquals("n4", map.intern("n4"));
+        assertEquals(new HashSet<Object>(Arrays.asList("n0", "n1", "n2")),
+                indexer.getAllValuesForProperty("name"));
+
+        indexer.removeAll(indexer.filter().having("name", "n1").results());
+        assertEquals(-1, map.codeOf("n1"));
+        indexer.add(new IndexedBean1("n3", 0));
+        assertEquals(code, map.codeOf("n3"));
+        assertEquals(1, indexer.filter().having("name", "n3").results().size());
+        assertEquals(34, indexer.filter().notHaving("name", "n0").results().size());
+    }
+
+    @Test
+    public void functionIndexTest() {
+        b1.addIndex("upperName", b -> b.getName().toUpperCase(), false)
+                .addIndex("half", b -> b.getNumber() / 2, true);
+        assertEquals(2, b1.filter().having("upperName", "ABC").results().size());
+        assertEquals(3, b1.filter().havingGreater("half", 1, true).results().size());
+
+        b1.add(new IndexedBean1("abc", 9));
+        assertEquals(3, b1.filter().having("upperName", "ABC").results().size());
+        b1.remove(new IndexedBean1("abc", 1));
+        assertEquals(2, b1.filter().having("upperName", "ABC").results().size());
+        assertEquals(2, b1.filter().havingGreater("half", 4, true).results().size());
+
+        try {
+            b1.addIndex("name", b -> b.getName(), false);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void derivedIndexTest() {
+        BeanIndexer<IndexedMutableBean> indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        indexer.addIndex("label", b -> b.getAddress() + b.getQuantity(), false);
+        IndexedMutableBean bean = new IndexedMutableBean("a", 2);
+        indexer.add(bean);
+        indexer.add(new IndexedMutableBean("b", 3));
+        assertEquals(1, indexer.filter().having("doubleQuantity", 4).results().size());
+
+        bean.setQuantity(5);
+        assertTrue(indexer.filter().having("doubleQuantity", 4).results().isEmpty());
+        assertEquals(Collections.singleton(bean), indexer.filter().having("doubleQuantity", 10).results());
+        assertEquals(Collections.singleton(bean), indexer.filter().having("label", "a5").results());
+
+        bean.setAddress("c");
+        assertTrue(indexer.filter().having("label", "a5").results().isEmpty());
+        assertEquals(Collections.singleton(bean), indexer.filter().having("label", "c5").results());
+
+        indexer.remove(bean);
+        assertTrue(indexer.filter().having("label", "c5").results().isEmpty());
+        assertTrue(indexer.filter().having("doubleQuantity", 10).results().isEmpty());
+    }
+
+    @Test
+    public void predicateScanTest() {
+        assertEquals(2, b1.filter().matching("name", v -> ((String) v).startsWith("x"))
+                .results().size());
+        assertEquals(1, b1.filter().having("name", "abc").and()
+                .where(b -> b.getNumber() > 1).results().size());
+        assertEquals(3, b1.filter().having("number", 8).or()
+                .matching("name", "xyz"::equals).results().size());
+
+        BeanIndexer<MutableBean> indexer = new BeanIndexer<MutableBean>(MutableBean.class)
+                .addSortedIndex("quantity", null);
+        for (int i = 0; i < 10000; i++) {
+            MutableBean bean = new MutableBean();
+            bean.setAddress("a" + (i % 7));
+            bean.setQuantity(i);
+            indexer.add(bean);
+        }
+        assertEquals(1429, indexer.filter().matching("address", "a0"::equals).results().size());
+        assertEquals(714, indexer.filter().havingGreater("quantity", 5000, true).and()
+                .matching("address", "a0"::equals).results().size());
+        assertEquals(5000, indexer.filter().where(b -> b.getQuantity() % 2 == 0).results().size());
+    }
+
+    @Test
+    public void streamTest() {
+        assertEquals(4, b1.filter().havingGreater("number", 2, true).or()
+                .having("name", "abc").stream().count());
+        assertEquals(Arrays.asList(2, 2, 8), b1.stream("number", 2, true, null, false)
+                .map(IndexedBean1::getNumber).collect(Collectors.toList()));
+        assertEquals(4, b1.stream("number", null, false, 8, false).count());
+        try {
+            b1.stream("name", null, false, null, false);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+
+        BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        for (int i = 0; i < 10000; i++) {
+            indexer.add(new IndexedBean1("n" + (i % 10), i));
+        }
+        assertEquals(10000, indexer.parallelStream().count());
+        assertEquals(1000, indexer.filter().having("name", "n3").parallelStream()
+                .filter(b -> b.getNumber() % 10 == 3).count());
+
+        Spliterator<IndexedBean1> range = indexer.stream("number", 1000, true, 2000, false).spliterator();
+        assertEquals(1000, range.getExactSizeIfKnown());
+        Spliterator<IndexedBean1> prefix = range.trySplit();
+        assertEquals(500, prefix.estimateSize());
+        assertEquals(500, range.estimateSize());
+        assertEquals(1499500L, (long) indexer.parallelStream("number", 1000, true, 2000, false)
+                .mapToLong(IndexedBean1::getNumber).sum());
+    }
+
+    @Test
+    public void aggregationTest() {
+        assertEquals(1, b1.min("number"));
+        assertEquals(8, b1.max("number"));
+        assertEquals(2, b1.first("number", 2).size());
+        assertEquals(1, b1.first("number", 2).get(1).getNumber());
+        assertEquals(Arrays.asList(new IndexedBean1("qwerty", 8)), b1.last("number", 1));
+        assertEquals(14, b1.sum("number"), 0);
+        assertEquals(2.8, b1.average("number"), 1e-9);
+        assertEquals(1, b1.percentile("number", 0));
+        assertEquals(2, b1.percentile("number", 0.5));
+        assertEquals(8, b1.percentile("number", 1));
+
+        b1.add(new IndexedBean1("abc", 10));
+        assertEquals(24, b1.sum("number"), 0);
+        assertEquals(8, b1.percentile("number", 0.8));
+        b1.remove(new IndexedBean1("abc", 10));
+        assertEquals(14, b1.sum("number"), 0);
+
+        BeanIndexer<IndexedBean1>.Search search = b1.filter().having("name", "xyz");
+        assertEquals(1, search.min("number"));
+        assertEquals(2, search.max("number"));
+        assertEquals(3, search.sum("number"), 0);
+        assertEquals(1.5, search.average("number"), 1e-9);
+        assertEquals(1, search.percentile("number", 0.5));
+        assertEquals(Arrays.asList(new IndexedBean1("xyz", 2)), search.last("number", 1));
+
+        assertNull(b1.filter().having("name", "none").max("number"));
+        assertTrue(Double.isNaN(b1.filter().having("name", "none").average("number")));
+        try {
+            b1.percentile("number", 2);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            b1.min("name");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void runningTotalsTest() {
+        BeanIndexer<IndexedMutableBean> indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        IndexedMutableBean bean = new IndexedMutableBean("a", 2);
+        indexer.add(bean);
+        indexer.add(new IndexedMutableBean("b", 4));
+        assertEquals(6, indexer.sum("quantity"), 0);
+        assertEquals(12, indexer.sum("doubleQuantity"), 0);
+
+        bean.setQuantity(10);
+        assertEquals(14, indexer.sum("quantity"), 0);
+        assertEquals(28, indexer.sum("doubleQuantity"), 0);
+        assertEquals(7, indexer.average("quantity"), 0);
+        assertEquals(10, indexer.percentile("quantity", 1));
+
+        indexer.add(bean);
+        assertEquals(14, indexer.sum("quantity"), 0);
+        indexer.remove(bean);
+        indexer.remove(bean);
+        assertEquals(4, indexer.sum("quantity"), 0);
+        assertEquals(4, indexer.percentile("quantity", 0.5));
+
+        indexer.removeIndex("quantity").addSortedIndex("quantity", null);
+        assertEquals(4, indexer.sum("quantity"), 0);
+        indexer.clear();
+        assertEquals(0, indexer.sum("quantity"), 0);
+        assertTrue(Double.isNaN(indexer.average("quantity")));
+        assertNull(indexer.percentile("quantity", 0.5));
+    }
+
+    @Test
+    public void facetTest() {
+        Map<String, Map<Object, Integer>> facets = b1.filter().havingLower("number", 2, true)
+                .facet("name", "number");
+        Map<Object, Integer> names = new HashMap<Object, Integer>();
+        names.put("abc", 2);
+        names.put("xyz", 2);
+        assertEquals(names, facets.get("name"));
+        assertEquals(Arrays.asList((Object) 1, 2), new ArrayList<Object>(facets.get("number").keySet()));
+        assertEquals((Integer) 2, facets.get("number").get(1));
+
+        BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        for (int i = 0; i < 10000; i++) {
+            indexer.add(new IndexedBean1("n" + (i % 10), i));
+        }
+        facets = indexer.filter().havingGreater("number", 5000, true).facet("name", "number");
+        assertEquals(10, facets.get("name").size());
+        assertEquals((Integer) 500, facets.get("name").get("n1"));
+        assertEquals(5000, facets.get("number").size());
+        assertEquals((Integer) 5000, facets.get("number").keySet().iterator().next());
+        try {
+            b1.filter().having("name", "abc").facet("none");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void lazyParallelBackfillTest() {
+        BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class,
+                CollectionFactory.Predefined.CONCURRENT.getFactory(), true);
+        for (int i = 0; i < 10000; i++) {
+            indexer.add(new IndexedBean1("n" + (i % 10), i));
+        }
+        assertEquals(1000, indexer.filter().having("name", "n3").results().size());
+        assertEquals(100, indexer.filter().havingGreater("number", 9900, true).results().size());
+    }
+
+    @Test
+    public void concurrentBackfillTest() throws InterruptedException {
+        final BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class,
+                CollectionFactory.Predefined.CONCURRENT.getFactory(), true);
+        final List<IndexedBean1> beans = new ArrayList<IndexedBean1>();
+        for (int i = 0; i < 20000; i++) {
+            IndexedBean1 bean = new IndexedBean1("n" + (i % 10), i);
+            beans.add(bean);
+            indexer.add(bean);
+        }
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < beans.size(); i += 2) {
+                indexer.remove(beans.get(i));
+                indexer.add(new IndexedBean1("n" + (i % 10), 20000 + i));
+            }
+        });
+        writer.start();
+        // builds the lazy indexes while beans are removed and added
+        indexer.filter().having("name", "n1");
+        indexer.filter().havingGreater("number", 0, true);
+        writer.join();
+
+        Set<IndexedBean1> expected = new HashSet<IndexedBean1>(indexer);
+        assertEquals(20000, expected.size());
+        assertEquals(expected, indexer.filter().havingGreater("number", 0, true).results());
+        Set<IndexedBean1> names = new HashSet<IndexedBean1>();
+        for (int i = 0; i < 10; i++) {
+            names.addAll(indexer.filter().having("name", "n" + i).results());
+        }
+        assertEquals(expected, names);
+        double sum = 0;
+        for (IndexedBean1 bean : expected) {
+            sum += bean.getNumber();
+        }
+        assertEquals(sum, indexer.sum("number"), 0);
+    }
+
+    @Test
+    public void idleIndexTest() throws InterruptedException {
+        BeanIndexer<IndexedBean1> indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class,
+                CollectionFactory.Predefined.THREAD_UNSAFE.getFactory(), true)
+                .setIdleIndexTimeout(20, TimeUnit.MILLISECONDS);
+        indexer.addAll(b1);
+
+        assertEquals(2, indexer.filter().having("name", "abc").results().size());
+        assertTrue(indexer.isIndexBuilt("name"));
+
+        Thread.sleep(50);
+        indexer.add(new IndexedBean1("abc", 9));
+        assertFalse(indexer.isIndexBuilt("name"));
+
+        assertEquals(3, indexer.filter().having("name", "abc").results().size());
+        assertTrue(indexer.isIndexBuilt("name"));
+    }
+
+    private static void collect(BeanIndexer<?> indexer, String property, int keys)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && indexer.getAllValuesForProperty(property).size() > keys; i++) {
+            System.gc();
+            Thread.sleep(10);
+            indexer.expungeCollected();
+        }
+    }
+
+    @Test
+    public void weakReferencesTest() throws InterruptedException {
+        BeanIndexer<IndexedMutableBean> indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class)
+                .enableWeakReferences();
+        List<IndexedMutableBean> kept = new ArrayList<IndexedMutableBean>();
+        for (int i = 0; i < 1000; i++) {
+            IndexedMutableBean bean = new IndexedMutableBean("address" + i, i);
+            indexer.add(bean);
+            if (i % 2 == 0) {
+                kept.add(bean);
+            }
+        }
+        collect(indexer, "quantity", 500);
+        assertEquals(500, indexer.size());
+        assertEquals(500, indexer.getAllValuesForProperty("quantity").size());
+        assertEquals(500, indexer.getAllValuesForProperty("address").size());
+        assertEquals(500, indexer.getAllValuesForProperty("doubleQuantity").size());
+        assertEquals(250, indexer.filter().havingLower("quantity", 500, false).results().size());
+
+        kept.get(0).setQuantity(5000);
+        indexer.remove(kept.get(1));
+        kept.subList(0, 2).clear();
+        collect(indexer, "address", 498);
+        assertEquals(498, indexer.getAllValuesForProperty("doubleQuantity").size());
+        assertFalse(indexer.getAllValuesForProperty("quantity").contains(5000));
+        assertFalse(indexer.getAllValuesForProperty("doubleQuantity").contains(10000));
+        assertEquals(498, indexer.size());
+
+        try {
+            b1.enableWeakReferences();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void expiryTest() throws InterruptedException {
+        BeanIndexer<IndexedMutableBean> indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        for (int i = 0; i < 10; i++) {
+            indexer.add(new IndexedMutableBean("address" + i, i));
+        }
+        indexer.expireAfter(30, TimeUnit.MILLISECONDS);
+        assertEquals(10, indexer.filter().havingGreater("quantity", 0, true).results().size());
+        Thread.sleep(60);
+        IndexedMutableBean added = new IndexedMutableBean("added", 100);
+        indexer.add(added);
+        assertEquals(1, indexer.size());
+        assertEquals(1, indexer.getAllValuesForProperty("address").size());
+        assertEquals(1, indexer.getAllValuesForProperty("doubleQuantity").size());
+        indexer.remove(added);
+        indexer.add(added);
+        Thread.sleep(60);
+        assertEquals(1, indexer.expire());
+        assertTrue(indexer.isEmpty());
+
+        // quantities as milliseconds since the epoch have all passed
+        indexer.add(added);
+        indexer.expireAt("quantity");
+        assertTrue(indexer.filter().having("quantity", 100).results().isEmpty());
+        assertEquals(0, indexer.size());
+
+        // the timer wheel would keep the beans of a weak indexer reachable
+        try {
+            indexer.enableWeakReferences();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        BeanIndexer<IndexedMutableBean> weak = BeanIndexer.beanIndexFrom(IndexedMutableBean.class)
+                .enableWeakReferences();
+        try {
+            weak.expireAfter(1, TimeUnit.SECONDS);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            weak.expireAt("quantity");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
 }
@@ -0,0 +1,105 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import com.eaybars.beans.MutableBean;
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class BeanJoinTest {
+
+    private BeanIndexer<IndexedBean1> b1;
+
+    @Before
+    public void setUp() {
+        b1 = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        for (int i = 0; i < 1000; i++) {
+            b1.add(new IndexedBean1("n" + (i % 10), i % 50));
+        }
+    }
+
+    private static BeanIndexer<MutableBean> mutableBeans() {
+        BeanIndexer<MutableBean> indexer = new BeanIndexer<MutableBean>(MutableBean.class);
+        for (int i = 0; i < 100; i++) {
+            MutableBean bean = new MutableBean();
+            bean.setAddress("n" + (i % 20));
+            bean.setQuantity(i % 60);
+            indexer.add(bean);
+        }
+        return indexer;
+    }
+
+    private static Set<Map.Entry<IndexedBean1, MutableBean>> nestedLoop(Set<IndexedBean1> left,
+            BeanIndexer<MutableBean> right) {
+        Set<Map.Entry<IndexedBean1, MutableBean>> pairs = new HashSet<Map.Entry<IndexedBean1, MutableBean>>();
+        for (IndexedBean1 l : left) {
+            for (MutableBean r : right) {
+                if (l.getNumber() == r.getQuantity()) {
+                    pairs.add(new AbstractMap.SimpleImmutableEntry<IndexedBean1, MutableBean>(l, r));
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static void assertJoin(Set<Map.Entry<IndexedBean1, MutableBean>> expected,
+            BeanJoin<IndexedBean1, MutableBean> join) {
+        assertEquals(expected.size(), join.stream().count());
+        assertEquals(expected, join.stream().collect(Collectors.toSet()));
+        assertEquals(expected, join.parallelStream().collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void mergeJoinTest() {
+        BeanIndexer<MutableBean> right = mutableBeans().addSortedIndex("quantity", null);
+        BeanJoin<IndexedBean1, MutableBean> join = new BeanJoin<IndexedBean1, MutableBean>(
+                b1, "number", right, "quantity");
+        assertEquals(BeanJoin.Strategy.MERGE, join.getStrategy());
+        assertJoin(nestedLoop(b1, right), join);
+    }
+
+    @Test
+    public void indexNestedLoopJoinTest() {
+        BeanIndexer<MutableBean> right = mutableBeans().addUnsortedIndex("quantity");
+        BeanJoin<IndexedBean1, MutableBean> join = new BeanJoin<IndexedBean1, MutableBean>(
+                b1, "number", right, "quantity");
+        assertEquals(BeanJoin.Strategy.INDEX_NESTED_LOOP, join.getStrategy());
+        assertJoin(nestedLoop(b1, right), join);
+
+        right = mutableBeans();
+        join = new BeanJoin<IndexedBean1, MutableBean>(b1, "number", right, "quantity");
+        assertEquals(BeanJoin.Strategy.INDEX_NESTED_LOOP, join.getStrategy());
+        assertJoin(nestedLoop(b1, right), join);
+    }
+
+    @Test
+    public void hashJoinTest() {
+        BeanIndexer<MutableBean> left = mutableBeans();
+        BeanIndexer<MutableBean> right = mutableBeans();
+        BeanJoin<MutableBean, MutableBean> join = new BeanJoin<MutableBean, MutableBean>(
+                left, "address", right, "address");
+        assertEquals(BeanJoin.Strategy.HASH, join.getStrategy());
+        assertEquals(500, join.stream().count());
+        assertTrue(join.parallelStream().allMatch(
+                p -> p.getKey().getAddress().equals(p.getValue().getAddress())));
+    }
+
+    @Test
+    public void searchJoinTest() {
+        BeanIndexer<MutableBean> right = mutableBeans().addSortedIndex("quantity", null);
+        BeanIndexer<IndexedBean1>.Search search = b1.filter().having("name", "n3");
+        BeanJoin<IndexedBean1, MutableBean> join = new BeanJoin<IndexedBean1, MutableBean>(
+                search, "number", right, "quantity");
+        assertEquals(BeanJoin.Strategy.MERGE, join.getStrategy());
+        assertJoin(nestedLoop(search.results(), right), join);
+    }
+}
@@ -0,0 +1,111 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedEnumBean;
+import com.eaybars.beans.IndexedEnumBean.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class BitSetIndexTest {
+
+    private BeanIndexer<IndexedEnumBean> indexer;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedEnumBean.class);
+        for (int i = 0; i < 30; i++) {
+            indexer.add(new IndexedEnumBean(i % 10 == 0 ? null : Color.values()[i % 3], i % 2 == 0));
+        }
+    }
+
+    @Test
+    public void indexTypeTest() {
+        assertTrue(indexer.getBuiltIndex("color") instanceof BitSetIndexMap<?>);
+        assertTrue(indexer.getBuiltIndex("active") instanceof BitSetIndexMap<?>);
+        assertFalse(indexer.getBuiltIndex("ordered") instanceof BitSetIndexMap<?>);
+
+        BeanIndexer<IndexedEnumBean> concurrent = BeanIndexer.beanIndexFrom(IndexedEnumBean.class,
+                CollectionFactory.Predefined.CONCURRENT.getFactory());
+        assertFalse(concurrent.getBuiltIndex("color") instanceof BitSetIndexMap<?>);
+    }
+
+    @Test
+    public void searchTest() {
+        Set<IndexedEnumBean> red = indexer.filter().having("color", Color.RED).results();
+        assertEquals(9, red.size());
+        for (IndexedEnumBean bean : red) {
+            assertEquals(Color.RED, bean.getColor());
+        }
+        assertEquals(3, indexer.filter().having("color", null).results().size());
+        assertEquals(15, indexer.filter().having("active", true).results().size());
+        assertEquals(new HashSet<Object>(Arrays.asList(null, Color.RED, Color.GREEN, Color.BLUE)),
+                indexer.getAllValuesForProperty("color"));
+    }
+
+    @Test
+    public void bitwiseTest() {
+        Set<IndexedEnumBean> notRed = indexer.filter().notHaving("color", Color.RED).results();
+        assertEquals(21, notRed.size());
+        assertEquals(18, indexer.filter().in("color", EnumSet.of(Color.GREEN, Color.BLUE)).results().size());
+        assertEquals(12, indexer.filter().notIn("color", EnumSet.of(Color.GREEN, Color.BLUE)).results().size());
+        assertEquals(15, indexer.filter().notHaving("active", true).results().size());
+
+        Set<IndexedEnumBean> result = indexer.filter().notHaving("color", Color.RED).and()
+                .having("active", true).and().notIn("color", new HashSet<Object>(Arrays.asList((Object) null)))
+                .results();
+        for (IndexedEnumBean bean : result) {
+            assertTrue(bean.isActive());
+            assertNotNull(bean.getColor());
+            assertNotSame(Color.RED, bean.getColor());
+        }
+        assertEquals(indexer.filter().having("active", true).and().in("color",
+                EnumSet.of(Color.GREEN, Color.BLUE)).results(), result);
+    }
+
+    @Test
+    public void facetTest() {
+        BeanIndexer<IndexedEnumBean>.Search search = indexer.filter().having("active", true);
+        Map<String, Map<Object, Integer>> facets = search.facet("color", "active", "ordered");
+        assertEquals(Arrays.asList("color", "active", "ordered"), new ArrayList<String>(facets.keySet()));
+        Map<Object, Integer> colors = new HashMap<Object, Integer>();
+        for (IndexedEnumBean bean : search.results()) {
+            Integer count = colors.get(bean.getColor());
+            colors.put(bean.getColor(), count == null ? 1 : count + 1);
+        }
+        assertEquals(colors, facets.get("color"));
+        assertEquals(Collections.singletonMap((Object) true, 15), facets.get("active"));
+        assertEquals(Arrays.asList((Object) Color.RED, Color.GREEN, Color.BLUE),
+                new ArrayList<Object>(facets.get("ordered").keySet()));
+
+        facets = indexer.filter().notHaving("color", null).facet("active");
+        assertEquals((Integer) 12, facets.get("active").get(true));
+        assertEquals((Integer) 15, facets.get("active").get(false));
+    }
+
+    @Test
+    public void removeTest() {
+        IndexedEnumBean bean = indexer.filter().having("color", Color.BLUE).results().iterator().next();
+        indexer.remove(bean);
+        assertFalse(indexer.filter().having("color", Color.BLUE).results().contains(bean));
+        assertFalse(indexer.filter().notHaving("color", Color.RED).results().contains(bean));
+        assertEquals(29, indexer.filter().notIn("color", new HashSet<Object>()).results().size());
+
+        indexer.clear();
+        assertTrue(indexer.getAllValuesForProperty("color").isEmpty());
+        indexer.add(new IndexedEnumBean(Color.RED, false));
+        assertEquals(1, indexer.filter().having("color", Color.RED).and().having("active", false)
+                .results().size());
+    }
+}
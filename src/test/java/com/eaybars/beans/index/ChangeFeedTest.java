@@ -0,0 +1,135 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class ChangeFeedTest {
+
+    private BeanIndexer<IndexedMutableBean> indexer;
+    private ChangeFeed<IndexedMutableBean> feed;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        feed = indexer.enableChangeFeed(16);
+    }
+
+    private static Map<String, ChangeFeed.Event<IndexedMutableBean>> byIndex(
+            List<ChangeFeed.Event<IndexedMutableBean>> events) {
+        Map<String, ChangeFeed.Event<IndexedMutableBean>> map = new HashMap<String, ChangeFeed.Event<IndexedMutableBean>>();
+        for (ChangeFeed.Event<IndexedMutableBean> event : events) {
+            map.put(event.getIndex(), event);
+        }
+        return map;
+    }
+
+    @Test
+    public void changeFeedTest() {
+        ChangeFeed<IndexedMutableBean>.Subscription subscription = feed.subscribe();
+        assertTrue(subscription.poll(100).isEmpty());
+
+        IndexedMutableBean bean = new IndexedMutableBean("a", 1);
+        indexer.add(bean);
+        List<ChangeFeed.Event<IndexedMutableBean>> events = subscription.poll(100);
+        assertEquals(3, events.size());
+        Map<String, ChangeFeed.Event<IndexedMutableBean>> map = byIndex(events);
+        assertEquals(ChangeFeed.Operation.ADD, map.get("quantity").getOperation());
+        assertNull(map.get("quantity").getOldKey());
+        assertEquals(1, map.get("quantity").getNewKey());
+        assertEquals(2, map.get("doubleQuantity").getNewKey());
+        assertEquals("a", map.get("address").getNewKey());
+        assertSame(bean, map.get("address").getBean());
+
+        bean.setQuantity(5);
+        events = subscription.poll(1);
+        assertEquals(1, events.size());
+        assertEquals(ChangeFeed.Operation.UPDATE, events.get(0).getOperation());
+        assertEquals("quantity", events.get(0).getIndex());
+        assertEquals(1, events.get(0).getOldKey());
+        assertEquals(5, events.get(0).getNewKey());
+        events = subscription.poll(100);
+        assertEquals(1, events.size());
+        assertEquals("doubleQuantity", events.get(0).getIndex());
+        assertEquals(2, events.get(0).getOldKey());
+        assertEquals(10, events.get(0).getNewKey());
+
+        indexer.remove(bean);
+        map = byIndex(subscription.poll(100));
+        assertEquals(3, map.size());
+        assertEquals(ChangeFeed.Operation.REMOVE, map.get("quantity").getOperation());
+        assertEquals(5, map.get("quantity").getOldKey());
+        assertNull(map.get("quantity").getNewKey());
+
+        indexer.clear();
+        events = subscription.poll(100);
+        assertEquals(1, events.size());
+        assertEquals(ChangeFeed.Operation.CLEAR, events.get(0).getOperation());
+        assertEquals(0, subscription.getLag());
+        assertEquals(0, subscription.getMissed());
+    }
+
+    @Test
+    public void overrunTest() {
+        ChangeFeed<IndexedMutableBean>.Subscription slow = feed.subscribe();
+        for (int i = 0; i < 10; i++) {
+            indexer.add(new IndexedMutableBean("a" + i, i));
+        }
+        ChangeFeed<IndexedMutableBean>.Subscription late = feed.subscribe();
+        assertEquals(30, slow.getLag());
+        List<ChangeFeed.Event<IndexedMutableBean>> events = slow.poll(100);
+        assertEquals(16, events.size());
+        assertEquals(14, slow.getMissed());
+        assertEquals(14, events.get(0).getSequence());
+        assertEquals(29, events.get(15).getSequence());
+        assertTrue(late.poll(100).isEmpty());
+
+        indexer.disableChangeFeed();
+        indexer.add(new IndexedMutableBean("b", 100));
+        assertTrue(slow.poll(100).isEmpty());
+    }
+
+    @Test
+    public void concurrentTest() throws Exception {
+        final BeanIndexer<IndexedMutableBean> concurrent = BeanIndexer.beanIndexFrom(
+                IndexedMutableBean.class, CollectionFactory.Predefined.CONCURRENT.getFactory());
+        ChangeFeed<IndexedMutableBean> concurrentFeed = concurrent.enableChangeFeed(1 << 16);
+        ChangeFeed<IndexedMutableBean>.Subscription subscription = concurrentFeed.subscribe();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        concurrent.add(new IndexedMutableBean("a" + (offset + i), offset + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        int polled = 0;
+        long previous = -1;
+        while (polled < 12000) {
+            for (ChangeFeed.Event<IndexedMutableBean> event : subscription.poll(1000)) {
+                assertEquals(previous + 1, event.getSequence());
+                previous = event.getSequence();
+                polled++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, subscription.getMissed());
+        assertTrue(subscription.poll(100).isEmpty());
+    }
+}
@@ -0,0 +1,149 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class ColumnStoreTest {
+
+    private BeanIndexer<IndexedMutableBean> indexer;
+    private List<IndexedMutableBean> beans;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        beans = new ArrayList<IndexedMutableBean>();
+        for (int i = 0; i < 50; i++) {
+            IndexedMutableBean bean = new IndexedMutableBean("address" + i % 5, i);
+            beans.add(bean);
+            indexer.add(bean);
+        }
+    }
+
+    @Test
+    public void scanTest() {
+        ColumnStore<IndexedMutableBean> store = indexer.enableColumns("quantity", "doubleQuantity");
+        assertSame(store, indexer.getColumns());
+        assertEquals(Arrays.asList("quantity", "doubleQuantity"), store.getProperties());
+        assertEquals(50, store.size());
+        assertEquals(50, store.count("quantity"));
+        assertEquals(indexer.sum("quantity"), store.sum("quantity"), 0);
+        assertEquals(indexer.average("quantity"), store.average("quantity"), 0);
+        assertEquals(2 * indexer.sum("quantity"), store.sum("doubleQuantity"), 0);
+        assertEquals(0, store.min("quantity"), 0);
+        assertEquals(49, store.max("quantity"), 0);
+        assertEquals(11, store.count("quantity", 10, 20));
+        assertEquals(indexer.filter().havingGreater("quantity", 10, true).and()
+                .havingLower("quantity", 20, true).results(), store.between("quantity", 10, 20));
+        assertEquals(25, store.matching("quantity", v -> v % 2 == 0).size());
+        assertEquals(14, store.getValue(beans.get(7), "doubleQuantity"), 0);
+
+        indexer.enableColumns("quantity").getProperties();
+        try {
+            indexer.getColumns().sum("doubleQuantity");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            indexer.enableColumns("address");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        indexer.disableColumns();
+        assertNull(indexer.getColumns());
+    }
+
+    @Test
+    public void maintenanceTest() {
+        ColumnStore<IndexedMutableBean> store = indexer.enableColumns("quantity", "doubleQuantity");
+        IndexedMutableBean bean = beans.get(3);
+        bean.setQuantity(100);
+        assertEquals(100, store.getValue(bean, "quantity"), 0);
+        assertEquals(200, store.getValue(bean, "doubleQuantity"), 0);
+        assertEquals(100, store.max("quantity"), 0);
+
+        indexer.remove(beans.get(0));
+        indexer.remove(beans.get(49));
+        assertEquals(48, store.size());
+        assertTrue(Double.isNaN(store.getValue(beans.get(0), "quantity")));
+        assertEquals(1, store.min("quantity"), 0);
+        assertEquals(indexer.sum("quantity"), store.sum("quantity"), 0);
+
+        indexer.add(new IndexedMutableBean("address", 1000));
+        assertEquals(49, store.size());
+        assertEquals(1000, store.max("quantity"), 0);
+        assertEquals(indexer.sum("quantity"), store.sum("quantity"), 0);
+
+        indexer.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.sum("quantity"), 0);
+        assertTrue(Double.isNaN(store.min("quantity")));
+        assertTrue(store.between("quantity", 0, 1000).isEmpty());
+    }
+
+    @Test
+    public void searchTest() {
+        indexer.addIndex("half", b -> b.getQuantity() / 2.0, false);
+        Set<IndexedMutableBean> read = indexer.filter().where("half", v -> v >= 10 && v < 12).results();
+        assertEquals(4, read.size());
+        assertEquals(10, indexer.filter().having("address", "address1").and()
+                .where("quantity", v -> v > 0).results().size());
+
+        indexer.enableColumns("quantity", "half");
+        assertEquals(read, indexer.filter().where("half", v -> v >= 10 && v < 12).results());
+        assertEquals(indexer.filter().having("address", "address1").results(),
+                indexer.filter().having("address", "address1").and()
+                .where("quantity", v -> v > 0).results());
+        assertEquals(11,
+                indexer.filter().having("address", "address1").or()
+                .where("half", v -> v < 1).results().size());
+
+        // aggregations of an unsorted property read its column
+        assertEquals(612.5, indexer.sum("half"), 0);
+        assertEquals(12.25, indexer.average("half"), 0);
+        assertEquals(0.0, indexer.min("half"));
+        assertEquals(24.5, indexer.max("half"));
+        BeanIndexer<IndexedMutableBean>.Search search = indexer.filter().having("address", "address1");
+        assertEquals(0.5, search.min("half"));
+        assertEquals(23.0, search.max("half"));
+        assertEquals(117.5, search.sum("half"), 0);
+        assertEquals(search.sum("quantity"), 2 * search.sum("half"), 0);
+        assertEquals(23.5, search.average("quantity"), 0);
+        // sorted indexes still answer the aggregations, of searches as well
+        assertEquals(0, indexer.min("quantity"));
+        assertEquals(1, search.min("quantity"));
+    }
+
+    @Test
+    public void nonNumericValueTest() {
+        indexer.addIndex("mixed", b -> b.getQuantity() < 100 ? (Object) b.getQuantity() : "many", false);
+        ColumnStore<IndexedMutableBean> store = indexer.enableColumns("quantity", "mixed");
+
+        // a value which is not a number does not fail the change
+        IndexedMutableBean bean = new IndexedMutableBean("address", 1000);
+        assertTrue(indexer.add(bean));
+        assertTrue(indexer.filter().having("mixed", "many").results().contains(bean));
+        assertTrue(Double.isNaN(store.getValue(bean, "mixed")));
+        assertEquals(1000, store.getValue(bean, "quantity"), 0);
+
+        beans.get(3).setQuantity(500);
+        assertTrue(indexer.filter().having("quantity", 500).results().contains(beans.get(3)));
+        assertTrue(Double.isNaN(store.getValue(beans.get(3), "mixed")));
+        assertEquals(49, store.count("mixed"));
+
+        try {
+            indexer.enableColumns("mixed");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
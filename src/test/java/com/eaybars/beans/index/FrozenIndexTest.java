@@ -0,0 +1,153 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedEnumBean;
+import com.eaybars.beans.IndexedEnumBean.Color;
+import com.eaybars.beans.IndexedMutableBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class FrozenIndexTest {
+
+    private BeanIndexer<IndexedMutableBean> indexer;
+    private List<IndexedMutableBean> beans;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        beans = new ArrayList<IndexedMutableBean>();
+        for (int i = 0; i < 100; i++) {
+            IndexedMutableBean bean = new IndexedMutableBean(i % 7 == 0 ? null : "address" + i % 5, i % 20);
+            beans.add(bean);
+            indexer.add(bean);
+        }
+    }
+
+    @Test
+    public void searchTest() {
+        Set<IndexedMutableBean> having = indexer.filter().having("address", "address1").results();
+        Set<IndexedMutableBean> nulls = indexer.filter().having("address", null).results();
+        Set<IndexedMutableBean> range = indexer.filter().havingGreater("quantity", 5, true).and()
+                .havingLower("quantity", 12, false).results();
+        Set<IndexedMutableBean> notIn = indexer.filter().notIn("address",
+                new HashSet<Object>(Arrays.asList("address2", "address3"))).results();
+        Object median = indexer.percentile("quantity", 0.5);
+        double sum = indexer.sum("quantity");
+        List<IndexedMutableBean> last = indexer.last("quantity", 5);
+
+        assertSame(indexer, indexer.freeze());
+        assertTrue(indexer.isFrozen());
+        assertTrue(indexer.getBuiltIndex("address") instanceof FrozenHashIndexMap<?>);
+        assertTrue(indexer.getBuiltIndex("quantity") instanceof FrozenSortedIndexMap<?>);
+
+        assertEquals(100, indexer.size());
+        assertTrue(indexer.containsAll(beans));
+        assertEquals(new HashSet<IndexedMutableBean>(beans), new HashSet<IndexedMutableBean>(indexer));
+        assertEquals(having, indexer.filter().having("address", "address1").results());
+        assertEquals(nulls, indexer.filter().having("address", null).results());
+        assertEquals(range, indexer.filter().havingGreater("quantity", 5, true).and()
+                .havingLower("quantity", 12, false).results());
+        assertEquals(notIn, indexer.filter().notIn("address",
+                new HashSet<Object>(Arrays.asList("address2", "address3"))).results());
+        assertTrue(indexer.filter().having("address", "unknown").results().isEmpty());
+        assertEquals(0, indexer.min("quantity"));
+        assertEquals(19, indexer.max("quantity"));
+        assertEquals(median, indexer.percentile("quantity", 0.5));
+        assertEquals(sum, indexer.sum("quantity"), 0);
+        assertEquals(5, indexer.last("quantity", 5).size());
+        for (IndexedMutableBean bean : indexer.last("quantity", 5)) {
+            assertEquals(19, bean.getQuantity());
+        }
+        assertEquals(new HashSet<IndexedMutableBean>(last), new HashSet<IndexedMutableBean>(indexer.last("quantity", 5)));
+        assertEquals(20, indexer.stream("quantity", 5, true, 8, true).count());
+    }
+
+    @Test
+    public void sortedMapTest() {
+        indexer.freeze();
+        @SuppressWarnings("unchecked")
+        NavigableMap<Object, Set<IndexedMutableBean>> map
+                = (NavigableMap<Object, Set<IndexedMutableBean>>) indexer.getBuiltIndex("quantity");
+        assertEquals(20, map.size());
+        assertEquals(0, map.firstKey());
+        assertEquals(19, map.lastKey());
+        assertEquals(5, map.get(3).size());
+        assertNull(map.get(20));
+        assertEquals(4, map.subMap(3, true, 7, false).size());
+        assertEquals(3, map.subMap(3, true, 7, false).firstKey());
+        assertEquals(6, map.subMap(3, true, 7, false).lastKey());
+        assertEquals(19, map.descendingMap().firstKey());
+        assertEquals(9, map.descendingMap().headMap(10, false).size());
+        assertEquals(11, map.descendingMap().tailMap(10, true).size());
+        assertEquals(11, map.descendingMap().lowerKey(10));
+        assertEquals(9, map.descendingMap().higherKey(10));
+        assertEquals(Arrays.asList(7, 6, 5), new ArrayList<Object>(
+                map.descendingMap().subMap(7, true, 4, false).keySet()));
+        assertEquals(4, map.ceilingKey(4));
+        assertNull(map.higherKey(19));
+        assertNull(map.lowerKey(0));
+    }
+
+    @Test
+    public void bitSetIndexTest() {
+        BeanIndexer<IndexedEnumBean> enums = BeanIndexer.beanIndexFrom(IndexedEnumBean.class);
+        for (int i = 0; i < 30; i++) {
+            enums.add(new IndexedEnumBean(i % 10 == 0 ? null : Color.values()[i % 3], i % 2 == 0));
+        }
+        enums.freeze();
+        assertEquals(9, enums.filter().having("color", Color.RED).results().size());
+        assertEquals(21, enums.filter().notHaving("color", Color.RED).results().size());
+        assertEquals(18, enums.filter().in("color", EnumSet.of(Color.GREEN, Color.BLUE)).results().size());
+        assertEquals(15, enums.filter().having("active", true).results().size());
+        assertEquals(new HashSet<Object>(Arrays.asList(null, Color.RED, Color.GREEN, Color.BLUE)),
+                enums.getAllValuesForProperty("color"));
+    }
+
+    @Test
+    public void mutationTest() {
+        indexer.freeze();
+        IndexedMutableBean bean = beans.get(1);
+        try {
+            indexer.add(new IndexedMutableBean("address", 1));
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            indexer.remove(bean);
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            indexer.clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            indexer.removeIndex("address");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            indexer.getBuiltIndex("address").get(bean.getAddress()).clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+        assertEquals(100, indexer.size());
+
+        // property changes are no longer tracked
+        bean.setQuantity(50);
+        assertTrue(indexer.filter().having("quantity", 50).results().isEmpty());
+        assertTrue(indexer.filter().having("quantity", 1).results().contains(bean));
+    }
+}
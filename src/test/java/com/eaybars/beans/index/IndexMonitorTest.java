@@ -0,0 +1,134 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class IndexMonitorTest {
+
+    private BeanIndexer<IndexedBean1> indexer;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        indexer.add(new IndexedBean1("abc", 1));
+        indexer.add(new IndexedBean1("abc", 2));
+        indexer.add(new IndexedBean1("xyz", 1));
+    }
+
+    private Map<String, IndexStatistics> statistics(IndexMonitor monitor) {
+        Map<String, IndexStatistics> result = new HashMap<String, IndexStatistics>();
+        for (IndexStatistics s : monitor.getIndexStatistics()) {
+            result.put(s.getProperty(), s);
+        }
+        return result;
+    }
+
+    @Test
+    public void disabledTest() {
+        assertNull(indexer.getMonitor());
+        indexer.filter().having("name", "abc");
+        IndexMonitor monitor = indexer.enableMonitoring();
+        assertSame(monitor, indexer.getMonitor());
+        assertTrue(monitor.getQueryStatistics().isEmpty());
+        assertEquals(0, statistics(monitor).get("name").getQueries());
+
+        indexer.disableMonitoring();
+        assertNull(indexer.getMonitor());
+    }
+
+    @Test
+    public void indexStatisticsTest() {
+        IndexMonitor monitor = indexer.enableMonitoring();
+        indexer.add(new IndexedBean1("abc", 3));
+        indexer.remove(new IndexedBean1("xyz", 1));
+        indexer.filter().having("name", "abc").and().havingGreater("number", 2, true);
+
+        Map<String, IndexStatistics> statistics = statistics(monitor);
+        IndexStatistics name = statistics.get("name");
+        assertEquals(1, name.getDistinctKeys());
+        assertEquals(3, name.getLargestPostingList());
+        assertEquals(2, name.getUpdates());
+        assertEquals(1, name.getQueries());
+        assertTrue(name.getApproximateMemory() > 0);
+        assertFalse(name.isSorted());
+
+        IndexStatistics number = statistics.get("number");
+        assertTrue(number.isSorted());
+        assertEquals(3, number.getDistinctKeys());
+        assertEquals(1, number.getQueries());
+    }
+
+    @Test
+    public void queryStatisticsTest() {
+        final List<String> operations = new ArrayList<String>();
+        IndexMonitor monitor = indexer.enableMonitoring().setMetricsListener(new MetricsListener() {
+
+            @Override
+            public void queryExecuted(String operation, String property, long nanos, int resultSize) {
+                operations.add(operation + ":" + property + ":" + resultSize);
+            }
+
+            @Override
+            public void indexUpdated(String property) {
+            }
+        });
+        indexer.filter().having("name", "abc").and().notHaving("number", 1);
+        indexer.filter().having("name", "abc");
+        indexer.filter().where(b -> b.getNumber() > 1);
+
+        assertEquals(4, operations.size());
+        assertEquals("having:name:2", operations.get(0));
+        assertEquals("notHaving:number:1", operations.get(1));
+        assertEquals("where:null:1", operations.get(3));
+
+        for (QueryStatistics s : monitor.getQueryStatistics()) {
+            if (s.getOperation().equals("having")) {
+                assertEquals(2, s.getCount());
+                assertEquals(2.0, s.getMeanResultSize(), 0.0);
+                assertTrue(s.getP99Nanos() <= s.getMaxNanos());
+            } else if (s.getOperation().equals("where")) {
+                assertNull(s.getProperty());
+                assertEquals(1, s.getCount());
+            } else {
+                assertEquals("notHaving", s.getOperation());
+                assertEquals(1, s.getCount());
+            }
+        }
+
+        monitor.reset();
+        assertTrue(monitor.getQueryStatistics().isEmpty());
+    }
+
+    @Test
+    public void mbeanTest() throws JMException {
+        IndexMonitor monitor = indexer.enableMonitoring();
+        ObjectName name = monitor.registerMBean("test");
+        try {
+            indexer.filter().having("name", "abc");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(3, server.getAttribute(name, "Size"));
+            CompositeData[] queries = (CompositeData[]) server.getAttribute(name, "QueryStatistics");
+            assertEquals(1, queries.length);
+            assertEquals("having", queries[0].get("operation"));
+            assertEquals(2, ((CompositeData[]) server.getAttribute(name, "IndexStatistics")).length);
+        } finally {
+            indexer.disableMonitoring();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
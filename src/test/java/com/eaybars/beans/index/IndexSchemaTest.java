@@ -0,0 +1,242 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.EncodedBean;
+import com.eaybars.beans.IndexedBean1;
+import com.eaybars.beans.IndexedBean2;
+import com.eaybars.beans.IndexedEnumBean;
+import com.eaybars.beans.IndexedEnumBean.Color;
+import com.eaybars.beans.IndexedMutableBean;
+import com.eaybars.beans.MutableBean;
+import com.eaybars.beans.ReadOrWriteOnlyBean;
+import com.eaybars.beans.ReverseComparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class IndexSchemaTest {
+
+    private Map<String, IndexDefinition<?>> definitions(IndexSchema<?> schema) {
+        Map<String, IndexDefinition<?>> result = new HashMap<String, IndexDefinition<?>>();
+        for (IndexDefinition<?> definition : schema.getIndexes()) {
+            result.put(definition.getProperty(), definition);
+        }
+        return result;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T> void assertSameSchema(Class<T> beanClass, T... beans) {
+        IndexSchema<T> generated = IndexSchema.generatedFor(beanClass);
+        IndexSchema<T> introspected = IndexSchema.introspect(beanClass);
+        assertNotNull(beanClass.getName(), generated);
+        Map<String, IndexDefinition<?>> expected = definitions(introspected);
+        Map<String, IndexDefinition<?>> actual = definitions(generated);
+        assertEquals(beanClass.getName(), expected.keySet(), actual.keySet());
+        for (String property : expected.keySet()) {
+            IndexDefinition<T> e = (IndexDefinition<T>) expected.get(property);
+            IndexDefinition<T> a = (IndexDefinition<T>) actual.get(property);
+            String message = beanClass.getSimpleName() + "." + property;
+            assertEquals(message, e.isSorted(), a.isSorted());
+            assertEquals(message, e.isEncoded(), a.isEncoded());
+            assertEquals(message, e.isDerived(), a.isDerived());
+            assertEquals(message, e.getValueType(), a.getValueType());
+            assertEquals(message, e.getComparator() == null ? null : e.getComparator().getClass(),
+                    a.getComparator() == null ? null : a.getComparator().getClass());
+            for (T bean : beans) {
+                Object value = e.getAccessor().getValue(bean);
+                Object other = a.getAccessor().getValue(bean);
+                if (value instanceof Collection && other instanceof Collection) {
+                    assertEquals(message, new HashSet((Collection) value), new HashSet((Collection) other));
+                } else {
+                    assertEquals(message, value, other);
+                }
+            }
+        }
+        assertEquals(beanClass.getName(), introspected.getBeanEvent() == null,
+                generated.getBeanEvent() == null);
+    }
+
+    @Test
+    public void generatedMatchesIntrospectedTest() {
+        // the processor and the introspection resolve the same annotations
+        // separately, every annotated fixture must resolve alike both ways
+        IndexedBean2 bean2 = new IndexedBean2("name").addBean(new IndexedBean1("n1", 1));
+        assertSameSchema(IndexedBean1.class, new IndexedBean1("name", 3), new IndexedBean1(null, 0));
+        assertSameSchema(IndexedBean2.class, bean2, new IndexedBean2(null));
+        assertSameSchema(IndexedEnumBean.class, new IndexedEnumBean(Color.RED, true),
+                new IndexedEnumBean(null, false));
+        assertSameSchema(IndexedMutableBean.class, new IndexedMutableBean("address", 5),
+                new IndexedMutableBean(null, 0));
+        assertSameSchema(EncodedBean.class, new EncodedBean("category", 2));
+        assertSameSchema(ReadOrWriteOnlyBean.class, new ReadOrWriteOnlyBean("name", 30, 4));
+    }
+
+    @Test
+    public void generatedSchemaTest() {
+        IndexSchema<IndexedBean1> schema = IndexSchema.generatedFor(IndexedBean1.class);
+        assertNotNull(schema);
+        assertEquals(IndexedBean1.class, schema.getBeanClass());
+        assertNull(schema.getBeanEvent());
+
+        Map<String, IndexDefinition<?>> definitions = definitions(schema);
+        assertEquals(2, definitions.size());
+        assertFalse(definitions.get("name").isSorted());
+        assertTrue(definitions.get("number").isSorted());
+        assertNull(definitions.get("number").getComparator());
+
+        IndexedBean1 bean = new IndexedBean1("abc", 3);
+        assertEquals("abc", schema.getIndexes().get(0).getAccessor().getValue(bean));
+        assertEquals(3, schema.getIndexes().get(1).getAccessor().getValue(bean));
+    }
+
+    @Test
+    public void generatedComparatorTest() {
+        Map<String, IndexDefinition<?>> definitions = definitions(
+                IndexSchema.generatedFor(ReadOrWriteOnlyBean.class));
+        assertEquals(2, definitions.size());
+        assertTrue(definitions.get("score").isSorted());
+        assertTrue(definitions.get("score").getComparator() instanceof ReverseComparator);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void generatedContentsAccessorTest() {
+        IndexSchema<IndexedBean2> schema = IndexSchema.generatedFor(IndexedBean2.class);
+        Map<String, IndexDefinition<?>> definitions = definitions(schema);
+        assertEquals(3, definitions.size());
+        assertTrue(definitions.get("beans.number").isSorted());
+        assertFalse(definitions.get("name").isEncoded());
+
+        IndexedBean2 bean = new IndexedBean2("b").addBean(new IndexedBean1("abc", 1))
+                .addBean(new IndexedBean1("xyz", 2));
+        Collection<Object> names = (Collection<Object>) ((IndexDefinition<IndexedBean2>) definitions
+                .get("beans.name")).getAccessor().getValue(bean);
+        assertEquals(Arrays.<Object>asList("abc", "xyz"), names);
+    }
+
+    @Test
+    public void encodedTest() {
+        Map<String, IndexDefinition<?>> generated = definitions(IndexSchema.generatedFor(EncodedBean.class));
+        Map<String, IndexDefinition<?>> introspected = definitions(IndexSchema.introspect(EncodedBean.class));
+        assertTrue(generated.get("category").isEncoded());
+        assertTrue(introspected.get("category").isEncoded());
+        assertFalse(generated.get("number").isEncoded());
+        assertFalse(introspected.get("number").isEncoded());
+    }
+
+    @Test
+    public void valueTypeTest() {
+        Map<String, IndexDefinition<?>> generated = definitions(IndexSchema.generatedFor(IndexedEnumBean.class));
+        Map<String, IndexDefinition<?>> introspected = definitions(IndexSchema.introspect(IndexedEnumBean.class));
+        for (Map<String, IndexDefinition<?>> definitions : Arrays.asList(generated, introspected)) {
+            assertEquals(Color.class, definitions.get("color").getValueType());
+            assertEquals(boolean.class, definitions.get("active").getValueType());
+            assertNull(definitions.get("ordered").getValueType());
+        }
+        assertNull(definitions(IndexSchema.generatedFor(IndexedBean2.class)).get("beans.name").getValueType());
+        assertNull(definitions(IndexSchema.generatedFor(IndexedBean1.class)).get("name").getValueType());
+    }
+
+    @Test
+    public void noGeneratedSchemaTest() {
+        assertNull(IndexSchema.generatedFor(MutableBean.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void introspectTest() {
+        IndexSchema<IndexedBean2> schema = IndexSchema.introspect(IndexedBean2.class);
+        Map<String, IndexDefinition<?>> definitions = definitions(schema);
+        Map<String, IndexDefinition<?>> generated = definitions(IndexSchema.generatedFor(IndexedBean2.class));
+        assertEquals(generated.keySet(), definitions.keySet());
+        for (String property : generated.keySet()) {
+            assertEquals(generated.get(property).isSorted(), definitions.get(property).isSorted());
+            assertEquals(generated.get(property).isEncoded(), definitions.get(property).isEncoded());
+        }
+
+        IndexedBean2 bean = new IndexedBean2("b").addBean(new IndexedBean1("abc", 1));
+        assertEquals("b", ((IndexDefinition<IndexedBean2>) definitions.get("name"))
+                .getAccessor().getValue(bean));
+
+        assertNotNull(IndexSchema.introspect(IndexedMutableBean.class).getBeanEvent());
+        assertTrue(IndexSchema.introspect(MutableBean.class).getIndexes().isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void derivedIndexTest() {
+        Map<String, IndexDefinition<?>> definitions = definitions(IndexSchema.introspect(IndexedMutableBean.class));
+        Map<String, IndexDefinition<?>> generated = definitions(IndexSchema.generatedFor(IndexedMutableBean.class));
+        assertEquals(generated.keySet(), definitions.keySet());
+        assertTrue(definitions.containsKey("doubleQuantity"));
+        assertTrue(generated.get("doubleQuantity").isSorted());
+        assertTrue(definitions.get("doubleQuantity").isSorted());
+        assertTrue(generated.get("doubleQuantity").isDerived());
+        assertTrue(definitions.get("doubleQuantity").isDerived());
+        assertFalse(generated.get("quantity").isDerived());
+        assertFalse(definitions.get("quantity").isDerived());
+
+        IndexedMutableBean bean = new IndexedMutableBean("address", 3);
+        assertEquals(6, ((IndexDefinition<IndexedMutableBean>) generated.get("doubleQuantity"))
+                .getAccessor().getValue(bean));
+        assertEquals(6, ((IndexDefinition<IndexedMutableBean>) definitions.get("doubleQuantity"))
+                .getAccessor().getValue(bean));
+    }
+
+    @Test
+    public void sharedSchemaTest() {
+        IndexSchema<MutableBean> schema = IndexSchema.forClass(MutableBean.class);
+        assertSame(schema, IndexSchema.forClass(MutableBean.class));
+        assertNotNull(schema.getBeanEvent());
+
+        BeanIndexer<IndexedBean1> i1 = new BeanIndexer<IndexedBean1>(IndexSchema.forClass(IndexedBean1.class));
+        BeanIndexer<IndexedBean1> i2 = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        i1.add(new IndexedBean1("abc", 1));
+        i2.add(new IndexedBean1("xyz", 1));
+
+        assertEquals(i1.getAllIndexes(), i2.getAllIndexes());
+        assertEquals(1, i1.filter().havingGreater("number", 1, true).results().size());
+        assertTrue(i1.filter().having("name", "xyz").results().isEmpty());
+        assertEquals(1, i2.filter().having("name", "xyz").results().size());
+    }
+
+    @Test
+    public void generatedEventTest() {
+        BeanIndexer<IndexedMutableBean> indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        assertNotNull(IndexSchema.generatedFor(IndexedMutableBean.class).getBeanEvent());
+
+        IndexedMutableBean bean = new IndexedMutableBean("address", 2);
+        indexer.add(bean);
+        bean.setQuantity(5);
+
+        assertTrue(indexer.filter().having("quantity", 2).results().isEmpty());
+        Set<IndexedMutableBean> result = indexer.filter().havingGreater("quantity", 4, true).results();
+        assertEquals(1, result.size());
+        assertTrue(result.contains(bean));
+
+        indexer.remove(bean);
+        bean.setQuantity(7);
+        assertTrue(indexer.filter().having("quantity", 7).results().isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void scanAndAddIndexesTest() {
+        BeanIndexer<IndexedBean1> indexer = new BeanIndexer<IndexedBean1>(IndexedBean1.class) {
+            {
+                scanAndAddIndexes(null, false);
+            }
+        };
+        assertEquals(BeanIndexer.beanIndexFrom(IndexedBean1.class).getAllIndexes(), indexer.getAllIndexes());
+        indexer.add(new IndexedBean1("abc", 1));
+        assertEquals(1, indexer.filter().havingGreater("number", 1, true).results().size());
+    }
+}
@@ -0,0 +1,133 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class IndexSnapshotTest {
+
+    private static final BeanSerializer<IndexedBean1> SERIALIZER = new BeanSerializer<IndexedBean1>() {
+
+        @Override
+        public void write(IndexedBean1 bean, DataOutput out) throws IOException {
+            out.writeUTF(bean.getName());
+            out.writeInt(bean.getNumber());
+        }
+
+        @Override
+        public IndexedBean1 read(DataInput in) throws IOException {
+            return new IndexedBean1(in.readUTF(), in.readInt());
+        }
+    };
+
+    private BeanIndexer<IndexedBean1> indexer;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        for (int i = 0; i < 3000; i++) {
+            indexer.add(new IndexedBean1("name" + (i % 7), i % 100));
+        }
+        file = File.createTempFile("beans", ".idx");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writeAndReadTest() throws IOException {
+        IndexSnapshot.write(indexer, file, SERIALIZER);
+
+        BeanIndexer<IndexedBean1> restored = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        IndexSnapshot.read(file, restored, SERIALIZER);
+
+        assertEquals(indexer, restored);
+        assertEquals(indexer.getAllValuesForProperty("name"), restored.getAllValuesForProperty("name"));
+        assertEquals(indexer.filter().having("name", "name3").results(),
+                restored.filter().having("name", "name3").results());
+        assertEquals(indexer.filter().havingGreater("number", 95, true).results(),
+                restored.filter().havingGreater("number", 95, true).results());
+        assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(
+                restored.getAllValuesForProperty("number").toArray()).subList(0, 3));
+
+        // restored indexer is maintained as usual
+        IndexedBean1 bean = new IndexedBean1("other", 500);
+        restored.add(bean);
+        assertEquals(new HashSet<IndexedBean1>(Arrays.asList(bean)),
+                restored.filter().havingGreater("number", 100, true).results());
+    }
+
+    @Test
+    public void missingIndexTest() throws IOException {
+        indexer.removeIndex("name");
+        IndexSnapshot.write(indexer, file, SERIALIZER);
+
+        BeanIndexer<IndexedBean1> restored = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        IndexSnapshot.read(file, restored, SERIALIZER);
+        assertEquals(indexer.size(), restored.size());
+        assertEquals(100, restored.filter().having("name", "name0").results().size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void nonEmptyTest() throws IOException {
+        IndexSnapshot.write(indexer, file, SERIALIZER);
+        IndexSnapshot.read(file, indexer, SERIALIZER);
+    }
+
+    @Test
+    public void bookkeepingTest() throws IOException {
+        IndexSnapshot.write(indexer, file, SERIALIZER);
+
+        BeanIndexer<IndexedBean1> restored = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        final AtomicInteger added = new AtomicInteger();
+        restored.addMutationListener(new MutationListener<IndexedBean1>() {
+
+            @Override
+            public void beanAdded(IndexedBean1 bean) {
+                added.incrementAndGet();
+            }
+
+            @Override
+            public void beanRemoved(IndexedBean1 bean) {
+            }
+
+            @Override
+            public void propertyChanged(IndexedBean1 bean, String property, Object oldValue, Object newValue) {
+            }
+
+            @Override
+            public void beansCleared() {
+            }
+        });
+        ChangeFeed<IndexedBean1>.Subscription subscription = restored.enableChangeFeed(4096).subscribe();
+        BeanEviction<IndexedBean1> eviction = restored.enableEviction(500, BeanEviction.Policy.LRU);
+        restored.expireAfter(0, TimeUnit.MILLISECONDS);
+        IndexSnapshot.read(file, restored, SERIALIZER);
+
+        assertEquals(700, added.get());
+        // an ADD event per index of each bean, and a REMOVE event per index of each evicted bean
+        assertEquals(2 * 700 + 2 * 200, subscription.poll(4096).size());
+        assertEquals(500, restored.size());
+        assertEquals(200, eviction.getEvictionCount());
+        assertEquals(500, restored.expire());
+        assertTrue(restored.isEmpty());
+        assertTrue(file.delete());
+    }
+}
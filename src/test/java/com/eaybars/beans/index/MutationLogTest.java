@@ -0,0 +1,225 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class MutationLogTest {
+
+    private static final BeanSerializer<IndexedMutableBean> SERIALIZER = new BeanSerializer<IndexedMutableBean>() {
+
+        @Override
+        public void write(IndexedMutableBean bean, DataOutput out) throws IOException {
+            out.writeUTF(bean.getAddress());
+            out.writeInt(bean.getQuantity());
+        }
+
+        @Override
+        public IndexedMutableBean read(DataInput in) throws IOException {
+            return new IndexedMutableBean(in.readUTF(), in.readInt());
+        }
+    };
+
+    private File directory;
+    private BeanIndexer<IndexedMutableBean> indexer;
+    private MutationLog<IndexedMutableBean> log;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("beans", ".log");
+        directory.delete();
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        log = MutationLog.open(directory, indexer, SERIALIZER);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private List<IndexedMutableBean> populate() {
+        List<IndexedMutableBean> beans = new ArrayList<IndexedMutableBean>();
+        for (int i = 0; i < 10; i++) {
+            IndexedMutableBean bean = new IndexedMutableBean("address" + i, i);
+            beans.add(bean);
+            indexer.add(bean);
+        }
+        return beans;
+    }
+
+    private BeanIndexer<IndexedMutableBean> replay() throws IOException {
+        BeanIndexer<IndexedMutableBean> replayed = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        MutationLog.replay(directory, replayed, SERIALIZER);
+        return replayed;
+    }
+
+    private static Set<String> state(BeanIndexer<IndexedMutableBean> indexer) {
+        Set<String> state = new HashSet<String>();
+        for (IndexedMutableBean bean : indexer.filter().havingGreater("quantity", -1, true).results()) {
+            state.add(bean.getAddress() + ":" + bean.getQuantity());
+        }
+        assertEquals(indexer.size(), state.size());
+        return state;
+    }
+
+    @Test
+    public void replayTest() throws IOException {
+        List<IndexedMutableBean> beans = populate();
+        indexer.remove(beans.get(3));
+        beans.get(5).setQuantity(50);
+        beans.get(6).setAddress("moved");
+        assertEquals(13, log.getRecordCount());
+
+        BeanIndexer<IndexedMutableBean> replayed = replay();
+        assertEquals(9, replayed.size());
+        assertEquals(state(indexer), state(replayed));
+        assertEquals(1, replayed.filter().having("quantity", 50).results().size());
+    }
+
+    @Test
+    public void inPlaceTest() throws IOException {
+        final int[] written = new int[1];
+        BeanSerializer<IndexedMutableBean> counting = new BeanSerializer<IndexedMutableBean>() {
+
+            @Override
+            public void write(IndexedMutableBean bean, DataOutput out) throws IOException {
+                written[0]++;
+                SERIALIZER.write(bean, out);
+            }
+
+            @Override
+            public IndexedMutableBean read(DataInput in) throws IOException {
+                return SERIALIZER.read(in);
+            }
+        };
+        log.close();
+        log = MutationLog.open(directory, indexer, counting);
+        List<IndexedMutableBean> beans = populate();
+        assertEquals(10, written[0]);
+
+        // changes are logged as the new values alone
+        beans.get(5).setQuantity(50);
+        beans.get(6).setAddress("moved");
+        beans.get(7).setAddress(null);
+        assertEquals(10, written[0]);
+        assertEquals(13, log.getRecordCount());
+
+        BeanIndexer<IndexedMutableBean> replayed = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        MutationLog.replay(directory, replayed, SERIALIZER);
+        assertEquals(1, replayed.filter().having("quantity", 50).results().size());
+        assertEquals(1, replayed.filter().having("address", "moved").results().size());
+        assertEquals(1, replayed.filter().having("address", null).results().size());
+        assertEquals(7, replayed.filter().having("address", null).singleResult().getQuantity());
+    }
+
+    @Test
+    public void checkpointTest() throws IOException {
+        List<IndexedMutableBean> beans = populate();
+        log.checkpoint();
+        assertEquals(1, log.getGeneration());
+        indexer.remove(beans.get(0));
+        beans.get(1).setQuantity(100);
+        indexer.add(new IndexedMutableBean("new", 7));
+
+        assertEquals(state(indexer), state(replay()));
+
+        indexer.clear();
+        indexer.add(new IndexedMutableBean("last", 1));
+        assertEquals(state(indexer), state(replay()));
+    }
+
+    @Test
+    public void reopenTest() throws IOException {
+        List<IndexedMutableBean> beans = populate();
+        log.checkpoint();
+        beans.get(2).setQuantity(20);
+        log.close();
+
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        log = MutationLog.open(directory, indexer, SERIALIZER);
+        assertEquals(10, indexer.size());
+        IndexedMutableBean bean = indexer.filter().having("quantity", 20).singleResult();
+        bean.setQuantity(21);
+        indexer.remove(indexer.filter().having("quantity", 4).singleResult());
+
+        assertEquals(state(indexer), state(replay()));
+    }
+
+    @Test
+    public void unknownBeanTest() throws IOException {
+        populate();
+        try {
+            log.beanRemoved(new IndexedMutableBean("unknown", 0));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {// the log stays failed
+            indexer.add(new IndexedMutableBean("other", 1));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        indexer.removeMutationListener(log);
+    }
+
+    @Test
+    public void incompleteBatchTest() throws IOException {
+        populate();
+        FileOutputStream out = new FileOutputStream(new File(directory, "log.0"), true);
+        out.write(new byte[]{0, 0, 0, 20, 1, 2, 3});
+        out.close();
+
+        assertEquals(state(indexer), state(replay()));
+    }
+
+    @Test
+    public void asyncTest() throws IOException, InterruptedException {
+        log.close();
+        indexer = new BeanIndexer<IndexedMutableBean>(IndexSchema.forClass(IndexedMutableBean.class),
+                CollectionFactory.Predefined.CONCURRENT.getFactory());
+        log = MutationLog.open(directory, indexer, SERIALIZER, new StandardValueSerializer(),
+                MutationLog.Durability.ASYNC, 10, TimeUnit.MILLISECONDS);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int offset = i * 1000;
+            threads[i] = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 500; j++) {
+                        indexer.add(new IndexedMutableBean("a" + (offset + j), offset + j));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        log.sync();
+        assertTrue(log.getSyncCount() < log.getRecordCount());
+
+        BeanIndexer<IndexedMutableBean> replayed = replay();
+        assertEquals(2000, replayed.size());
+        assertEquals(state(indexer), state(replayed));
+    }
+}
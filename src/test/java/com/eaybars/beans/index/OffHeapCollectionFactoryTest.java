@@ -0,0 +1,146 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import com.eaybars.beans.IndexedMutableBean;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class OffHeapCollectionFactoryTest {
+
+    private OffHeapCollectionFactory factory;
+    private BeanIndexer<IndexedBean1> indexer;
+
+    @Before
+    public void setUp() {
+        factory = new OffHeapCollectionFactory(1 << 24);
+        indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class, factory);
+        for (int i = 0; i < 1000; i++) {
+            indexer.add(new IndexedBean1("name" + (i % 10), i));
+        }
+    }
+
+    @Test
+    public void searchTest() {
+        Set<IndexedBean1> result = indexer.filter().having("name", "name3").and()
+                .havingLower("number", 100, false).results();
+        assertEquals(new HashSet<IndexedBean1>(Arrays.asList(new IndexedBean1("name3", 3),
+                new IndexedBean1("name3", 13), new IndexedBean1("name3", 23),
+                new IndexedBean1("name3", 33), new IndexedBean1("name3", 43),
+                new IndexedBean1("name3", 53), new IndexedBean1("name3", 63),
+                new IndexedBean1("name3", 73), new IndexedBean1("name3", 83),
+                new IndexedBean1("name3", 93))), result);
+        assertEquals(1000, factory.getBeanCount());
+        assertTrue(factory.getUsedBytes() > 0);
+
+        indexer.remove(new IndexedBean1("name3", 3));
+        assertEquals(99, indexer.filter().having("name", "name3").results().size());
+        assertTrue(indexer.filter().having("number", 3).results().isEmpty());
+        assertEquals(999, factory.getBeanCount());
+    }
+
+    @Test
+    public void postingSetTest() {
+        Set<String> set = factory.createPostingSet();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(set.add("v" + i));
+        }
+        assertFalse(set.add("v5"));
+        assertEquals(100, set.size());
+        assertTrue(set.contains("v99"));
+        for (Iterator<String> i = set.iterator(); i.hasNext();) {
+            if (Integer.parseInt(i.next().substring(1)) % 2 == 0) {
+                i.remove();
+            }
+        }
+        assertEquals(50, set.size());
+        assertFalse(set.contains("v4"));
+        assertTrue(set.contains("v5"));
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(set.add("v" + i));
+        }
+        assertEquals(100, set.size());
+    }
+
+    private static long directMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        throw new AssertionError("No direct buffer pool");
+    }
+
+    @Test
+    public void freeTest() {
+        for (int i = 1000; i < 100000; i++) {
+            indexer.add(new IndexedBean1("name" + (i % 10), i));
+        }
+        long reserved = factory.getReservedBytes();
+        assertTrue(reserved >= 1 << 20);
+        long used = directMemoryUsed();
+
+        // the direct buffers are freed without a garbage collection
+        indexer.clear();
+        assertEquals(0, factory.getReservedBytes());
+        assertTrue(used - directMemoryUsed() >= reserved);
+    }
+
+    @Test
+    public void clearTest() {
+        indexer.clear();
+        assertEquals(0, factory.getUsedBytes());
+        assertEquals(0, factory.getReservedBytes());
+        assertEquals(0, factory.getBeanCount());
+
+        indexer.add(new IndexedBean1("abc", 1));
+        assertEquals(1, indexer.filter().having("name", "abc").results().size());
+    }
+
+    @Test
+    public void removeAllTest() {
+        for (Iterator<IndexedBean1> i = indexer.iterator(); i.hasNext();) {
+            i.next();
+            i.remove();
+        }
+        assertEquals(0, factory.getUsedBytes());
+        assertEquals(0, factory.getBeanCount());
+    }
+
+    @Test
+    public void removeIndexTest() {
+        long used = factory.getUsedBytes();
+        indexer.removeIndex("number");
+        assertTrue(factory.getUsedBytes() < used);
+        assertEquals(1000, factory.getBeanCount());
+    }
+
+    @Test
+    public void propertyChangeTest() {
+        BeanIndexer<IndexedMutableBean> mutable = BeanIndexer.beanIndexFrom(IndexedMutableBean.class, factory);
+        IndexedMutableBean bean = new IndexedMutableBean("address", 1);
+        mutable.add(bean);
+        bean.setQuantity(2);
+        assertTrue(mutable.filter().having("quantity", 1).results().isEmpty());
+        assertEquals(bean, mutable.filter().having("quantity", 2).singleResult());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void capacityTest() {
+        BeanIndexer<IndexedBean1> small = BeanIndexer.beanIndexFrom(IndexedBean1.class,
+                new OffHeapCollectionFactory(1024));
+        for (int i = 0; i < 1000; i++) {
+            small.add(new IndexedBean1("name", i));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class PartitionedBeanIndexerTest {
+
+    private PartitionedBeanIndexer<IndexedBean1> indexer;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        indexer = new PartitionedBeanIndexer<IndexedBean1>(IndexSchema.forClass(IndexedBean1.class),
+                CollectionFactory.Predefined.CONCURRENT.getFactory(), 4, null);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = thread; i < 10000; i += 4) {
+                        indexer.add(new IndexedBean1("n" + (i % 10), i));
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void partitionTest() {
+        assertEquals(10000, indexer.size());
+        for (BeanIndexer<IndexedBean1> partition : indexer.getPartitions()) {
+            assertTrue(partition.size() > 0);
+            assertTrue(partition.size() < 10000);
+        }
+        assertTrue(indexer.contains(new IndexedBean1("n3", 13)));
+        assertFalse(indexer.add(new IndexedBean1("n3", 13)));
+        assertTrue(indexer.remove(new IndexedBean1("n3", 13)));
+        assertFalse(indexer.contains(new IndexedBean1("n3", 13)));
+        assertEquals(9999, indexer.stream().count());
+        assertEquals(9999, indexer.parallelStream().count());
+
+        int count = 0;
+        for (Iterator<IndexedBean1> i = indexer.iterator(); i.hasNext();) {
+            if (i.next().getNumber() % 2 == 0) {
+                i.remove();
+            }
+            count++;
+        }
+        assertEquals(9999, count);
+        assertEquals(4999, indexer.size());
+
+        PartitionedBeanIndexer<IndexedBean1> byName = new PartitionedBeanIndexer<IndexedBean1>(
+                IndexSchema.forClass(IndexedBean1.class),
+                CollectionFactory.Predefined.THREAD_UNSAFE.getFactory(), 3, "name");
+        byName.addAll(indexer);
+        for (BeanIndexer<IndexedBean1> partition : byName.getPartitions()) {
+            for (IndexedBean1 bean : partition) {
+                assertTrue(partition.filter().having("name", bean.getName()).results().size() > 400);
+            }
+        }
+    }
+
+    @Test
+    public void searchTest() {
+        assertEquals(1000, indexer.search(f -> f.having("name", "n3")).size());
+        assertEquals(100, indexer.search(f -> f.having("name", "n3").and()
+                .havingGreater("number", 9000, true)).size());
+
+        List<IndexedBean1> sorted = indexer.sortedSearch(f -> f.having("name", "n5"),
+                Comparator.comparing(IndexedBean1::getNumber).reversed());
+        assertEquals(1000, sorted.size());
+        assertEquals(9995, sorted.get(0).getNumber());
+        assertEquals(5, sorted.get(999).getNumber());
+    }
+
+    @Test
+    public void orderedMergeTest() {
+        List<Integer> first = new ArrayList<Integer>();
+        for (IndexedBean1 bean : indexer.first("number", 5)) {
+            first.add(bean.getNumber());
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), first);
+        assertEquals(9999, indexer.last("number", 3).get(0).getNumber());
+        assertEquals(9997, indexer.last("number", 3).get(2).getNumber());
+        try {
+            indexer.first("name", 1);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedBean1;
+import com.eaybars.beans.MutableBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class QueryCacheTest {
+
+    private BeanIndexer<IndexedBean1> indexer;
+    private QueryCache cache;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedBean1.class);
+        indexer.add(new IndexedBean1("abc", 1));
+        indexer.add(new IndexedBean1("abc", 2));
+        indexer.add(new IndexedBean1("xyz", 1));
+        cache = indexer.enableQueryCache(10, QueryCache.Eviction.LRU);
+    }
+
+    private Set<IndexedBean1> search() {
+        return indexer.filter().having("name", "abc").and()
+                .havingGreater("number", 2, true).results();
+    }
+
+    @Test
+    public void hitTest() {
+        Set<IndexedBean1> first = search();
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        Set<IndexedBean1> second = search();
+        assertEquals(2, cache.getHits());
+        assertEquals(first, second);
+        assertEquals(1, second.size());
+
+        // a different search sharing the first step
+        Set<IndexedBean1> result = indexer.filter().having("name", "abc").and()
+                .notHaving("number", 2).results();
+        assertEquals(3, cache.getHits());
+        assertEquals(1, result.size());
+        assertTrue(result.contains(new IndexedBean1("abc", 1)));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void sharedResultTest() {
+        search().clear();
+    }
+
+    @Test
+    public void invalidationTest() {
+        search();
+        indexer.add(new IndexedBean1("abc", 3));
+        Set<IndexedBean1> result = search();
+        assertEquals(0, cache.getHits());
+        assertEquals(2, result.size());
+
+        indexer.remove(new IndexedBean1("abc", 2));
+        assertEquals(1, search().size());
+        assertEquals(0, cache.getHits());
+
+        Set<Object> names = new HashSet<Object>(Arrays.asList("abc"));
+        Set<IndexedBean1> in = indexer.filter().in("name", names).inverse().results();
+        names.add("xyz");
+        assertEquals(in, indexer.filter().in("name", new HashSet<Object>(Arrays.asList("abc")))
+                .inverse().results());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void propertyChangeTest() {
+        BeanIndexer<MutableBean> mutable = new BeanIndexer<MutableBean>(MutableBean.class);
+        mutable.addUnsortedIndex("address");
+        mutable.addSortedIndex("quantity", null);
+        QueryCache mutableCache = mutable.enableQueryCache(10, QueryCache.Eviction.LFU);
+        MutableBean bean = new MutableBean("address", 1);
+        mutable.add(bean);
+
+        assertEquals(1, mutable.filter().having("quantity", 1).results().size());
+        assertEquals(1, mutable.filter().having("address", "address").results().size());
+
+        bean.setQuantity(2);
+        assertTrue(mutable.filter().having("quantity", 1).results().isEmpty());
+        assertEquals(0, mutableCache.getHits());
+        assertEquals(1, mutable.filter().having("address", "address").results().size());
+        assertEquals(1, mutableCache.getHits());
+    }
+
+    @Test
+    public void evictionTest() {
+        QueryCache small = indexer.enableQueryCache(2, QueryCache.Eviction.LRU);
+        indexer.filter().having("name", "abc");
+        indexer.filter().having("name", "xyz");
+        indexer.filter().having("name", "abc");
+        indexer.filter().having("number", 1);
+        assertEquals(2, small.size());
+
+        indexer.filter().having("name", "abc");
+        assertEquals(2, small.getHits());
+        indexer.filter().having("name", "xyz");
+        assertEquals(2, small.getHits());
+    }
+
+    @Test
+    public void lfuEvictionTest() {
+        QueryCache small = indexer.enableQueryCache(3, QueryCache.Eviction.LFU);
+        for (int i = 0; i < 3; i++) {
+            indexer.filter().having("number", 1);
+        }
+        indexer.filter().having("number", 2);
+        indexer.filter().having("number", 2);
+        indexer.filter().having("number", 3);
+        assertEquals(3, small.getHits());
+
+        // the least used search is evicted, then the search replacing it
+        indexer.filter().having("number", 4);
+        indexer.filter().having("number", 3);
+        assertEquals(3, small.getHits());
+        assertEquals(3, small.size());
+        indexer.filter().having("number", 1);
+        indexer.filter().having("number", 2);
+        indexer.filter().having("number", 3);
+        assertEquals(6, small.getHits());
+
+        // a stale result leaves its bucket
+        indexer.add(new IndexedBean1("abc", 5));
+        indexer.filter().having("number", 1);
+        indexer.filter().having("number", 5);
+        indexer.filter().having("number", 6);
+        assertEquals(6, small.getHits());
+        assertEquals(3, small.size());
+    }
+
+    @Test
+    public void disabledTest() {
+        indexer.disableQueryCache();
+        Set<IndexedBean1> result = search();
+        result.clear(); // modifiable without cache
+        assertNull(indexer.getQueryCache());
+    }
+}
@@ -0,0 +1,199 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class ReplicationTest {
+
+    private static final BeanSerializer<IndexedMutableBean> SERIALIZER = new BeanSerializer<IndexedMutableBean>() {
+
+        @Override
+        public void write(IndexedMutableBean bean, DataOutput out) throws IOException {
+            out.writeUTF(bean.getAddress());
+            out.writeInt(bean.getQuantity());
+        }
+
+        @Override
+        public IndexedMutableBean read(DataInput in) throws IOException {
+            return new IndexedMutableBean(in.readUTF(), in.readInt());
+        }
+    };
+
+    private BeanIndexer<IndexedMutableBean> leaderIndexer;
+    private BeanIndexer<IndexedMutableBean> followerIndexer;
+
+    @Before
+    public void setUp() {
+        leaderIndexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        followerIndexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        for (int i = 0; i < 100; i++) {
+            leaderIndexer.add(new IndexedMutableBean("address" + i, i));
+        }
+    }
+
+    private static Set<String> state(BeanIndexer<IndexedMutableBean> indexer) {
+        Set<String> state = new HashSet<String>();
+        for (IndexedMutableBean bean : indexer.filter().havingGreater("quantity", -1, true).results()) {
+            state.add(bean.getAddress() + "=" + bean.getQuantity());
+        }
+        return state;
+    }
+
+    private void mutate() {
+        IndexedMutableBean bean = leaderIndexer.filter().having("quantity", 5).singleResult();
+        bean.setQuantity(500);
+        leaderIndexer.remove(leaderIndexer.filter().having("quantity", 7).singleResult());
+        leaderIndexer.add(new IndexedMutableBean("new", 1000));
+    }
+
+    @Test
+    public void loopbackTest() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        ReplicationLeader<IndexedMutableBean> leader = new ReplicationLeader<IndexedMutableBean>(
+                leaderIndexer, SERIALIZER, transport);
+        ReplicationFollower<IndexedMutableBean> follower = new ReplicationFollower<IndexedMutableBean>(
+                followerIndexer, SERIALIZER, transport);
+        assertEquals(1, follower.poll(10, 1, TimeUnit.SECONDS));
+        assertEquals(state(leaderIndexer), state(followerIndexer));
+
+        mutate();
+        assertEquals(0, follower.poll(10, 0, TimeUnit.SECONDS));
+        leader.flush();
+        assertEquals(1, follower.poll(10, 1, TimeUnit.SECONDS));
+        assertEquals(2, follower.getSequence());
+        assertEquals(state(leaderIndexer), state(followerIndexer));
+        assertEquals(1, followerIndexer.filter().having("doubleQuantity", 1000).results().size());
+
+        leaderIndexer.clear();
+        leader.close();
+        follower.poll(10, 1, TimeUnit.SECONDS);
+        assertTrue(followerIndexer.isEmpty());
+        leaderIndexer.add(new IndexedMutableBean("a", 1));
+        assertNull(transport.receive(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void inPlaceTest() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        ReplicationLeader<IndexedMutableBean> leader = new ReplicationLeader<IndexedMutableBean>(
+                leaderIndexer, SERIALIZER, transport);
+        ReplicationFollower<IndexedMutableBean> follower = new ReplicationFollower<IndexedMutableBean>(
+                followerIndexer, SERIALIZER, transport);
+        follower.poll(10, 1, TimeUnit.SECONDS);
+        IndexedMutableBean copy = followerIndexer.filter().having("quantity", 5).singleResult();
+
+        leaderIndexer.filter().having("quantity", 5).singleResult().setAddress("moved");
+        leaderIndexer.filter().having("quantity", 5).singleResult().setQuantity(500);
+        leader.flush();
+        follower.poll(10, 1, TimeUnit.SECONDS);
+        assertSame(copy, followerIndexer.filter().having("quantity", 500).singleResult());
+        assertSame(copy, followerIndexer.filter().having("doubleQuantity", 1000).singleResult());
+        assertEquals("moved", copy.getAddress());
+        assertEquals(100, followerIndexer.size());
+        assertEquals(state(leaderIndexer), state(followerIndexer));
+    }
+
+    @Test
+    public void failureTest() throws Exception {
+        BeanSerializer<IndexedMutableBean> failing = new BeanSerializer<IndexedMutableBean>() {
+
+            @Override
+            public void write(IndexedMutableBean bean, DataOutput out) throws IOException {
+                if (bean.getQuantity() < 0) {
+                    throw new IOException("Cannot write " + bean.getQuantity());
+                }
+                SERIALIZER.write(bean, out);
+            }
+
+            @Override
+            public IndexedMutableBean read(DataInput in) throws IOException {
+                return SERIALIZER.read(in);
+            }
+        };
+        ValueSerializer noValues = new ValueSerializer() {
+
+            @Override
+            public void write(Object value, DataOutput out) throws IOException {
+                throw new IOException("No values");
+            }
+
+            @Override
+            public Object read(DataInput in) throws IOException {
+                throw new IOException("No values");
+            }
+        };
+        new ReplicationLeader<IndexedMutableBean>(leaderIndexer, failing, noValues,
+                new LoopbackTransport());
+        try {// sent as the whole bean, which cannot be written
+            leaderIndexer.filter().having("quantity", 5).singleResult().setQuantity(-1);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        try {
+            leaderIndexer.add(new IndexedMutableBean("a", 1));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void gapTest() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport();
+        ReplicationLeader<IndexedMutableBean> leader = new ReplicationLeader<IndexedMutableBean>(
+                leaderIndexer, SERIALIZER, transport);
+        ReplicationFollower<IndexedMutableBean> follower = new ReplicationFollower<IndexedMutableBean>(
+                followerIndexer, SERIALIZER, transport);
+        transport.receive(0, TimeUnit.SECONDS);
+        mutate();
+        leader.flush();
+        try {
+            follower.poll(10, 1, TimeUnit.SECONDS);
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        assertNotNull(follower.getFailure());
+    }
+
+    @Test
+    public void fileTransportTest() throws Exception {
+        File file = File.createTempFile("beans", ".feed");
+        file.delete();
+        try {
+            ReplicationLeader<IndexedMutableBean> leader = new ReplicationLeader<IndexedMutableBean>(
+                    leaderIndexer, SERIALIZER, new FileTransport(file), 5, TimeUnit.MILLISECONDS);
+            ReplicationFollower<IndexedMutableBean> follower = new ReplicationFollower<IndexedMutableBean>(
+                    followerIndexer, SERIALIZER, new FileTransport(file));
+            follower.start();
+            mutate();
+            for (int i = 0; i < 100; i++) {
+                leaderIndexer.add(new IndexedMutableBean("more" + i, 2000 + i));
+            }
+            leader.close();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (follower.getSequence() < leader.getSequence()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            follower.close();
+            assertNull(follower.getFailure());
+            assertEquals(state(leaderIndexer), state(followerIndexer));
+            assertEquals(200, followerIndexer.size());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.eaybars.beans.index;
+
+import com.eaybars.beans.IndexedMutableBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class StandingQueryTest {
+
+    private BeanIndexer<IndexedMutableBean> indexer;
+    private List<IndexedMutableBean> entered;
+    private List<IndexedMutableBean> left;
+
+    @Before
+    public void setUp() {
+        indexer = BeanIndexer.beanIndexFrom(IndexedMutableBean.class);
+        for (int i = 0; i < 100; i++) {
+            indexer.add(new IndexedMutableBean("address" + (i % 10), i));
+        }
+        entered = new ArrayList<IndexedMutableBean>();
+        left = new ArrayList<IndexedMutableBean>();
+    }
+
+    private StandingQuery<IndexedMutableBean> register(StandingQuery<IndexedMutableBean> query) {
+        query.addListener(new StandingQuery.Listener<IndexedMutableBean>() {
+
+            @Override
+            public void entered(IndexedMutableBean bean) {
+                entered.add(bean);
+            }
+
+            @Override
+            public void left(IndexedMutableBean bean) {
+                left.add(bean);
+            }
+        });
+        return query;
+    }
+
+    private static Set<IndexedMutableBean> rerun(BeanIndexer<IndexedMutableBean>.Search search) {
+        return new HashSet<IndexedMutableBean>(search.results());
+    }
+
+    @Test
+    public void standingQueryTest() {
+        StandingQuery<IndexedMutableBean> query = register(indexer.standingQuery(
+                f -> f.having("address", "address1").and().havingLower("quantity", 50, false)));
+        assertEquals(5, query.size());
+
+        IndexedMutableBean bean = indexer.filter().having("quantity", 21).singleResult();
+        bean.setQuantity(70);
+        assertEquals(4, query.size());
+        assertEquals(1, left.size());
+        assertSame(bean, left.get(0));
+
+        bean.setQuantity(20);
+        assertEquals(1, entered.size());
+        bean.setQuantity(30);
+        assertEquals(1, entered.size());
+
+        IndexedMutableBean added = new IndexedMutableBean("address1", 0);
+        indexer.add(added);
+        assertTrue(query.contains(added));
+        indexer.add(new IndexedMutableBean("address2", 0));
+        assertEquals(6, query.size());
+        indexer.remove(added);
+        assertFalse(query.contains(added));
+        assertEquals(rerun(indexer.filter().having("address", "address1").and()
+                .havingLower("quantity", 50, false)), query.results());
+
+        query.close();
+        bean.setQuantity(90);
+        assertTrue(query.contains(bean));
+
+        StandingQuery<IndexedMutableBean> cleared = register(indexer.standingQuery(
+                f -> f.having("address", "address3")));
+        left.clear();
+        indexer.clear();
+        assertTrue(cleared.results().isEmpty());
+        assertEquals(10, left.size());
+    }
+
+    @Test
+    public void inverseTest() {
+        StandingQuery<IndexedMutableBean> query = register(indexer.standingQuery(
+                f -> f.in("address", new HashSet<Object>(Arrays.asList("address1", "address2")))
+                .inverse().and().havingGreater("doubleQuantity", 100, true)
+                .or().where(b -> b.getQuantity() == 3)));
+        assertEquals(41, query.size());
+        IndexedMutableBean bean = indexer.filter().having("quantity", 60).singleResult();
+        bean.setAddress("address1");
+        assertFalse(query.contains(bean));
+        bean.setQuantity(3);
+        assertTrue(query.contains(bean));
+        bean.setAddress("address5");
+        bean.setQuantity(10);
+        assertFalse(query.contains(bean));
+        assertEquals(rerun(indexer.filter().in("address", new HashSet<Object>(Arrays.asList("address1", "address2")))
+                .inverse().and().havingGreater("doubleQuantity", 100, true)
+                .or().where(b -> b.getQuantity() == 3)), query.results());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignFilterTest() {
+        indexer.standingQuery(f -> indexer.filter().having("address", "address1"));
+    }
+}
@@ -0,0 +1,67 @@
+package com.eaybars.beans.index;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * @author Ertunc
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void advanceTest() {
+        Random random = new Random(7);
+        long start = 1000000;
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(start);
+        Map<Integer, Long> deadlines = new HashMap<Integer, Long>();
+        for (int i = 0; i < 5000; i++) {
+            long range = i % 5 == 0 ? 1L << 32 : i % 2 == 0 ? 1L << 16 : 200;
+            long deadline = start + 1 + (long) (random.nextDouble() * range);
+            wheel.schedule(i, deadline);
+            deadlines.put(i, deadline);
+        }
+        for (int i = 0; i < 5000; i += 7) {
+            wheel.cancel(i);
+            deadlines.remove(i);
+        }
+        wheel.schedule(1, start + 100);
+        deadlines.put(1, start + 100L);
+        assertEquals(deadlines.size(), wheel.size());
+
+        long now = start;
+        while (!deadlines.isEmpty()) {
+            now += 1 + (long) (random.nextDouble() * random.nextDouble() * (1L << 24));
+            List<Integer> expired = new ArrayList<Integer>();
+            wheel.advance(now, expired);
+            for (Integer bean : expired) {
+                assertTrue(deadlines.get(bean) <= now);
+                deadlines.remove(bean);
+            }
+            for (Long deadline : deadlines.values()) {
+                assertTrue(deadline > now);
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void rescheduleTest() {
+        TimerWheel<String> wheel = new TimerWheel<String>(0);
+        wheel.schedule("a", 10);
+        wheel.schedule("b", 10);
+        wheel.schedule("a", 5000);
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(4999, expired);
+        assertEquals(1, expired.size());
+        assertEquals("b", expired.get(0));
+        wheel.schedule("c", 0);
+        wheel.advance(5000, expired);
+        assertEquals(3, expired.size());
+    }
+}